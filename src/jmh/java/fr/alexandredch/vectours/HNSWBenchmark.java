@@ -0,0 +1,124 @@
+package fr.alexandredch.vectours;
+
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.hnsw.HNSWIndex;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import fr.alexandredch.vectours.store.wal.WriteAheadLogger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(value = 1, warmups = 1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class HNSWBenchmark {
+
+    private static final int DIMENSION = 32;
+    private static final int TOP_K = 10;
+    private static final int QUERY_COUNT = 200;
+
+    @Param({"20000"})
+    public int vectorCount;
+
+    @Param({"10", "50", "200"})
+    public int efSearch;
+
+    private SegmentStore segmentStore;
+    private HNSWIndex index;
+    private float[][] queries;
+    private List<Set<String>> exactResults;
+    private int nextQuery;
+
+    /**
+     * Share of the exact top {@link #TOP_K} found by the searches of the iteration, to weigh against the search time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Recall {
+
+        private long found;
+        private long expected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            found = 0;
+            expected = 0;
+        }
+
+        public double recall() {
+            return expected == 0 ? 0 : (double) found / expected;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Gaussian blobs, the graph has to connect dense regions that uniform points would not have
+        Random random = new Random(42);
+        float[][] blobCenters = new float[50][DIMENSION];
+        for (float[] blobCenter : blobCenters) {
+            for (int d = 0; d < DIMENSION; d++) {
+                blobCenter[d] = (float) random.nextGaussian() * 5;
+            }
+        }
+
+        segmentStore = new SegmentStore(new WriteAheadLogger());
+        segmentStore.loadFromDisk();
+        index = new HNSWIndex(segmentStore, DistanceMetric.L2, DIMENSION);
+        List<Vector> vectors = new ArrayList<>(vectorCount);
+        for (int i = 0; i < vectorCount; i++) {
+            Vector vector = new Vector("id" + i, randomPoint(random, blobCenters), null);
+            segmentStore.insertVector(vector);
+            index.insertVector(vector);
+            vectors.add(vector);
+        }
+
+        queries = new float[QUERY_COUNT][];
+        exactResults = new ArrayList<>(QUERY_COUNT);
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            float[] query = randomPoint(random, blobCenters);
+            queries[q] = query;
+            exactResults.add(new HashSet<>(vectors.stream()
+                    .sorted(Comparator.comparingDouble(vector -> DistanceMetric.L2.distance(vector.values(), query)))
+                    .limit(TOP_K)
+                    .map(Vector::id)
+                    .toList()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        segmentStore.close();
+    }
+
+    @Benchmark
+    public List<Vector> search(Recall recall) {
+        int query = nextQuery;
+        nextQuery = (nextQuery + 1) % QUERY_COUNT;
+        List<Vector> results = index.search(queries[query], TOP_K, efSearch);
+        for (Vector vector : results) {
+            if (exactResults.get(query).contains(vector.id())) {
+                recall.found++;
+            }
+        }
+        recall.expected += TOP_K;
+        return results;
+    }
+
+    private static float[] randomPoint(Random random, float[][] blobCenters) {
+        float[] blobCenter = blobCenters[random.nextInt(blobCenters.length)];
+        float[] point = new float[DIMENSION];
+        for (int d = 0; d < DIMENSION; d++) {
+            point[d] = blobCenter[d] + (float) random.nextGaussian();
+        }
+        return point;
+    }
+}
@@ -25,7 +25,7 @@ public class InMemoryStoreBenchmark {
             List<CompletableFuture<Void>> futures = new ArrayList<>();
             for (int i = 0; i < 1_000_000; i++) {
                 futures.add(store.insert(
-                        new Vector("id" + i, new double[] {(double) i, (double) i + 1, (double) i + 2}, null)));
+                        new Vector("id" + i, new float[] {(float) i, (float) i + 1, (float) i + 2}, null)));
             }
             CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
         }
@@ -52,7 +52,7 @@ public class InMemoryStoreBenchmark {
             List<CompletableFuture<Void>> futures = new ArrayList<>();
             for (int i = 0; i < 100_000; i++) {
                 futures.add(store.insert(
-                        new Vector("id" + i, new double[] {(double) i, (double) i + 1, (double) i + 2}, null)));
+                        new Vector("id" + i, new float[] {(float) i, (float) i + 1, (float) i + 2}, null)));
             }
             CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
             store.saveAll();
@@ -78,7 +78,7 @@ public class InMemoryStoreBenchmark {
     @BenchmarkMode(Mode.AverageTime)
     public void searchBruteforce(SearchState state, Blackhole blackhole) {
         blackhole.consume(state.store.search(new SearchParameters.Builder()
-                .searchedVector(new double[] {5000, 5001, 5002})
+                .searchedVector(new float[] {5000, 5001, 5002})
                 .allowIVF(false)
                 .usePQ(false)
                 .topK(30)
@@ -91,7 +91,7 @@ public class InMemoryStoreBenchmark {
     @BenchmarkMode(Mode.AverageTime)
     public void searchIVF(SearchState state, Blackhole blackhole) {
         blackhole.consume(state.store.search(new SearchParameters.Builder()
-                .searchedVector(new double[] {5000, 5001, 5002})
+                .searchedVector(new float[] {5000, 5001, 5002})
                 .allowIVF(true)
                 .usePQ(false)
                 .topK(30)
@@ -104,13 +104,26 @@ public class InMemoryStoreBenchmark {
     @BenchmarkMode(Mode.AverageTime)
     public void searchPQ(SearchState state, Blackhole blackhole) {
         blackhole.consume(state.store.search(new SearchParameters.Builder()
-                .searchedVector(new double[] {5000, 5001, 5002})
+                .searchedVector(new float[] {5000, 5001, 5002})
                 .allowIVF(false)
                 .usePQ(true)
                 .topK(30)
                 .build()));
     }
 
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(value = 1, warmups = 1)
+    @BenchmarkMode(Mode.AverageTime)
+    public void searchIVFPQ(SearchState state, Blackhole blackhole) {
+        blackhole.consume(state.store.search(new SearchParameters.Builder()
+                .searchedVector(new float[] {5000, 5001, 5002})
+                .allowIVF(true)
+                .usePQ(true)
+                .topK(30)
+                .build()));
+    }
+
     @Benchmark
     @OutputTimeUnit(TimeUnit.MILLISECONDS)
     @Fork(value = 1, warmups = 1)
@@ -0,0 +1,75 @@
+package fr.alexandredch.vectours;
+
+import fr.alexandredch.vectours.math.KMeans;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(value = 1, warmups = 1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class KMeansBenchmark {
+
+    private static final int DIMENSION = 32;
+
+    @Param({"100000", "1000000"})
+    public int pointCount;
+
+    // full: Lloyd on every point, sampled: Lloyd on a 100k sample, minibatch: mini-batches drawn from that sample
+    @Param({"full", "sampled", "minibatch"})
+    public String training;
+
+    @Param({"true", "false"})
+    public boolean accelerated;
+
+    private float[] points;
+
+    /**
+     * Quality of the clustering and work done by the last fit of the iteration, to weigh against the training time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Quality {
+
+        public double quantizationError;
+        public long distanceComputations;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Gaussian blobs, so that iterations do not stop after the first one
+        Random random = new Random(42);
+        int blobCount = KMeans.defaultClusterCount(pointCount);
+        float[][] blobCenters = new float[blobCount][DIMENSION];
+        for (float[] blobCenter : blobCenters) {
+            for (int d = 0; d < DIMENSION; d++) {
+                blobCenter[d] = random.nextFloat(-10, 10);
+            }
+        }
+
+        points = new float[pointCount * DIMENSION];
+        for (int i = 0; i < pointCount; i++) {
+            float[] blobCenter = blobCenters[random.nextInt(blobCount)];
+            for (int d = 0; d < DIMENSION; d++) {
+                points[i * DIMENSION + d] = blobCenter[d] + (float) random.nextGaussian() * 3;
+            }
+        }
+    }
+
+    @Benchmark
+    public KMeans.Result fit(Quality quality) {
+        KMeans.Builder builder = new KMeans.Builder().seed(42).accelerated(accelerated);
+        switch (training) {
+            case "sampled" -> builder.trainingSampleSize(100_000);
+            case "minibatch" -> builder.trainingSampleSize(100_000).miniBatchSize(1024).maxIterations(100);
+            default -> {}
+        }
+        KMeans.Result result = builder.build().fit(points, DIMENSION);
+        quality.quantizationError = result.quantizationError();
+        quality.distanceComputations = result.distanceComputations();
+        return result;
+    }
+}
@@ -0,0 +1,53 @@
+package fr.alexandredch.vectours;
+
+import fr.alexandredch.vectours.math.ScalarVectorKernel;
+import fr.alexandredch.vectours.math.SimdVectorKernel;
+import fr.alexandredch.vectours.math.VectorKernel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(value = 1, warmups = 1)
+public class VectorsBenchmark {
+
+    @Param({"128", "768", "1536"})
+    public int dimension;
+
+    @Param({"scalar", "simd"})
+    public String kernelType;
+
+    private VectorKernel kernel;
+    private float[] values1;
+    private float[] values2;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        kernel = kernelType.equals("simd") ? new SimdVectorKernel() : new ScalarVectorKernel();
+
+        Random random = new Random(42);
+        values1 = new float[dimension];
+        values2 = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            values1[i] = random.nextFloat();
+            values2[i] = random.nextFloat();
+        }
+    }
+
+    @Benchmark
+    public float squaredEuclidianDistance() {
+        return kernel.squaredEuclidianDistance(values1, values2);
+    }
+
+    @Benchmark
+    public float dotProduct() {
+        return kernel.dotProduct(values1, values2);
+    }
+
+    @Benchmark
+    public float cosineDistance() {
+        return kernel.cosineDistance(values1, values2);
+    }
+}
@@ -1,14 +1,27 @@
 package fr.alexandredch.vectours;
 
+import fr.alexandredch.vectours.data.ElementType;
 import fr.alexandredch.vectours.data.SearchParameters;
 import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.store.StoreConfiguration;
 import fr.alexandredch.vectours.store.base.InMemoryStore;
 import io.javalin.Javalin;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public final class Main {
 
     public static void main(String[] args) {
-        InMemoryStore store = new InMemoryStore();
+        InMemoryStore store = new InMemoryStore(new StoreConfiguration.Builder()
+                .elementType(ElementType.valueOf(System.getProperty("vectours.elementType", "FLOAT32")))
+                .distanceMetric(DistanceMetric.valueOf(System.getProperty("vectours.distanceMetric", "L2")))
+                .trainingSampleSize(Integer.getInteger(
+                        "vectours.trainingSampleSize", StoreConfiguration.DEFAULT_TRAINING_SAMPLE_SIZE))
+                .trainingBatchSize(Integer.getInteger("vectours.trainingBatchSize", 0))
+                .indexedMetadataFields(indexedMetadataFields(System.getProperty("vectours.indexedMetadataFields", "")))
+                .build());
         store.initFromDisk();
 
         Javalin.create()
@@ -31,6 +44,17 @@ public final class Main {
                     var results = store.search(params);
                     ctx.json(results);
                 })
+                .exception(IllegalArgumentException.class, (e, ctx) -> ctx.status(400).result(e.getMessage()))
                 .start(7001);
     }
+
+    /**
+     * Fields of a comma-separated list, such as {@code category,price}.
+     */
+    private static Set<String> indexedMetadataFields(String fields) {
+        return Arrays.stream(fields.split(","))
+                .map(String::trim)
+                .filter(field -> !field.isEmpty())
+                .collect(Collectors.toSet());
+    }
 }
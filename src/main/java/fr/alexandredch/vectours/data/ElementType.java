@@ -0,0 +1,69 @@
+package fr.alexandredch.vectours.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encoding used for vector components in segment files.
+ * <p>
+ * Vectors are always held as {@code float[]} in memory. {@link #FLOAT16} halves the size of cold segments on disk, the
+ * store rounds incoming values to half precision so that reloaded segments match what was searched before a restart.
+ */
+public enum ElementType {
+    FLOAT32(Float.BYTES) {
+        @Override
+        public void write(DataOutput out, float value) throws IOException {
+            out.writeFloat(value);
+        }
+
+        @Override
+        public float read(DataInput in) throws IOException {
+            return in.readFloat();
+        }
+
+        @Override
+        public float[] round(float[] values) {
+            return values;
+        }
+    },
+    FLOAT16(Short.BYTES) {
+        @Override
+        public void write(DataOutput out, float value) throws IOException {
+            out.writeShort(Float.floatToFloat16(value));
+        }
+
+        @Override
+        public float read(DataInput in) throws IOException {
+            return Float.float16ToFloat(in.readShort());
+        }
+
+        @Override
+        public float[] round(float[] values) {
+            float[] rounded = new float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                rounded[i] = Float.float16ToFloat(Float.floatToFloat16(values[i]));
+            }
+            return rounded;
+        }
+    };
+
+    private final int bytesPerComponent;
+
+    ElementType(int bytesPerComponent) {
+        this.bytesPerComponent = bytesPerComponent;
+    }
+
+    public int getBytesPerComponent() {
+        return bytesPerComponent;
+    }
+
+    public abstract void write(DataOutput out, float value) throws IOException;
+
+    public abstract float read(DataInput in) throws IOException;
+
+    /**
+     * Returns the values as they will be read back from disk, {@code values} itself when no precision is lost.
+     */
+    public abstract float[] round(float[] values);
+}
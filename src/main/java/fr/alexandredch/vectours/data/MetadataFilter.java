@@ -0,0 +1,89 @@
+package fr.alexandredch.vectours.data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.Map;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Filter on the top-level fields of the {@link Metadata} of the vectors, read from a JSON object such as
+ * {@code {"category": "test", "lang": ["en", "fr"], "price": {"gte": 10, "lt": 20}}}.
+ * <p>
+ * A vector matches if each field of the filter is in its metadata with the given value, one of the given values for
+ * an array, or a number within the bounds ({@code gt}, {@code gte}, {@code lt}, {@code lte}) for an object. Only
+ * scalar metadata values are compared, numbers by value whatever their JSON type. Vectors without metadata never
+ * match a non-empty filter.
+ *
+ * @param conditions condition on each field
+ */
+public record MetadataFilter(@JsonValue Map<String, JsonNode> conditions) {
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public MetadataFilter {
+        conditions = Map.copyOf(conditions);
+    }
+
+    public boolean matches(@Nullable Metadata metadata) {
+        JsonNode fields = metadata == null ? null : metadata.metadata();
+        for (Map.Entry<String, JsonNode> condition : conditions.entrySet()) {
+            JsonNode value = fields == null ? null : fields.get(condition.getKey());
+            if (value == null || !matches(condition.getValue(), value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the scalar value satisfies the condition on its field.
+     */
+    public static boolean matches(JsonNode condition, JsonNode value) {
+        if (!value.isValueNode()) {
+            return false;
+        }
+        if (condition.isObject()) {
+            return value.isNumber() && inRange(condition, value.doubleValue());
+        }
+        if (!condition.isArray()) {
+            return equal(condition, value);
+        }
+        for (JsonNode element : condition) {
+            if (equal(element, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equal(JsonNode expected, JsonNode value) {
+        if (expected.isNumber() && value.isNumber()) {
+            return expected.doubleValue() == value.doubleValue();
+        }
+        return expected.equals(value);
+    }
+
+    /**
+     * Whether the number is within the bounds of the range condition, which must all be numbers.
+     */
+    public static boolean inRange(JsonNode range, double number) {
+        for (Map.Entry<String, JsonNode> bound : range.properties()) {
+            if (!bound.getValue().isNumber()) {
+                throw new IllegalArgumentException("Range bound " + bound.getKey() + " is not a number");
+            }
+            double value = bound.getValue().doubleValue();
+            boolean within =
+                    switch (bound.getKey()) {
+                        case "gt" -> number > value;
+                        case "gte" -> number >= value;
+                        case "lt" -> number < value;
+                        case "lte" -> number <= value;
+                        default -> throw new IllegalArgumentException("Unknown range bound " + bound.getKey());
+                    };
+            if (!within) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
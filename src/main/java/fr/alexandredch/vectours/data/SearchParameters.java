@@ -1,15 +1,43 @@
 package fr.alexandredch.vectours.data;
 
-public record SearchParameters(double[] searchedVector, boolean allowIVF, boolean usePQ, boolean useHNSW, int topK) {
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Parameters of a search. Larger {@code nprobe} and {@code efSearch} trade latency for recall, each query can pick its
+ * own up to the maximums below, which the store enforces.
+ *
+ * @param topK     number of results to return, at most {@link #MAX_TOP_K}
+ * @param nprobe   number of IVF and IVF-PQ clusters to scan, 0 for the index default, at most {@link #MAX_NPROBE}
+ * @param efSearch number of candidates kept while traversing the HNSW graph, 0 for the index default, at most
+ *                 {@link #MAX_EF_SEARCH}
+ * @param filter   metadata the results must match, null for none. IVF searches only return the matching vectors of
+ *                 their {@code nprobe} clusters
+ */
+public record SearchParameters(
+        float[] searchedVector,
+        boolean allowIVF,
+        boolean usePQ,
+        boolean useHNSW,
+        int topK,
+        int nprobe,
+        int efSearch,
+        @Nullable MetadataFilter filter) {
+
+    public static final int MAX_TOP_K = 1000;
+    public static final int MAX_NPROBE = 1024;
+    public static final int MAX_EF_SEARCH = 1024;
 
     public static class Builder {
-        private double[] searchedVector;
+        private float[] searchedVector;
         private boolean allowIVF = true;
         private boolean usePQ = false;
         private boolean useHNSW = false;
         private int topK = 10;
+        private int nprobe = 0;
+        private int efSearch = 0;
+        private @Nullable MetadataFilter filter;
 
-        public Builder searchedVector(double[] searchedVector) {
+        public Builder searchedVector(float[] searchedVector) {
             this.searchedVector = searchedVector;
             return this;
         }
@@ -34,8 +62,23 @@ public record SearchParameters(double[] searchedVector, boolean allowIVF, boolea
             return this;
         }
 
+        public Builder nprobe(int nprobe) {
+            this.nprobe = nprobe;
+            return this;
+        }
+
+        public Builder efSearch(int efSearch) {
+            this.efSearch = efSearch;
+            return this;
+        }
+
+        public Builder filter(@Nullable MetadataFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
         public SearchParameters build() {
-            return new SearchParameters(searchedVector, allowIVF, usePQ, useHNSW, topK);
+            return new SearchParameters(searchedVector, allowIVF, usePQ, useHNSW, topK, nprobe, efSearch, filter);
         }
     }
 }
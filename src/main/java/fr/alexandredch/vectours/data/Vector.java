@@ -5,7 +5,7 @@ import java.util.Arrays;
 import java.util.Objects;
 import org.jspecify.annotations.Nullable;
 
-public record Vector(String id, double[] values, @Nullable Metadata metadata) implements Serializable {
+public record Vector(String id, float[] values, @Nullable Metadata metadata) implements Serializable {
 
     @Override
     public String toString() {
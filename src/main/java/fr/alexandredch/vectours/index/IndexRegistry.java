@@ -0,0 +1,173 @@
+package fr.alexandredch.vectours.index;
+
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.hnsw.HNSWIndex;
+import fr.alexandredch.vectours.index.ivf.DefaultIVFIndex;
+import fr.alexandredch.vectours.index.ivfpq.IVFPQIndex;
+import fr.alexandredch.vectours.index.pq.VectorProductQuantization;
+import fr.alexandredch.vectours.store.StoreConfiguration;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Approximate indexes of a segment store, one set per vector dimension.
+ * <p>
+ * Indexes compare vectors of a single dimension, so the indexes of a dimension are created the first time a vector of
+ * that dimension is stored, and queries are routed to the indexes of their own dimension.
+ * <p>
+ * HNSW inserts are by far the most expensive updates, they run on their own executor, which can use several threads
+ * as the graph supports parallel inserts. Flat PQ codebooks and IVF-PQ lists are trained on their own executor too, so
+ * that the index updates and the startup do not wait for the training, and flat PQ searches scan their codes in
+ * parallel on the search pool.
+ */
+public final class IndexRegistry implements PersistentIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexRegistry.class);
+
+    private final SegmentStore segmentStore;
+    private final StoreConfiguration configuration;
+    private final Executor graphUpdateExecutor;
+    private final ForkJoinPool searchPool;
+    private final Executor trainingExecutor;
+    private final Map<Integer, Indexes> indexesByDimension = new ConcurrentHashMap<>();
+
+    public IndexRegistry(SegmentStore segmentStore, StoreConfiguration configuration) {
+        this(segmentStore, configuration, Runnable::run);
+    }
+
+    public IndexRegistry(SegmentStore segmentStore, StoreConfiguration configuration, Executor graphUpdateExecutor) {
+        this(segmentStore, configuration, graphUpdateExecutor, ForkJoinPool.commonPool(), Runnable::run);
+    }
+
+    public IndexRegistry(
+            SegmentStore segmentStore,
+            StoreConfiguration configuration,
+            Executor graphUpdateExecutor,
+            ForkJoinPool searchPool,
+            Executor trainingExecutor) {
+        this.segmentStore = segmentStore;
+        this.configuration = configuration;
+        this.graphUpdateExecutor = graphUpdateExecutor;
+        this.searchPool = searchPool;
+        this.trainingExecutor = trainingExecutor;
+    }
+
+    /**
+     * Creates the indexes of every dimension of the loaded segments.
+     */
+    public void initFromDisk() {
+        for (int dimension : segmentStore.getDimensions()) {
+            indexesByDimension.computeIfAbsent(dimension, this::createIndexes);
+        }
+    }
+
+    /**
+     * Adds a vector already stored in the segment store to the indexes of its dimension, creating them if needed.
+     * <p>
+     * Must be called by a single thread, the indexes of a new dimension are built from the segment store, which
+     * already holds the vector. The vector is inserted in the HNSW index on the graph update executor, with its
+     * current ordinal, as it may be replaced before the insert runs.
+     */
+    public void insertVector(Vector vector) {
+        Indexes indexes = indexesByDimension.get(vector.values().length);
+        if (indexes == null) {
+            indexesByDimension.put(vector.values().length, createIndexes(vector.values().length));
+            return;
+        }
+        int ordinal = segmentStore.getOrdinal(vector.id());
+        HNSWIndex hnsw = indexes.hnsw();
+        graphUpdateExecutor.execute(() -> {
+            // Nobody waits for the insert, a failure would otherwise go unnoticed
+            try {
+                hnsw.insertVector(vector, ordinal);
+            } catch (RuntimeException e) {
+                logger.error(
+                        "Failed to insert vector {} in HNSW index of dimension {}",
+                        vector.id(),
+                        vector.values().length,
+                        e);
+            }
+        });
+        indexes.ivf().insertVector(vector);
+        indexes.ivfPq().insertVector(vector);
+        indexes.pq().insertVector(vector);
+        indexes.pq().buildSubspaces();
+    }
+
+    /**
+     * Removes a vector deleted or replaced in the segment store from the indexes of its dimension.
+     *
+     * @param ordinal ordinal of the vector in the segment store before it was deleted
+     */
+    public void deleteVector(Vector vector, int ordinal) {
+        Indexes indexes = indexesByDimension.get(vector.values().length);
+        if (indexes == null) {
+            return;
+        }
+        indexes.ivf().deleteVector(ordinal);
+        indexes.ivfPq().deleteVector(ordinal);
+        indexes.hnsw().deleteVector(ordinal);
+        indexes.pq().deleteVector(ordinal);
+    }
+
+    /**
+     * Returns the indexes of vectors of this dimension, or null if no such vector was ever stored.
+     */
+    public @Nullable Indexes get(int dimension) {
+        return indexesByDimension.get(dimension);
+    }
+
+    public Collection<Indexes> getAll() {
+        return List.copyOf(indexesByDimension.values());
+    }
+
+    /**
+     * Saves every index, a failure is logged and does not prevent the other indexes from being saved: the index is
+     * rebuilt from the segments if its file is missing.
+     */
+    @Override
+    public void saveToDisk() {
+        for (Indexes indexes : indexesByDimension.values()) {
+            saveToDisk("IVF", indexes.dimension(), indexes.ivf());
+            saveToDisk("IVF-PQ", indexes.dimension(), indexes.ivfPq());
+            saveToDisk("HNSW", indexes.dimension(), indexes.hnsw());
+        }
+    }
+
+    private static void saveToDisk(String name, int dimension, PersistentIndex index) {
+        try {
+            index.saveToDisk();
+        } catch (RuntimeException e) {
+            logger.error("Failed to save {} index of dimension {} to disk", name, dimension, e);
+        }
+    }
+
+    private Indexes createIndexes(int dimension) {
+        logger.info("Creating indexes for dimension {}...", dimension);
+        DefaultIVFIndex ivf = new DefaultIVFIndex(segmentStore, configuration, dimension);
+        ivf.initFromDisk();
+
+        IVFPQIndex ivfPq = new IVFPQIndex(segmentStore, configuration, dimension, trainingExecutor);
+        ivfPq.initFromDisk();
+
+        HNSWIndex hnsw = new HNSWIndex(segmentStore, configuration.distanceMetric(), dimension);
+        hnsw.initFromDisk(graphUpdateExecutor);
+
+        VectorProductQuantization pq =
+                new VectorProductQuantization(segmentStore, dimension, configuration, searchPool, trainingExecutor);
+        pq.buildSubspaces();
+        logger.info("Finished creating indexes for dimension {}.", dimension);
+        return new Indexes(dimension, ivf, ivfPq, hnsw, pq);
+    }
+
+    public record Indexes(
+            int dimension, DefaultIVFIndex ivf, IVFPQIndex ivfPq, HNSWIndex hnsw, VectorProductQuantization pq) {}
+}
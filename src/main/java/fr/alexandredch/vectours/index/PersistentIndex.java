@@ -0,0 +1,12 @@
+package fr.alexandredch.vectours.index;
+
+/**
+ * Index saved to disk along with the segments, so that it is reloaded at startup instead of being rebuilt.
+ */
+public interface PersistentIndex {
+
+    /**
+     * Writes the index to disk if it changed since it was last saved or loaded.
+     */
+    void saveToDisk();
+}
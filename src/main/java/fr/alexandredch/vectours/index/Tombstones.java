@@ -0,0 +1,41 @@
+package fr.alexandredch.vectours.index;
+
+import java.util.Arrays;
+
+/**
+ * Ordinals of the entries deleted from an index and not purged yet, as a bit set.
+ * <p>
+ * Written under the lock of the index and read by searches without locking: the words are only replaced by larger
+ * copies, and {@link #count()} is volatile, so a search reading it first sees every ordinal added before.
+ */
+public final class Tombstones {
+
+    private long[] words = new long[0];
+    private volatile int count;
+
+    public void add(int ordinal) {
+        if (ordinal < 0 || contains(ordinal)) {
+            return;
+        }
+        int word = ordinal >>> 6;
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+        }
+        words[word] |= 1L << ordinal;
+        count++;
+    }
+
+    public boolean contains(int ordinal) {
+        long[] current = words;
+        int word = ordinal >>> 6;
+        return ordinal >= 0 && word < current.length && (current[word] & (1L << ordinal)) != 0;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+}
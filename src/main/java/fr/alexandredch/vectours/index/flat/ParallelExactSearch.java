@@ -0,0 +1,97 @@
+package fr.alexandredch.vectours.index.flat;
+
+import fr.alexandredch.vectours.data.SearchResult;
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.math.TopKHeap;
+import fr.alexandredch.vectours.store.segment.Segment;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntPredicate;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Exact (brute-force) search, sharded by segment.
+ * <p>
+ * Each segment is scanned by its own fork-join task into a primitive {@link TopKHeap}, the per-segment top-k are then
+ * merged and {@link SearchResult}s are only created for the final k vectors.
+ */
+public final class ParallelExactSearch {
+
+    private final SegmentStore segmentStore;
+    private final DistanceMetric metric;
+    private final ForkJoinPool forkJoinPool;
+
+    public ParallelExactSearch(SegmentStore segmentStore, DistanceMetric metric, ForkJoinPool forkJoinPool) {
+        this.segmentStore = segmentStore;
+        this.metric = metric;
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    public List<SearchResult> search(float[] searchedVector, int topK) {
+        return search(searchedVector, topK, null);
+    }
+
+    /**
+     * Same as {@link #search(float[], int)}, only comparing the query to the vectors whose ordinal is accepted by the
+     * filter, which is tested before reading the vectors.
+     */
+    public List<SearchResult> search(float[] searchedVector, int topK, @Nullable IntPredicate filter) {
+        if (topK <= 0) {
+            return List.of();
+        }
+
+        List<ForkJoinTask<SegmentTopK>> tasks = new ArrayList<>();
+        for (Segment segment : segmentStore.getSegments()) {
+            tasks.add(forkJoinPool.submit(() -> searchSegment(segment, searchedVector, topK, filter)));
+        }
+
+        // Merge the partial results, heap ids index the candidates list
+        List<Vector> candidates = new ArrayList<>();
+        TopKHeap merged = new TopKHeap(topK);
+        for (ForkJoinTask<SegmentTopK> task : tasks) {
+            SegmentTopK segmentTopK = task.join();
+            TopKHeap heap = segmentTopK.heap();
+            for (int i = 0; i < heap.size(); i++) {
+                // Null if the vector was deleted since the segment was scanned
+                Vector vector = segmentTopK.segment().getVectorAt(heap.id(i));
+                if (vector != null && merged.offer(candidates.size(), heap.distance(i))) {
+                    candidates.add(vector);
+                }
+            }
+        }
+
+        List<SearchResult> results = new ArrayList<>(merged.size());
+        for (int index : merged.sortedIndexes()) {
+            Vector vector = candidates.get(merged.id(index));
+            results.add(new SearchResult(vector.id(), merged.distance(index), vector.metadata()));
+        }
+        return results;
+    }
+
+    /**
+     * Scans the slots of the segment, heap ids are slots: the segment is read by slot while it is appended to, and no
+     * vector is copied.
+     */
+    private SegmentTopK searchSegment(
+            Segment segment, float[] searchedVector, int topK, @Nullable IntPredicate filter) {
+        int slotCount = segment.slotCount();
+        TopKHeap heap = new TopKHeap(Math.min(topK, slotCount));
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (filter != null && !filter.test(segment.ordinal(slot))) {
+                continue;
+            }
+            Vector vector = segment.getVectorAt(slot);
+            if (vector == null || vector.values().length != searchedVector.length) {
+                continue;
+            }
+            heap.offer(slot, metric.distance(vector.values(), searchedVector));
+        }
+        return new SegmentTopK(segment, heap);
+    }
+
+    private record SegmentTopK(Segment segment, TopKHeap heap) {}
+}
@@ -1,157 +1,1300 @@
 package fr.alexandredch.vectours.index.hnsw;
 
 import fr.alexandredch.vectours.data.Vector;
-import fr.alexandredch.vectours.math.Vectors;
+import fr.alexandredch.vectours.index.PersistentIndex;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.math.TopKHeap;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * HNSWIndex
  * <p>
  * Implementation of the HNSW (Hierarchical Navigable Small World) algorithm for approximate nearest neighbor search.
  * Each vector is represented as a node in a multi-layer graph, where edges connect nodes based on their proximity.
+ * <p>
+ * Nodes are dense ints assigned on insertion. The graph only holds primitive arrays indexed by node: the values of the
+ * vectors, their ordinal in the segment store, and fixed-stride neighbor blocks of a count followed by the neighbors.
+ * A hop reads one neighbor block and the values of the neighbors, the segment store is only read for the vectors of
+ * the results. Values are stored in pages of {@link #PAGE_SIZE} nodes, so that offsets stay within an int whatever
+ * the dimension, and growing the graph allocates new pages instead of copying the values. The graph holds at most
+ * {@link #MAX_NODES} nodes, the most the layer 0 neighbor blocks can address.
+ * <p>
+ * Neighbors are chosen with the heuristic of the HNSW paper (Malkov and Yashunin, algorithm 4): a candidate is only
+ * linked if it is closer to the node than to every neighbor already selected, which keeps edges towards the different
+ * directions around the node instead of M edges into the same dense region. Nodes have at most {@link #M} neighbors
+ * on the upper layers and {@link #M0} on layer 0, a neighbor list exceeding its limit after a new link is pruned with
+ * the same heuristic.
+ * <p>
+ * Inserts, deletes and searches can run from any number of threads. Each neighbor block is read and written under the
+ * lock of its node, one of {@link #LOCK_STRIPES} monitors, and the values of a node are written before it is linked,
+ * so a thread reaching a node through a neighbor block also sees its values. Operations share a read lock while the
+ * arrays are only grown under its write lock, when a new node does not fit, which leaves the node arrays contiguous.
+ * The entry point and its layer are published together in a single volatile field, after the node is linked.
+ * <p>
+ * Node numbers are never reused, deleted nodes keep their room in the arrays until {@link #compact()} renumbers the
+ * live nodes, once they exceed {@link #MAX_DELETED_RATIO} of the graph, so that its size and the scans of all the
+ * nodes follow the live vectors rather than the history of the writes.
+ * <p>
+ * The graph is saved in {@link #HNSW_INDEX_FILE_PREFIX} followed by the dimension, next to the segments: the ordinal
+ * and the neighbor blocks of each node as little-endian ints, then the values of the nodes. {@link #initFromDisk()}
+ * streams the file through a buffer and bulk copies each section into its arrays instead of inserting every vector
+ * again.
  */
-public final class HNSWIndex {
+public final class HNSWIndex implements PersistentIndex {
+
+    public static final String HNSW_INDEX_FILE_PREFIX = "hnsw_index_";
+    public static final double MAX_DELETED_RATIO = 0.1;
 
     private static final int MAX_LAYER = 16;
     private static final int M = 16;
+    private static final int M0 = 2 * M;
     private static final int EF_CONSTRUCTION = 200;
     private static final int EF_SEARCH = 50;
+    // Nodes tested against a search filter to estimate the share of the graph it accepts
+    private static final int FILTER_SAMPLE_SIZE = 256;
+    // Normalization of the exponential layer distribution, so that each layer holds about 1/M of the nodes below it
+    private static final double LEVEL_MULTIPLIER = 1 / Math.log(M);
+
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int INITIAL_CAPACITY = PAGE_SIZE;
+    private static final int MAX_NODES = Integer.MAX_VALUE / (M0 + 1) / PAGE_SIZE * PAGE_SIZE;
+    private static final int LOCK_STRIPES = 1024;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int NO_NODE = -1;
+
+    // "HNSW", followed by the metric ordinal, the dimension, M and M0
+    private static final int FILE_MAGIC = 0x48534E57;
+    private static final int FILE_BUFFER_SIZE = 1 << 20;
+
+    private static final Logger logger = LoggerFactory.getLogger(HNSWIndex.class);
 
     private final SegmentStore segmentStore;
+    private final DistanceMetric metric;
+    private final int dimension;
 
-    // Multi-layer graph: layer -> node (vector id) -> list of neighbor IDs
-    private final List<Map<String, Set<String>>> layers = new ArrayList<>();
+    // Node n is guarded by nodeLocks[n % LOCK_STRIPES], lock guards nodesByOrdinal and the entry point updates
+    private final Object[] nodeLocks = new Object[LOCK_STRIPES];
+    private final Object lock = new Object();
+    // Buffers of the traversals, borrowed by each operation, at most PARALLELISM of them are kept in between
+    private final Queue<Traversal> traversals = new ArrayBlockingQueue<>(PARALLELISM);
+    // Read locked by every operation, write locked to replace the arrays by larger ones
+    private final ReadWriteLock resizeLock = new ReentrantReadWriteLock();
 
-    private String entryPointId;
+    // Values of node n, starting at (n % PAGE_SIZE) * dimension in page n / PAGE_SIZE
+    private float[][] vectorPages;
+    // Segment store ordinal of each node, negative once its vector was deleted or while the node is being added
+    private int[] ordinals;
+    // Layer 0 neighbors of node n: their count at n * (M0 + 1), followed by the neighbors
+    private int[] baseLinks;
+    // Blocks of M + 1 ints for layers 1 to the level of node n, laid out like baseLinks, null for nodes of layer 0 only
+    private int[][] upperLinks;
+    // Node of each segment store ordinal in pages of PAGE_SIZE ordinals, NO_NODE for the ordinals of other dimensions
+    // or deleted vectors, and null for the pages without any ordinal of this dimension
+    private int[][] nodesByOrdinal = new int[0][];
+    // Ordinals deleted before their vector was inserted by another thread, which must then not be inserted
+    private final BitSet deletedBeforeInsertion = new BitSet();
+    private final AtomicInteger nodeCount = new AtomicInteger();
 
-    public HNSWIndex(SegmentStore segmentStore) {
+    private volatile @Nullable EntryPoint entryPoint;
+    // Progress of the running bulk insert, no bulk insert is running while the total is 0
+    private final AtomicInteger bulkInsertedCount = new AtomicInteger();
+    private volatile int bulkInsertTotal;
+    // Whether the graph changed since it was last saved or loaded
+    private volatile boolean dirty = false;
+    // Incremented by each compaction, which renumbers the nodes
+    private volatile int compactions;
+
+    public HNSWIndex(SegmentStore segmentStore, int dimension) {
+        this(segmentStore, DistanceMetric.L2, dimension);
+    }
+
+    public HNSWIndex(SegmentStore segmentStore, DistanceMetric metric, int dimension) {
         this.segmentStore = segmentStore;
+        this.metric = metric;
+        this.dimension = dimension;
+        this.vectorPages = new float[][] {new float[PAGE_SIZE * dimension]};
+        this.ordinals = new int[INITIAL_CAPACITY];
+        Arrays.fill(ordinals, -1);
+        this.baseLinks = new int[INITIAL_CAPACITY * (M0 + 1)];
+        this.upperLinks = new int[INITIAL_CAPACITY][];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            nodeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Loads the graph saved by {@link #saveToDisk()}, then inserts the vectors it does not hold, every vector if it was
+     * never saved.
+     * <p>
+     * Saved nodes whose vector was deleted or replaced since are removed from the graph, and the vectors saved in the
+     * segments after the graph, including the ones replayed from the WAL, are inserted.
+     */
+    public void initFromDisk() {
+        initFromDisk(Runnable::run);
+    }
 
-        for (int i = 0; i <= MAX_LAYER; i++) {
-            layers.add(new HashMap<>());
+    /**
+     * Same as {@link #initFromDisk()}, inserting the vectors missing from the graph in bulk on the executor.
+     */
+    public void initFromDisk(Executor executor) {
+        Path path = indexPath();
+        if (Files.exists(path)) {
+            readFromDisk(path);
+            compact();
         }
+        List<Vector> missing = new ArrayList<>();
+        for (Vector vector : segmentStore.getAllVectors(dimension)) {
+            if (nodeOf(segmentStore.getOrdinal(vector.id())) == NO_NODE) {
+                missing.add(vector);
+            }
+        }
+        insertVectors(missing, executor);
+    }
+
+    /**
+     * Inserts the vectors with {@link #PARALLELISM} tasks on the executor, each taking the next vector of the list, and
+     * waits for them.
+     * <p>
+     * Used to build the graph of the stored vectors on startup. The arrays are grown for all the vectors beforehand,
+     * and {@link #buildProgress()} reports the share of the vectors inserted so far, which is also logged every tenth.
+     */
+    public void insertVectors(List<Vector> vectors, Executor executor) {
+        if (vectors.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        ensureCapacity(nodeCount.get() + vectors.size() - 1, 0);
+        bulkInsertedCount.set(0);
+        bulkInsertTotal = vectors.size();
+        int logStep = Math.max(1, vectors.size() / 10);
+
+        AtomicInteger next = new AtomicInteger();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(PARALLELISM);
+        for (int t = 0; t < PARALLELISM; t++) {
+            tasks.add(CompletableFuture.runAsync(
+                    () -> {
+                        for (int i = next.getAndIncrement(); i < vectors.size(); i = next.getAndIncrement()) {
+                            Vector vector = vectors.get(i);
+                            insertVector(vector, segmentStore.getOrdinal(vector.id()));
+                            int inserted = bulkInsertedCount.incrementAndGet();
+                            if (inserted % logStep == 0) {
+                                logger.info(
+                                        "HNSW index of dimension {}: inserted {}/{} vectors",
+                                        dimension,
+                                        inserted,
+                                        vectors.size());
+                            }
+                        }
+                    },
+                    executor));
+        }
+        try {
+            CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+        } finally {
+            bulkInsertTotal = 0;
+        }
+        logger.info(
+                "Inserted {} vectors in HNSW index of dimension {} in {} ms",
+                vectors.size(),
+                dimension,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
     }
 
-    public List<Vector> search(double[] vector, int nprobe) {
+    /**
+     * Returns the share of the vectors of the running {@link #insertVectors(List, Executor)} already inserted, 1 if
+     * none is running.
+     */
+    public double buildProgress() {
+        int total = bulkInsertTotal;
+        return total == 0 ? 1 : Math.min(1, (double) bulkInsertedCount.get() / total);
+    }
+
+    public boolean canSearch() {
+        return entryPoint != null;
+    }
+
+    public List<Vector> search(float[] vector, int nprobe) {
         return search(vector, nprobe, EF_SEARCH);
     }
 
-    public List<Vector> search(double[] vector, int nprobe, int efSearch) {
-        List<String> currentEntryPointId = List.of(entryPointId);
+    /**
+     * @param efSearch number of candidates kept while traversing layer 0, at least {@code nprobe}, the default if not
+     *                 positive
+     */
+    public List<Vector> search(float[] vector, int nprobe, int efSearch) {
+        return search(vector, nprobe, efSearch, null);
+    }
 
-        // Find the closest neighbor in each layer up to the entry point layer
-        for (int l = MAX_LAYER; l >= 1; l--) {
-            currentEntryPointId = getNeighbors(new Vector("dummy", vector, null), currentEntryPointId, 1, l);
+    /**
+     * Same as {@link #search(float[], int, int)}, only returning the vectors whose ordinal in the segment store is
+     * accepted by the filter.
+     * <p>
+     * Rejected nodes are still traversed to reach the accepted ones, only the accepted ones are kept in the results, so
+     * the traversal goes on until it found {@code efSearch} of them. The fewer nodes the filter accepts, the more nodes
+     * are visited: the share of accepted nodes is estimated on {@link #FILTER_SAMPLE_SIZE} nodes, and the accepted
+     * nodes are scanned exhaustively instead when they are fewer than the candidates to keep, or when the traversal
+     * visits more nodes than their estimated count.
+     */
+    public List<Vector> search(float[] vector, int nprobe, int efSearch, @Nullable IntPredicate filter) {
+        if (nprobe <= 0 || vector.length != dimension) {
+            return List.of();
         }
+        Traversal traversal = borrowTraversal();
+        resizeLock.readLock().lock();
+        try {
+            EntryPoint entry = entryPoint;
+            if (entry == null) {
+                return List.of();
+            }
+            TopKHeap entryPoints = traversal.entryPoints;
+            TopKHeap results = traversal.results;
+            entryPoints.clear(1);
+            entryPoints.offer(entry.node(), distance(vector, entry.node()));
+
+            // Find the closest neighbor in each layer down to layer 1
+            for (int l = entry.layer(); l >= 1; l--) {
+                searchLayer(traversal, vector, entryPoints, results, 1, l);
+                TopKHeap closestInLayer = results;
+                results = entryPoints;
+                entryPoints = closestInLayer;
+            }
 
-        return getNeighbors(new Vector("dummy", vector, null), currentEntryPointId, efSearch, 0).stream()
-                .sorted(Comparator.comparingDouble(id -> Vectors.squaredEuclidianDistance(
-                        vector, segmentStore.getVectorById(id).values())))
-                .limit(nprobe)
-                .map(segmentStore::getVectorById)
-                .toList();
+            int ef = Math.max(efSearch > 0 ? efSearch : EF_SEARCH, nprobe);
+            if (filter == null) {
+                searchLayer(traversal, vector, entryPoints, results, ef, 0);
+            } else {
+                // The ordinal is read once, a concurrent delete may set it to -1 after the caller checked it
+                IntPredicate accepted = node -> {
+                    int ordinal = ordinals[node];
+                    return ordinal >= 0 && filter.test(ordinal);
+                };
+                int nodes = Math.min(nodeCount.get(), ordinals.length);
+                int estimatedMatches = estimateMatches(accepted, nodes);
+                if (estimatedMatches <= ef
+                        || !searchLayer(traversal, vector, entryPoints, results, ef, 0, accepted, estimatedMatches)) {
+                    scan(vector, results, ef, accepted, nodes);
+                }
+            }
+            List<Vector> closest = new ArrayList<>(nprobe);
+            for (int index : results.sortedIndexes()) {
+                if (closest.size() == nprobe) {
+                    break;
+                }
+                // Null if the vector was deleted since the search
+                Vector result = segmentStore.getVector(ordinals[results.id(index)]);
+                if (result != null) {
+                    closest.add(result);
+                }
+            }
+            return closest;
+        } finally {
+            resizeLock.readLock().unlock();
+            releaseTraversal(traversal);
+        }
     }
 
     public void insertVector(Vector vector) {
+        insertVector(vector, segmentStore.getOrdinal(vector.id()));
+    }
+
+    /**
+     * Adds the vector stored at this ordinal in the segment store, unless it is already indexed or was deleted by
+     * {@link #deleteVector(int)} before this call.
+     */
+    public void insertVector(Vector vector, int ordinal) {
+        if (vector.values().length != dimension) {
+            throw new IllegalArgumentException("Vector of dimension " + vector.values().length
+                    + " inserted in HNSW index of dimension " + dimension);
+        }
+        if (ordinal < 0) {
+            return;
+        }
         int layer = randomLayer();
+        int node;
+        while (true) {
+            int generation = compactions;
+            node = nextNode();
+            ensureCapacity(node, ordinal);
+            resizeLock.readLock().lock();
+            if (generation == compactions) {
+                break;
+            }
+            // The nodes were renumbered meanwhile, this number may now belong to another node
+            resizeLock.readLock().unlock();
+        }
+        Traversal traversal = borrowTraversal();
+        try {
+            EntryPoint entry = addNode(node, vector.values(), ordinal, layer);
+            if (entry == null) {
+                return;
+            }
+            dirty = true;
+
+            TopKHeap entryPoints = traversal.entryPoints;
+            TopKHeap candidates = traversal.results;
+            entryPoints.clear(1);
+            entryPoints.offer(entry.node(), distance(vector.values(), entry.node()));
+
+            // Find the nearest neighbor in the selected layer
+            for (int l = entry.layer(); l > layer; l--) {
+                searchLayer(traversal, vector.values(), entryPoints, candidates, 1, l);
+                TopKHeap closestInLayer = candidates;
+                candidates = entryPoints;
+                entryPoints = closestInLayer;
+            }
 
-        // Add the node to all layers up to the selected layer
-        for (int i = 0; i <= layer; i++) {
-            layers.get(i).put(vector.id(), new HashSet<>());
+            // Insert the node at each layer from the selected layer down to layer 0
+            for (int l = Math.min(layer, entry.layer()); l >= 0; l--) {
+                searchLayer(traversal, vector.values(), entryPoints, candidates, EF_CONSTRUCTION, l);
+                int[] neighbors = selectNeighbors(candidates, M);
+                synchronized (lockOf(node)) {
+                    int[] links = links(node, l);
+                    int offset = linksOffset(node, l);
+                    System.arraycopy(neighbors, 0, links, offset + 1, neighbors.length);
+                    links[offset] = neighbors.length;
+                }
+
+                for (int neighbor : neighbors) {
+                    addLink(traversal, neighbor, node, l);
+                }
+                TopKHeap closestInLayer = candidates;
+                candidates = entryPoints;
+                entryPoints = closestInLayer;
+            }
+
+            if (layer > entry.layer()) {
+                synchronized (lock) {
+                    // Another node may have become the entry point meanwhile, or this one been deleted
+                    EntryPoint current = entryPoint;
+                    if (!isDeleted(node) && (current == null || layer > current.layer())) {
+                        entryPoint = new EntryPoint(node, layer);
+                    }
+                }
+            }
+        } finally {
+            resizeLock.readLock().unlock();
+            releaseTraversal(traversal);
         }
+    }
+
+    /**
+     * Removes the node of the vector with this ordinal in the segment store, deleted or replaced since it was inserted.
+     * <p>
+     * The node is not kept as a tombstone that would keep taking room in neighbor lists: its edges are removed right
+     * away and the graph is repaired around it, each former neighbor being linked to the closest other former
+     * neighbors it has room for. Pruned edges are one-way, the remaining edges towards the deleted node are skipped by
+     * searches and dropped when their list is pruned.
+     */
+    public void deleteVector(int ordinal) {
+        resizeLock.readLock().lock();
+        try {
+            int node;
+            synchronized (lock) {
+                node = nodeOf(ordinal);
+                if (node == NO_NODE) {
+                    // Its insertion is still queued on another thread
+                    deletedBeforeInsertion.set(ordinal);
+                    return;
+                }
+                setNodeOf(ordinal, NO_NODE);
+                ordinals[node] = -1;
+            }
+            dirty = true;
+            removeNode(node);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
 
-        if (entryPointId == null) {
-            entryPointId = vector.id();
+    /**
+     * Writes the ordinal and the neighbor blocks of every node to a temporary file, then moves it over the index file
+     * so that a crash never leaves a partial graph behind.
+     * <p>
+     * Sections are written straight from the arrays under the read lock, without copying the graph, while inserts go
+     * on: each block is copied under the lock of its node into a buffer of one block, edges towards nodes added after
+     * the save started are dropped. Only the levels of the nodes are kept until the upper blocks are written.
+     */
+    @Override
+    public void saveToDisk() {
+        if (!dirty) {
             return;
         }
 
-        List<String> currentEntryPointId = List.of(entryPointId);
+        int count;
+        Path path = indexPath();
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        resizeLock.readLock().lock();
+        try {
+            dirty = false;
+            // Read before the count, a node is numbered before it can become the entry point
+            EntryPoint entry = entryPoint;
+            count = Math.min(nodeCount.get(), ordinals.length);
+            Files.createDirectories(path.getParent());
+            try (FileChannel channel = FileChannel.open(
+                    temporaryPath,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                int[] header = {
+                    FILE_MAGIC,
+                    metric.ordinal(),
+                    dimension,
+                    M,
+                    M0,
+                    count,
+                    entry == null ? NO_NODE : entry.node(),
+                    entry == null ? 0 : entry.layer()
+                };
+                write(channel, buffer, header, header.length);
+                write(channel, buffer, ordinals, count);
 
-        // Find the nearest neighbor in the selected layer
-        for (int l = MAX_LAYER; l > layer; l--) {
-            currentEntryPointId = getNeighbors(vector, currentEntryPointId, 1, l);
+                int[] levels = new int[count];
+                int[] block = new int[MAX_LAYER * (M + 1)];
+                for (int node = 0; node < count; node++) {
+                    synchronized (lockOf(node)) {
+                        levels[node] = level(node);
+                        System.arraycopy(baseLinks, node * (M0 + 1), block, 0, M0 + 1);
+                    }
+                    dropLinksFrom(block, 0, count);
+                    write(channel, buffer, block, M0 + 1);
+                }
+                write(channel, buffer, levels, count);
+                for (int node = 0; node < count; node++) {
+                    if (levels[node] == 0) {
+                        continue;
+                    }
+                    synchronized (lockOf(node)) {
+                        System.arraycopy(upperLinks[node], 0, block, 0, levels[node] * (M + 1));
+                    }
+                    for (int l = 1; l <= levels[node]; l++) {
+                        dropLinksFrom(block, (l - 1) * (M + 1), count);
+                    }
+                    write(channel, buffer, block, levels[node] * (M + 1));
+                }
+                for (int page = 0; page < pageCount(count); page++) {
+                    write(channel, buffer, vectorPages[page], nodesInPage(page, count) * dimension);
+                }
+                flush(channel, buffer);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            throw new RuntimeException("Failed to write HNSW index to disk", e);
+        } finally {
+            resizeLock.readLock().unlock();
         }
+        logger.info("Saved HNSW index of {} nodes for dimension {} to disk", count, dimension);
+    }
 
-        // Insert the node at each layer from the selected layer down to the entry point layer
-        for (int l = layer; l >= 0; l--) {
-            List<String> neighbors = getNeighbors(vector, currentEntryPointId, EF_CONSTRUCTION, l);
+    /**
+     * Renumbers the live nodes from 0 in the order of their numbers, if deleted nodes exceed
+     * {@link #MAX_DELETED_RATIO} of the graph, and releases the pages no longer needed.
+     * <p>
+     * Nodes only move to lower numbers, so the arrays are compacted in place under the write lock, edges towards
+     * deleted nodes being dropped on the way.
+     *
+     * @return whether the graph was compacted
+     */
+    public boolean compact() {
+        int count;
+        int deleted = 0;
+        resizeLock.readLock().lock();
+        try {
+            count = Math.min(nodeCount.get(), ordinals.length);
+            for (int node = 0; node < count; node++) {
+                if (isDeleted(node)) {
+                    deleted++;
+                }
+            }
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+        if (deleted == 0 || deleted <= count * MAX_DELETED_RATIO) {
+            return false;
+        }
 
-            // Select M neighbors (temp)
-            List<String> selectedNeighbors = neighbors.subList(0, Math.min(M, neighbors.size()));
+        int live = 0;
+        resizeLock.writeLock().lock();
+        try {
+            count = Math.min(nodeCount.get(), ordinals.length);
+            int[] renumbered = new int[count];
+            for (int node = 0; node < count; node++) {
+                renumbered[node] = isDeleted(node) ? NO_NODE : live++;
+            }
+            for (int node = 0; node < count; node++) {
+                int target = renumbered[node];
+                if (target == NO_NODE) {
+                    continue;
+                }
+                System.arraycopy(
+                        vectorPages[node >>> PAGE_SHIFT],
+                        pageOffset(node),
+                        vectorPages[target >>> PAGE_SHIFT],
+                        pageOffset(target),
+                        dimension);
+                ordinals[target] = ordinals[node];
+                setNodeOf(ordinals[target], target);
+                renumberLinks(baseLinks, node * (M0 + 1), target * (M0 + 1), renumbered);
+                upperLinks[target] = upperLinks[node];
+                for (int l = 1; l <= level(target); l++) {
+                    renumberLinks(upperLinks[target], (l - 1) * (M + 1), (l - 1) * (M + 1), renumbered);
+                }
+            }
+            Arrays.fill(ordinals, live, count, -1);
+            Arrays.fill(baseLinks, live * (M0 + 1), count * (M0 + 1), 0);
+            Arrays.fill(upperLinks, live, count, null);
 
-            for (String neighborId : selectedNeighbors) {
-                // Ensure neighbor exists in this layer (it might have been assigned to a lower layer)
-                layers.get(l).computeIfAbsent(neighborId, k -> new HashSet<>());
+            // Keeps room to grow, the capacity of twice the live nodes
+            int capacity = Math.max(1, pageCount(2 * live)) * PAGE_SIZE;
+            if (capacity < ordinals.length) {
+                vectorPages = Arrays.copyOf(vectorPages, capacity / PAGE_SIZE);
+                ordinals = Arrays.copyOf(ordinals, capacity);
+                baseLinks = Arrays.copyOf(baseLinks, capacity * (M0 + 1));
+                upperLinks = Arrays.copyOf(upperLinks, capacity);
+            }
 
-                layers.get(l).get(neighborId).add(vector.id());
-                layers.get(l).get(vector.id()).add(neighborId);
+            EntryPoint entry = entryPoint;
+            entryPoint = entry == null || renumbered[entry.node()] == NO_NODE
+                    ? null
+                    : new EntryPoint(renumbered[entry.node()], entry.layer());
+            nodeCount.set(live);
+            compactions++;
+            dirty = true;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+        logger.info("Compacted HNSW index of dimension {} from {} to {} nodes", dimension, count, live);
+        return true;
+    }
+
+    /**
+     * Moves the neighbor block at {@code from} to {@code to}, which is not after it, renumbering the neighbors and
+     * dropping the deleted ones.
+     */
+    private static void renumberLinks(int[] links, int from, int to, int[] renumbered) {
+        int count = links[from];
+        int kept = 0;
+        for (int i = 1; i <= count; i++) {
+            int neighbor = renumbered[links[from + i]];
+            if (neighbor != NO_NODE) {
+                links[to + 1 + kept++] = neighbor;
+            }
+        }
+        links[to] = kept;
+    }
 
-                if (layers.get(l).get(neighborId).size() > M) {
-                    // Prune the list of neighbors
+    /**
+     * Removes the edges of a deleted node and repairs the graph around it, then moves the entry point if it was this
+     * node.
+     */
+    private void removeNode(int node) {
+        Traversal traversal = borrowTraversal();
+        try {
+            for (int l = 0; l <= level(node); l++) {
+                int[] orphans;
+                synchronized (lockOf(node)) {
+                    int[] links = links(node, l);
+                    int offset = linksOffset(node, l);
+                    orphans = Arrays.copyOfRange(links, offset + 1, offset + 1 + links[offset]);
+                    links[offset] = 0;
                 }
+                for (int orphan : orphans) {
+                    removeLink(orphan, node, l);
+                }
+                repair(traversal, orphans, l);
+            }
+        } finally {
+            releaseTraversal(traversal);
+        }
+
+        synchronized (lock) {
+            EntryPoint entry = entryPoint;
+            if (entry != null && entry.node() == node) {
+                entryPoint = highestNode(Math.min(nodeCount.get(), ordinals.length));
             }
-            currentEntryPointId = selectedNeighbors;
         }
     }
 
-    private List<String> getNeighbors(Vector vector, List<String> entrypoints, int count, int layer) {
-        Set<String> visited = new HashSet<>();
-        Queue<VectorWithDistance> candidates =
-                new PriorityQueue<>(Comparator.comparingDouble(VectorWithDistance::distance));
-        Queue<VectorWithDistance> results = new PriorityQueue<>(
-                Comparator.comparingDouble(VectorWithDistance::distance).reversed());
+    /**
+     * Returns a live node of the highest non-empty layer, which reaches the whole graph, or null if there is none.
+     */
+    private @Nullable EntryPoint highestNode(int count) {
+        EntryPoint highest = null;
+        for (int candidate = 0; candidate < count; candidate++) {
+            if (!isDeleted(candidate) && (highest == null || level(candidate) > highest.layer())) {
+                highest = new EntryPoint(candidate, level(candidate));
+            }
+        }
+        return highest;
+    }
 
-        for (String entrypoint : entrypoints) {
-            double distance = Vectors.squaredEuclidianDistance(
-                    vector.values(), segmentStore.getVectorById(entrypoint).values());
-            visited.add(entrypoint);
-            candidates.add(new VectorWithDistance(segmentStore.getVectorById(entrypoint), distance));
-            results.add(new VectorWithDistance(segmentStore.getVectorById(entrypoint), distance));
+    /**
+     * Loads the graph of the file into the arrays, unless the file does not match the configuration of the index.
+     */
+    private void readFromDisk(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // Streamed through a buffer, a file of a large graph does not fit in a single mapping
+            ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            int[] header = new int[8];
+            read(channel, buffer, header, header.length);
+            if (header[0] != FILE_MAGIC) {
+                logger.warn("Unsupported HNSW index file format: {}, rebuilding", path);
+                return;
+            }
+            if (header[1] != metric.ordinal() || header[2] != dimension) {
+                logger.warn("HNSW index file {} holds another metric or dimension, rebuilding", path);
+                return;
+            }
+            if (header[3] != M || header[4] != M0) {
+                logger.warn("HNSW index file {} was built with other neighbor limits, rebuilding", path);
+                return;
+            }
+            int count = header[5];
+            int entryNode = header[6];
+            int entryLayer = header[7];
+            long sectionsSize = (long) count * (M0 + 3 + dimension) * Integer.BYTES;
+            if (count < 0 || count > MAX_NODES || sectionsSize > channel.size() - header.length * Integer.BYTES) {
+                logger.warn("Truncated HNSW index file {}, rebuilding", path);
+                return;
+            }
+
+            int capacity = Math.max(1, pageCount(count)) * PAGE_SIZE;
+            int[] loadedOrdinals = new int[capacity];
+            Arrays.fill(loadedOrdinals, -1);
+            read(channel, buffer, loadedOrdinals, count);
+            int[] loadedBaseLinks = new int[capacity * (M0 + 1)];
+            read(channel, buffer, loadedBaseLinks, count * (M0 + 1));
+            int[] levels = new int[count];
+            read(channel, buffer, levels, count);
+            int[][] loadedUpperLinks = new int[capacity][];
+            boolean valid = entryNode == NO_NODE
+                    || (entryNode >= 0 && entryNode < count && entryLayer >= 0 && entryLayer <= MAX_LAYER);
+            for (int node = 0; valid && node < count; node++) {
+                valid = levels[node] >= 0
+                        && levels[node] <= MAX_LAYER
+                        && validLinks(loadedBaseLinks, node * (M0 + 1), M0, count);
+                if (valid && levels[node] > 0) {
+                    loadedUpperLinks[node] = new int[levels[node] * (M + 1)];
+                    read(channel, buffer, loadedUpperLinks[node], loadedUpperLinks[node].length);
+                    for (int l = 1; valid && l <= levels[node]; l++) {
+                        valid = validLinks(loadedUpperLinks[node], (l - 1) * (M + 1), M, count);
+                    }
+                }
+            }
+            if (!valid || (entryNode != NO_NODE && entryLayer != levels[entryNode])) {
+                logger.warn("Corrupted HNSW index file {}, rebuilding", path);
+                return;
+            }
+            float[][] loadedVectorPages = allocatePages(new float[0][], capacity / PAGE_SIZE);
+            for (int page = 0; page < pageCount(count); page++) {
+                read(channel, buffer, loadedVectorPages[page], nodesInPage(page, count) * dimension);
+            }
+
+            resizeLock.writeLock().lock();
+            try {
+                vectorPages = loadedVectorPages;
+                ordinals = loadedOrdinals;
+                baseLinks = loadedBaseLinks;
+                upperLinks = loadedUpperLinks;
+                nodesByOrdinal = new int[0][];
+                nodeCount.set(count);
+                entryPoint = entryNode == NO_NODE ? null : new EntryPoint(entryNode, entryLayer);
+                if (entryPoint == null) {
+                    // Files saved while a new node was becoming the entry point could hold nodes but no entry point
+                    entryPoint = highestNode(count);
+                }
+
+                List<Integer> removed = new ArrayList<>();
+                for (int node = 0; node < count; node++) {
+                    int ordinal = ordinals[node];
+                    if (ordinal < 0) {
+                        continue;
+                    }
+                    if (segmentStore.getVector(ordinal) == null) {
+                        removed.add(node);
+                        continue;
+                    }
+                    allocateOrdinalPage(ordinal);
+                    setNodeOf(ordinal, node);
+                }
+                // One at a time like deletes, so that the graph is repaired across regions of deleted vectors
+                for (int node : removed) {
+                    ordinals[node] = -1;
+                    removeNode(node);
+                }
+                dirty = !removed.isEmpty();
+                logger.info(
+                        "Loaded HNSW index of {} nodes from disk, removed {} deleted vectors", count, removed.size());
+            } finally {
+                resizeLock.writeLock().unlock();
+            }
+        } catch (EOFException e) {
+            logger.warn("Truncated HNSW index file {}, rebuilding", path);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read HNSW index from disk", e);
+        }
+    }
+
+    private Path indexPath() {
+        return Path.of(SegmentStore.SEGMENTS_DIR, HNSW_INDEX_FILE_PREFIX + dimension);
+    }
+
+    /**
+     * Returns whether the block at {@code offset} holds at most {@code maxLinks} neighbors, all numbered below
+     * {@code count}.
+     */
+    private static boolean validLinks(int[] links, int offset, int maxLinks, int count) {
+        if (links[offset] < 0 || links[offset] > maxLinks) {
+            return false;
         }
+        for (int i = 1; i <= links[offset]; i++) {
+            if (links[offset + i] < 0 || links[offset + i] >= count) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        while (!candidates.isEmpty()) {
-            VectorWithDistance current = candidates.poll();
+    /**
+     * Removes from the block at {@code offset} the neighbors numbered {@code count} or more.
+     */
+    private static void dropLinksFrom(int[] links, int offset, int count) {
+        int kept = 0;
+        for (int i = 1; i <= links[offset]; i++) {
+            if (links[offset + i] < count) {
+                links[offset + 1 + kept++] = links[offset + i];
+            }
+        }
+        links[offset] = kept;
+    }
 
-            if (!results.isEmpty() && current.distance > results.peek().distance) {
-                break; // All remaining candidates are worse than the best candidate in the queue
+    /**
+     * Writes the first {@code length} values through the buffer, flushing it to the channel when full.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, int[] values, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(channel, buffer);
             }
+            int chunk = Math.min(length - written, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().put(values, written, chunk);
+            buffer.position(buffer.position() + chunk * Integer.BYTES);
+            written += chunk;
+        }
+    }
 
-            Set<String> neighbors = layers.get(layer).get(current.vector.id());
-            if (neighbors == null || neighbors.isEmpty()) {
-                continue; // Node doesn't exist at this layer, skip it
+    private static void write(FileChannel channel, ByteBuffer buffer, float[] values, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            if (buffer.remaining() < Float.BYTES) {
+                flush(channel, buffer);
             }
+            int chunk = Math.min(length - written, buffer.remaining() / Float.BYTES);
+            buffer.asFloatBuffer().put(values, written, chunk);
+            buffer.position(buffer.position() + chunk * Float.BYTES);
+            written += chunk;
+        }
+    }
 
-            for (String neighborId : neighbors) {
-                if (visited.contains(neighborId)) {
-                    continue;
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads the first {@code length} values through the buffer, refilling it from the channel when empty.
+     *
+     * @throws EOFException if the channel ends before
+     */
+    private static void read(FileChannel channel, ByteBuffer buffer, int[] values, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (buffer.remaining() < Integer.BYTES) {
+                fill(channel, buffer);
+            }
+            int chunk = Math.min(length - read, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().get(values, read, chunk);
+            buffer.position(buffer.position() + chunk * Integer.BYTES);
+            read += chunk;
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, float[] values, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (buffer.remaining() < Float.BYTES) {
+                fill(channel, buffer);
+            }
+            int chunk = Math.min(length - read, buffer.remaining() / Float.BYTES);
+            buffer.asFloatBuffer().get(values, read, chunk);
+            buffer.position(buffer.position() + chunk * Float.BYTES);
+            read += chunk;
+        }
+    }
+
+    private static void fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.compact();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        if (buffer.remaining() < Integer.BYTES) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Number of the next node, which must not exceed {@link #MAX_NODES}.
+     */
+    private int nextNode() {
+        return nodeCount.getAndUpdate(count -> {
+            if (count >= MAX_NODES) {
+                throw new IllegalStateException(
+                        "HNSW index of dimension " + dimension + " is full, it holds at most " + MAX_NODES + " nodes");
+            }
+            return count + 1;
+        });
+    }
+
+    /**
+     * Grows the arrays, if needed, so that they hold this node and this ordinal.
+     */
+    private void ensureCapacity(int node, int ordinal) {
+        if (node >= MAX_NODES) {
+            throw new IllegalStateException(
+                    "HNSW index of dimension " + dimension + " is full, it holds at most " + MAX_NODES + " nodes");
+        }
+        resizeLock.readLock().lock();
+        try {
+            if (node < ordinals.length && hasOrdinalPage(ordinal)) {
+                return;
+            }
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+
+        resizeLock.writeLock().lock();
+        try {
+            if (node >= ordinals.length) {
+                int length = ordinals.length;
+                // Whole pages, so that every node of the capacity has its page
+                int capacity = Math.min(MAX_NODES, pageCount(Math.max(node + 1, length * 2)) * PAGE_SIZE);
+                vectorPages = allocatePages(vectorPages, pageCount(capacity));
+                ordinals = Arrays.copyOf(ordinals, capacity);
+                Arrays.fill(ordinals, length, capacity, -1);
+                baseLinks = Arrays.copyOf(baseLinks, capacity * (M0 + 1));
+                upperLinks = Arrays.copyOf(upperLinks, capacity);
+            }
+            allocateOrdinalPage(ordinal);
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the values of the node and maps the ordinal to it, under the read lock.
+     *
+     * @return the entry point to link the node from, or null if the node is not to be linked: its ordinal was already
+     *     indexed or deleted, or it is the first node and became the entry point
+     */
+    private @Nullable EntryPoint addNode(int node, float[] values, int ordinal, int layer) {
+        System.arraycopy(values, 0, vectorPages[node >>> PAGE_SHIFT], pageOffset(node), dimension);
+        upperLinks[node] = layer == 0 ? null : new int[layer * (M + 1)];
+        synchronized (lock) {
+            if (nodeOf(ordinal) != NO_NODE) {
+                return null;
+            }
+            if (deletedBeforeInsertion.get(ordinal)) {
+                deletedBeforeInsertion.clear(ordinal);
+                return null;
+            }
+            ordinals[node] = ordinal;
+            setNodeOf(ordinal, node);
+            EntryPoint entry = entryPoint;
+            if (entry == null) {
+                entryPoint = new EntryPoint(node, layer);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Returns the pages followed by new pages up to {@code pageCount} pages.
+     */
+    private float[][] allocatePages(float[][] pages, int pageCount) {
+        float[][] allocated = Arrays.copyOf(pages, pageCount);
+        for (int page = pages.length; page < pageCount; page++) {
+            allocated[page] = new float[PAGE_SIZE * dimension];
+        }
+        return allocated;
+    }
+
+    /**
+     * Number of the first {@code count} nodes in the page.
+     */
+    private static int nodesInPage(int page, int count) {
+        return Math.min(count, (page + 1) * PAGE_SIZE) - page * PAGE_SIZE;
+    }
+
+    private static int pageCount(int nodes) {
+        return (nodes + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+    }
+
+    /**
+     * Takes buffers for a traversal from the pool, or new ones if every buffer is in use.
+     */
+    private Traversal borrowTraversal() {
+        Traversal traversal = traversals.poll();
+        return traversal == null ? new Traversal(M0) : traversal;
+    }
+
+    /**
+     * Returns the buffers to the pool, unless it is full, the buffers of extra concurrent operations are dropped.
+     */
+    private void releaseTraversal(Traversal traversal) {
+        traversals.offer(traversal);
+    }
+
+    private int nodeOf(int ordinal) {
+        int page = ordinal >>> PAGE_SHIFT;
+        int[] nodes = page < nodesByOrdinal.length ? nodesByOrdinal[page] : null;
+        return nodes == null ? NO_NODE : nodes[ordinal & (PAGE_SIZE - 1)];
+    }
+
+    /**
+     * Maps the ordinal to the node, its page must have been allocated.
+     */
+    private void setNodeOf(int ordinal, int node) {
+        nodesByOrdinal[ordinal >>> PAGE_SHIFT][ordinal & (PAGE_SIZE - 1)] = node;
+    }
+
+    private boolean hasOrdinalPage(int ordinal) {
+        int page = ordinal >>> PAGE_SHIFT;
+        return page < nodesByOrdinal.length && nodesByOrdinal[page] != null;
+    }
+
+    /**
+     * Allocates the page of nodesByOrdinal holding the ordinal, under the write lock.
+     */
+    private void allocateOrdinalPage(int ordinal) {
+        if (hasOrdinalPage(ordinal)) {
+            return;
+        }
+        int page = ordinal >>> PAGE_SHIFT;
+        if (page >= nodesByOrdinal.length) {
+            nodesByOrdinal = Arrays.copyOf(nodesByOrdinal, Math.max(page + 1, nodesByOrdinal.length * 2));
+        }
+        int[] nodes = new int[PAGE_SIZE];
+        Arrays.fill(nodes, NO_NODE);
+        nodesByOrdinal[page] = nodes;
+    }
+
+    /**
+     * Links {@code node} to {@code neighbor}, pruning the neighbors of {@code node} if it has no room left.
+     */
+    private void addLink(Traversal traversal, int node, int neighbor, int layer) {
+        synchronized (lockOf(node)) {
+            int[] links = links(node, layer);
+            int offset = linksOffset(node, layer);
+            int count = links[offset];
+            if (count < maxConnections(layer)) {
+                links[offset + 1 + count] = neighbor;
+                links[offset] = count + 1;
+                return;
+            }
+
+            // Shrink the current neighbors and the new one to the limit with the heuristic, dropping the deleted ones
+            TopKHeap candidates = traversal.pruned;
+            candidates.clear(count + 1);
+            candidates.offer(neighbor, distance(node, neighbor));
+            for (int i = 0; i < count; i++) {
+                int current = links[offset + 1 + i];
+                if (!isDeleted(current)) {
+                    candidates.offer(current, distance(node, current));
+                }
+            }
+            int[] selected = selectNeighbors(candidates, maxConnections(layer));
+            System.arraycopy(selected, 0, links, offset + 1, selected.length);
+            links[offset] = selected.length;
+        }
+    }
+
+    private void removeLink(int node, int neighbor, int layer) {
+        synchronized (lockOf(node)) {
+            int[] links = links(node, layer);
+            int offset = linksOffset(node, layer);
+            int count = links[offset];
+            for (int i = 0; i < count; i++) {
+                if (links[offset + 1 + i] == neighbor) {
+                    links[offset + 1 + i] = links[offset + count];
+                    links[offset] = count - 1;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void repair(Traversal traversal, int[] orphans, int layer) {
+        for (int orphan : orphans) {
+            if (isDeleted(orphan) || level(orphan) < layer) {
+                continue;
+            }
+            TopKHeap candidates = new TopKHeap(orphans.length);
+            for (int candidate : orphans) {
+                if (candidate != orphan
+                        && !isDeleted(candidate)
+                        && level(candidate) >= layer
+                        && !isLinked(orphan, candidate, layer)) {
+                    candidates.offer(candidate, distance(orphan, candidate));
+                }
+            }
+            for (int index : candidates.sortedIndexes()) {
+                if (neighborCount(orphan, layer) >= maxConnections(layer)) {
+                    break;
                 }
-                visited.add(neighborId);
+                addLink(traversal, orphan, candidates.id(index), layer);
+                addLink(traversal, candidates.id(index), orphan, layer);
+            }
+        }
+    }
 
-                Vector neighborVector = segmentStore.getVectorById(neighborId);
-                double distance = Vectors.squaredEuclidianDistance(vector.values(), neighborVector.values());
+    /**
+     * Returns at most {@code count} of the candidates, by increasing distance, keeping a candidate only if it is closer
+     * to the node than to every candidate kept before it.
+     */
+    private int[] selectNeighbors(TopKHeap candidates, int count) {
+        int[] selected = new int[Math.min(count, candidates.size())];
+        int selectedCount = 0;
+        for (int index : candidates.sortedIndexes()) {
+            if (selectedCount == selected.length) {
+                break;
+            }
+            int candidate = candidates.id(index);
+            if (isDeleted(candidate)) {
+                continue; // Deleted by another thread since it was found
+            }
+            float candidateDistance = candidates.distance(index);
+            boolean closerToNode = true;
+            for (int i = 0; i < selectedCount; i++) {
+                if (distance(candidate, selected[i]) < candidateDistance) {
+                    closerToNode = false;
+                    break;
+                }
+            }
+            if (closerToNode) {
+                selected[selectedCount++] = candidate;
+            }
+        }
+        return Arrays.copyOf(selected, selectedCount);
+    }
 
-                if (results.size() < count || (!results.isEmpty() && distance < results.peek().distance)) {
-                    candidates.add(new VectorWithDistance(neighborVector, distance));
-                    results.add(new VectorWithDistance(neighborVector, distance));
+    /**
+     * Estimates the number of nodes accepted by the filter from a sample of evenly spaced nodes, exact for small
+     * graphs.
+     */
+    private int estimateMatches(IntPredicate accepted, int nodes) {
+        int step = Math.max(1, nodes / FILTER_SAMPLE_SIZE);
+        int matches = 0;
+        for (int node = 0; node < nodes; node += step) {
+            if (!isDeleted(node) && accepted.test(node)) {
+                matches++;
+            }
+        }
+        return matches * step;
+    }
+
+    /**
+     * Fills {@code results} with the {@code count} closest accepted nodes to {@code vector}, comparing it to all of
+     * them.
+     */
+    private void scan(float[] vector, TopKHeap results, int count, IntPredicate accepted, int nodes) {
+        results.clear(count);
+        for (int node = 0; node < nodes; node++) {
+            if (!isDeleted(node) && accepted.test(node)) {
+                results.offer(node, distance(vector, node));
+            }
+        }
+    }
+
+    /**
+     * Fills {@code results} with the {@code count} closest nodes to {@code vector} found in the layer from the entry
+     * points, with the buffers of the traversal.
+     */
+    private void searchLayer(
+            Traversal traversal, float[] vector, TopKHeap entryPoints, TopKHeap results, int count, int layer) {
+        searchLayer(traversal, vector, entryPoints, results, count, layer, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #searchLayer(Traversal, float[], TopKHeap, TopKHeap, int, int)}, only keeping the nodes accepted
+     * by the filter in the results, all the nodes being traversed.
+     *
+     * @return false if the traversal was stopped after visiting {@code visitLimit} nodes
+     */
+    private boolean searchLayer(
+            Traversal traversal,
+            float[] vector,
+            TopKHeap entryPoints,
+            TopKHeap results,
+            int count,
+            int layer,
+            @Nullable IntPredicate accepted,
+            int visitLimit) {
+        traversal.start(ordinals.length);
+        NodeQueue candidates = traversal.candidates;
+        int[] neighbors = traversal.neighbors;
+        results.clear(count);
+        int visited = 0;
 
-                    if (results.size() > count) {
-                        results.poll(); // Remove the worst candidate
+        for (int i = 0; i < entryPoints.size(); i++) {
+            int entryPoint = entryPoints.id(i);
+            traversal.visit(entryPoint);
+            candidates.push(entryPoint, entryPoints.distance(i));
+            if (accepted == null || (!isDeleted(entryPoint) && accepted.test(entryPoint))) {
+                results.offer(entryPoint, entryPoints.distance(i));
+            }
+        }
+
+        while (!candidates.isEmpty()) {
+            if (candidates.peekDistance() > results.worstDistance()) {
+                break; // All remaining candidates are worse than the worst result
+            }
+            int current = candidates.poll();
+
+            // Copied under the lock of the node, inserts and deletes rewrite its neighbors in place
+            int neighborCount;
+            synchronized (lockOf(current)) {
+                int[] links = links(current, layer);
+                int offset = linksOffset(current, layer);
+                neighborCount = links[offset];
+                System.arraycopy(links, offset + 1, neighbors, 0, neighborCount);
+            }
+            for (int i = 0; i < neighborCount; i++) {
+                int neighbor = neighbors[i];
+                if (!traversal.visit(neighbor)) {
+                    continue;
+                }
+                if (isDeleted(neighbor)) {
+                    continue; // The edge was pruned on one side only
+                }
+
+                if (++visited > visitLimit) {
+                    return false;
+                }
+
+                float distance = distance(vector, neighbor);
+                if (distance < results.worstDistance()) {
+                    candidates.push(neighbor, distance);
+                    if (accepted == null || accepted.test(neighbor)) {
+                        results.offer(neighbor, distance);
                     }
                 }
             }
         }
-        return results.stream().map(VectorWithDistance::vector).map(Vector::id).toList();
+        return true;
     }
 
-    private int randomLayer() {
-        int level = 0;
-        double random = Math.random();
-        while (random < 1. / Math.exp(1) && level < MAX_LAYER) {
-            level++;
+    /**
+     * Array holding the neighbors of {@code node} on the layer, at {@link #linksOffset(int, int)}.
+     */
+    private int[] links(int node, int layer) {
+        return layer == 0 ? baseLinks : upperLinks[node];
+    }
+
+    private int linksOffset(int node, int layer) {
+        return layer == 0 ? node * (M0 + 1) : (layer - 1) * (M + 1);
+    }
+
+    private boolean isLinked(int node, int neighbor, int layer) {
+        synchronized (lockOf(node)) {
+            int[] links = links(node, layer);
+            int offset = linksOffset(node, layer);
+            for (int i = 1; i <= links[offset]; i++) {
+                if (links[offset + i] == neighbor) {
+                    return true;
+                }
+            }
+            return false;
         }
-        return level;
     }
 
-    private record VectorWithDistance(Vector vector, double distance) {}
+    private int neighborCount(int node, int layer) {
+        synchronized (lockOf(node)) {
+            return links(node, layer)[linksOffset(node, layer)];
+        }
+    }
+
+    private Object lockOf(int node) {
+        return nodeLocks[node % LOCK_STRIPES];
+    }
+
+    private int level(int node) {
+        return upperLinks[node] == null ? 0 : upperLinks[node].length / (M + 1);
+    }
+
+    private boolean isDeleted(int node) {
+        return ordinals[node] < 0;
+    }
+
+    private float distance(float[] vector, int node) {
+        return metric.distance(vectorPages[node >>> PAGE_SHIFT], pageOffset(node), vector, 0, dimension);
+    }
+
+    private float distance(int node1, int node2) {
+        return metric.distance(
+                vectorPages[node1 >>> PAGE_SHIFT],
+                pageOffset(node1),
+                vectorPages[node2 >>> PAGE_SHIFT],
+                pageOffset(node2),
+                dimension);
+    }
+
+    /**
+     * Offset of the values of the node in its page.
+     */
+    private int pageOffset(int node) {
+        return (node & (PAGE_SIZE - 1)) * dimension;
+    }
+
+    private static int maxConnections(int layer) {
+        return layer == 0 ? M0 : M;
+    }
+
+    private int randomLayer() {
+        double random = ThreadLocalRandom.current().nextDouble();
+        return (int) Math.min(MAX_LAYER, -Math.log(1 - random) * LEVEL_MULTIPLIER);
+    }
+
+    private record EntryPoint(int node, int layer) {}
 }
@@ -0,0 +1,71 @@
+package fr.alexandredch.vectours.index.hnsw;
+
+import java.util.Arrays;
+
+/**
+ * Unbounded queue of graph nodes polled by increasing distance, as a binary min-heap over parallel primitive arrays.
+ */
+final class NodeQueue {
+
+    private int[] nodes = new int[64];
+    private float[] distances = new float[64];
+    private int size;
+
+    void push(int node, float distance) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+        }
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (distances[parent] <= distance) {
+                break;
+            }
+            nodes[index] = nodes[parent];
+            distances[index] = distances[parent];
+            index = parent;
+        }
+        nodes[index] = node;
+        distances[index] = distance;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    float peekDistance() {
+        return distances[0];
+    }
+
+    /**
+     * Removes the closest node and returns it.
+     */
+    int poll() {
+        int closest = nodes[0];
+        int node = nodes[--size];
+        float distance = distances[size];
+        int index = 0;
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && distances[right] < distances[child]) {
+                child = right;
+            }
+            if (distance <= distances[child]) {
+                break;
+            }
+            nodes[index] = nodes[child];
+            distances[index] = distances[child];
+            index = child;
+        }
+        nodes[index] = node;
+        distances[index] = distance;
+        return closest;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
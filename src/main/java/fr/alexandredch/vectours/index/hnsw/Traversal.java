@@ -0,0 +1,61 @@
+package fr.alexandredch.vectours.index.hnsw;
+
+import fr.alexandredch.vectours.math.TopKHeap;
+import java.util.Arrays;
+
+/**
+ * Buffers of a graph traversal, borrowed from the pool of the index by each search, insert or delete and returned
+ * afterwards, so that a search allocates close to nothing.
+ * <p>
+ * Visited nodes are marked with the number of the current traversal in an int array, instead of being added to a set
+ * allocated for each traversal: starting a traversal only increments the number, and the array is only cleared when
+ * the number wraps around.
+ */
+final class Traversal {
+
+    final NodeQueue candidates = new NodeQueue();
+    // Entry points and results of the layers, swapped from one layer to the next
+    final TopKHeap entryPoints = new TopKHeap(1);
+    final TopKHeap results = new TopKHeap(1);
+    // Neighbors of a node being pruned
+    final TopKHeap pruned = new TopKHeap(1);
+    // Neighbor block being scanned, copied out of the graph
+    final int[] neighbors;
+
+    private int[] visited = new int[0];
+    private int visit;
+
+    Traversal(int maxConnections) {
+        this.neighbors = new int[maxConnections];
+    }
+
+    /**
+     * Starts a traversal of a graph of at most {@code nodeCapacity} nodes, in which no node is visited yet.
+     */
+    void start(int nodeCapacity) {
+        // Also shrinks once the graph was compacted
+        if (visited.length < nodeCapacity || visited.length > 2 * nodeCapacity) {
+            visited = new int[nodeCapacity];
+            visit = 0;
+        }
+        if (visit == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visit = 0;
+        }
+        visit++;
+        candidates.clear();
+    }
+
+    /**
+     * Marks the node as visited by the current traversal.
+     *
+     * @return whether it was not visited yet
+     */
+    boolean visit(int node) {
+        if (visited[node] == visit) {
+            return false;
+        }
+        visited[node] = visit;
+        return true;
+    }
+}
@@ -2,34 +2,120 @@ package fr.alexandredch.vectours.index.ivf;
 
 import com.google.common.annotations.VisibleForTesting;
 import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.PersistentIndex;
+import fr.alexandredch.vectours.index.Tombstones;
 import fr.alexandredch.vectours.math.Cluster;
+import fr.alexandredch.vectours.math.DistanceMetric;
 import fr.alexandredch.vectours.math.KMeans;
+import fr.alexandredch.vectours.math.TopKHeap;
 import fr.alexandredch.vectours.math.Vectors;
+import fr.alexandredch.vectours.store.StoreConfiguration;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.IntPredicate;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public final class DefaultIVFIndex implements IVFIndex {
-
-    // TODO: we need an index per dimension
+/**
+ * IVF index over the vectors of one dimension of a segment store.
+ * <p>
+ * Searches read the clusters of the last training from a volatile field, without locking. New vectors are appended to
+ * their closest cluster, which slowly degrades the clustering: {@link #maintain(Executor)} retrains the clusters in
+ * the background when they got too unbalanced or too coarse, and only swaps the new clusters in once they are
+ * complete. The segment store cannot be read concurrently with its updates, so the vectors to retrain on are read on
+ * the thread updating it, and the vectors inserted and deleted after that are applied to the new clusters.
+ * <p>
+ * Clusters hold copies of the values of their vectors in flat arrays, with the ordinal of each vector in the segment
+ * store: scans only stream through primitive arrays, and the vectors of the results are then read from the segment
+ * store by ordinal. Deleted and replaced vectors are only marked in a {@link Tombstones} set skipped by searches,
+ * {@link #maintain(Executor)} purges them once they are a significant share of the index.
+ * <p>
+ * The centroids and the ordinals of the vectors of each cluster are saved in {@link #IVF_INDEX_FILE_PREFIX} followed
+ * by the dimension, next to the segments, and reloaded by {@link #initFromDisk()} instead of retraining.
+ */
+public final class DefaultIVFIndex implements IVFIndex, PersistentIndex {
 
     public static final int MIN_VECTORS_FOR_IVF_INDEX = 10_000;
 
-    private final List<Cluster<Vector>> clusters;
+    // Retrain when the largest cluster holds this many times the mean cluster size, and twice as many as after training
+    public static final double MAX_CLUSTER_SKEW = 4;
+    // Retrain when vectors inserted since training are this much further from their centroid than the trained ones
+    public static final double MAX_QUANTIZATION_ERROR_GROWTH = 1.5;
+    // Retrain when the index has grown by this factor, the cluster count depends on the vector count
+    public static final double MAX_VECTOR_COUNT_GROWTH = 2;
+    // Purge deleted entries when they are this share of the entries scanned by searches
+    public static final double MAX_DELETED_RATIO = 0.1;
+
+    public static final String IVF_INDEX_FILE_PREFIX = "ivf_index_";
+
+    // "IVFI", followed by the metric ordinal and the dimension
+    private static final int FILE_MAGIC = 0x49564649;
+
+    private static final Logger logger = LoggerFactory.getLogger(DefaultIVFIndex.class);
+
     private final SegmentStore segmentStore;
-    private boolean built = false;
+    private final StoreConfiguration configuration;
+    private final DistanceMetric metric;
+    private final int dimension;
+    private final Object lock = new Object();
+
+    private volatile Clusters clusters = Clusters.EMPTY;
+    private volatile boolean built = false;
+    // Whether the clusters changed since they were last saved or loaded
+    private volatile boolean dirty = false;
+    // Values of the vectors inserted by ordinal, and ordinals deleted, while a retraining is running, applied to the
+    // new clusters before they are swapped in
+    private @Nullable Map<Integer, float[]> pendingInserts;
+    private @Nullable Set<Integer> pendingDeletes;
+
+    public DefaultIVFIndex(SegmentStore segmentStore, int dimension) {
+        this(segmentStore, new StoreConfiguration.Builder().build(), dimension);
+    }
 
-    public DefaultIVFIndex(SegmentStore segmentStore) {
+    public DefaultIVFIndex(SegmentStore segmentStore, StoreConfiguration configuration, int dimension) {
         this.segmentStore = segmentStore;
-        List<Vector> vectors = segmentStore.getAllVectors();
-        if (vectors.size() <= MIN_VECTORS_FOR_IVF_INDEX) {
-            this.clusters = new ArrayList<>();
-            return;
+        this.configuration = configuration;
+        this.metric = configuration.distanceMetric();
+        this.dimension = dimension;
+    }
+
+    /**
+     * Loads the clusters saved by {@link #saveToDisk()}, or trains them if they were never saved.
+     * <p>
+     * Saved vectors that were deleted or replaced since are dropped, and the vectors saved in the segments after the
+     * index, including the ones replayed from the WAL, are added to their closest cluster.
+     */
+    public void initFromDisk() {
+        synchronized (lock) {
+            Path path = indexPath();
+            Clusters loaded = Files.exists(path) ? readFromDisk(path) : null;
+            if (loaded == null) {
+                TrainingSet trainingSet = trainingSet();
+                if (trainingSet.vectors().size() > MIN_VECTORS_FOR_IVF_INDEX) {
+                    this.clusters = train(trainingSet);
+                    this.built = true;
+                    this.dirty = true;
+                }
+                return;
+            }
+            this.clusters = loaded;
+            this.built = true;
         }
-        this.clusters = KMeans.fit(vectors);
-        this.built = true;
     }
 
     @Override
@@ -39,48 +125,620 @@ public final class DefaultIVFIndex implements IVFIndex {
 
     @Override
     public void insertVector(Vector vector) {
-        // Add to the closest cluster or rebuild the index
-        if (this.built) {
-            findClosestClusters(vector.values(), 1).findFirst().ifPresent(c -> c.add(vector));
-        } else if (segmentStore.getTotalVectorCount() > MIN_VECTORS_FOR_IVF_INDEX) {
-            // Rebuild the index
-            List<Vector> vectors = segmentStore.getAllVectors();
-            this.clusters.clear();
-            this.clusters.addAll(KMeans.fit(vectors));
-            this.built = true;
+        if (vector.values().length != dimension) {
+            throw new IllegalArgumentException("Vector of dimension " + vector.values().length
+                    + " inserted in IVF index of dimension " + dimension);
+        }
+        synchronized (lock) {
+            // Add to the closest cluster or build the index
+            if (this.built) {
+                int ordinal = segmentStore.getOrdinal(vector.id());
+                if (ordinal < 0) {
+                    return;
+                }
+                clusters.add(vector.values(), ordinal);
+                if (pendingInserts != null) {
+                    pendingInserts.put(ordinal, vector.values());
+                }
+                this.dirty = true;
+            } else if (segmentStore.getVectorCount(dimension) > MIN_VECTORS_FOR_IVF_INDEX) {
+                this.clusters = train(trainingSet());
+                this.built = true;
+                this.dirty = true;
+            }
         }
     }
 
     @Override
-    public List<Vector> search(double[] vector, int nprobe) {
-        List<Vector> result = new ArrayList<>();
+    public void deleteVector(int ordinal) {
+        synchronized (lock) {
+            if (!built) {
+                return;
+            }
+            clusters.delete(ordinal);
+            if (pendingDeletes != null) {
+                pendingInserts.remove(ordinal);
+                pendingDeletes.add(ordinal);
+            }
+            this.dirty = true;
+        }
+    }
 
-        // Find the nprobe closest clusters
-        findClosestClusters(vector, nprobe).forEach(cluster -> {
-            result.addAll(searchInCluster(cluster, vector, nprobe));
-        });
+    /**
+     * Retrains the clusters if they degraded too much since the last training, or else purges the deleted entries if
+     * there are too many of them. Searches keep using the current clusters until the new ones are swapped in.
+     *
+     * @param indexExecutor executor of the thread updating the segment store, the vectors to retrain on are read on it
+     * @return whether the clusters were rebuilt
+     */
+    public boolean maintain(Executor indexExecutor) {
+        if (!built) {
+            return false;
+        }
+        String reason = clusters.retrainingReason();
+        if (reason == null) {
+            return purge();
+        }
 
-        return result.stream()
-                .sorted(Comparator.comparingDouble(v -> Vectors.squaredEuclidianDistance(v.values(), vector)))
-                .limit(nprobe)
-                .toList();
+        logger.info("Retraining IVF index: {}", reason);
+        Clusters retrained;
+        try {
+            TrainingSet trainingSet = CompletableFuture.supplyAsync(this::startRetraining, indexExecutor).join();
+            retrained = train(trainingSet);
+        } catch (RuntimeException e) {
+            synchronized (lock) {
+                pendingInserts = null;
+                pendingDeletes = null;
+            }
+            throw e;
+        }
+
+        synchronized (lock) {
+            // Replaced vectors are deleted, and added below with their new values
+            Set<Integer> deletedOrdinals = pendingDeletes;
+            retrained = retrained.rebuilt(ordinal -> !deletedOrdinals.contains(ordinal));
+            for (Map.Entry<Integer, float[]> pending : pendingInserts.entrySet()) {
+                retrained.add(pending.getValue(), pending.getKey());
+            }
+            pendingInserts = null;
+            pendingDeletes = null;
+            clusters = retrained;
+            dirty = true;
+        }
+        logger.info("IVF index retrained");
+        return true;
     }
 
+    @Override
+    public List<Vector> search(float[] vector, int topK, int nprobe, @Nullable IntPredicate filter) {
+        Clusters current = clusters;
+        if (topK <= 0 || current.postings().isEmpty() || vector.length != dimension) {
+            return List.of();
+        }
+
+        // Read the tombstones before the postings, see Tombstones
+        Tombstones tombstones = current.tombstones();
+        boolean filterDeleted = !tombstones.isEmpty();
+
+        int probes = nprobe > 0 ? nprobe : DEFAULT_NPROBE;
+        List<Posting> probed;
+        if (filter == null) {
+            probed = current.closest(vector, probes);
+        } else {
+            // Probes more clusters when they would not hold enough accepted vectors
+            List<Posting> byDistance = current.closest(vector, current.postings().size());
+            int[] sizes = byDistance.stream().mapToInt(posting -> posting.size).toArray();
+            probed = byDistance.subList(
+                    0, IVFIndex.filteredProbeCount(sizes, probes, topK, current.acceptedShare(filter)));
+        }
+
+        // Heap ids are ordinals, only the vectors of the results are read from the segment store
+        TopKHeap heap = new TopKHeap(topK);
+        for (Posting posting : probed) {
+            int size = posting.size;
+            float[] values = posting.values;
+            int[] ordinals = posting.ordinals;
+            for (int i = 0; i < size; i++) {
+                if ((filterDeleted && tombstones.contains(ordinals[i]))
+                        || (filter != null && !filter.test(ordinals[i]))) {
+                    continue;
+                }
+                heap.offer(ordinals[i], metric.distance(values, i * dimension, vector, 0, dimension));
+            }
+        }
+
+        List<Vector> result = new ArrayList<>(heap.size());
+        for (int index : heap.sortedIndexes()) {
+            // Null if the vector was deleted since the tombstones were read
+            Vector candidate = segmentStore.getVector(heap.id(index));
+            if (candidate != null) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the centroids and the ordinals of the vectors of each cluster to a temporary file, then moves it over the
+     * index file so that a crash never leaves a partial index behind.
+     */
+    @Override
+    public void saveToDisk() {
+        if (!built || !dirty) {
+            return;
+        }
+
+        // Snapshot the clusters, inserts append to them concurrently
+        Clusters current;
+        List<int[]> ordinals = new ArrayList<>();
+        synchronized (lock) {
+            dirty = false;
+            current = clusters;
+            for (Posting posting : current.postings()) {
+                int[] postingOrdinals = new int[posting.size];
+                int count = 0;
+                for (int i = 0; i < posting.size; i++) {
+                    if (!current.tombstones().contains(posting.ordinals[i])) {
+                        postingOrdinals[count++] = posting.ordinals[i];
+                    }
+                }
+                ordinals.add(Arrays.copyOf(postingOrdinals, count));
+            }
+        }
+
+        Path path = indexPath();
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (OutputStream outputStream = Files.newOutputStream(temporaryPath);
+                    BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+                    DataOutputStream output = new DataOutputStream(bufferedOutputStream)) {
+                List<Posting> postings = current.postings();
+                output.writeInt(FILE_MAGIC);
+                output.writeByte(metric.ordinal());
+                output.writeInt(dimension);
+                output.writeInt(postings.size());
+                output.writeDouble(current.trainedQuantizationError);
+                output.writeInt(current.trainedVectorCount);
+                output.writeDouble(current.trainedSkew);
+                output.writeInt(current.insertedVectorCount);
+                output.writeDouble(current.insertedSquaredDistance);
+                for (int c = 0; c < postings.size(); c++) {
+                    for (float value : postings.get(c).centroid) {
+                        output.writeFloat(value);
+                    }
+                    output.writeInt(ordinals.get(c).length);
+                    for (int ordinal : ordinals.get(c)) {
+                        output.writeInt(ordinal);
+                    }
+                }
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            throw new RuntimeException("Failed to write IVF index to disk", e);
+        }
+        logger.info("Saved IVF index of {} clusters for dimension {} to disk", ordinals.size(), dimension);
+    }
+
+    /**
+     * Returns a copy of the live vectors of each cluster, read from the segment store.
+     */
     @VisibleForTesting
     public List<Cluster<Vector>> getClusters() {
-        return clusters;
+        Clusters current = clusters;
+        List<Cluster<Vector>> list = new ArrayList<>(current.postings().size());
+        for (Posting posting : current.postings()) {
+            Cluster<Vector> cluster = new Cluster<>(posting.centroid);
+            for (int i = 0; i < posting.size; i++) {
+                Vector vector = current.tombstones().contains(posting.ordinals[i])
+                        ? null
+                        : segmentStore.getVector(posting.ordinals[i]);
+                if (vector != null) {
+                    cluster.add(vector);
+                }
+            }
+            list.add(cluster);
+        }
+        return list;
     }
 
-    private List<Vector> searchInCluster(Cluster<Vector> cluster, double[] vector, int nprobe) {
-        return cluster.getData().stream()
-                .sorted(Comparator.comparingDouble(v -> Vectors.squaredEuclidianDistance(v.values(), vector)))
-                .limit(nprobe)
-                .toList();
+    private boolean purge() {
+        synchronized (lock) {
+            Clusters current = clusters;
+            int deleted = current.tombstones().count();
+            if (deleted == 0 || deleted < MAX_DELETED_RATIO * (current.vectorCount + deleted)) {
+                return false;
+            }
+            clusters = current.rebuilt(ordinal -> !current.tombstones().contains(ordinal));
+            dirty = true;
+            logger.info("Purged {} deleted vectors from IVF index", deleted);
+            return true;
+        }
     }
 
-    private Stream<Cluster<Vector>> findClosestClusters(double[] vector, int nprobe) {
-        return clusters.stream()
-                .sorted(Comparator.comparingDouble(c -> Vectors.squaredEuclidianDistance(c.getCentroid(), vector)))
-                .limit(nprobe);
+    /**
+     * Returns the saved clusters, or null if the file does not match the configuration of the store.
+     */
+    private @Nullable Clusters readFromDisk(Path path) {
+        try (InputStream inputStream = Files.newInputStream(path);
+                BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+                DataInputStream input = new DataInputStream(bufferedInputStream)) {
+            if (input.readInt() != FILE_MAGIC) {
+                logger.warn("Unsupported IVF index file format: {}, retraining", path);
+                return null;
+            }
+            if (input.readByte() != metric.ordinal()) {
+                logger.warn("IVF index was saved with another distance metric, retraining");
+                return null;
+            }
+            if (input.readInt() != dimension) {
+                logger.warn("IVF index file {} holds vectors of another dimension, retraining", path);
+                return null;
+            }
+            int clusterCount = input.readInt();
+            double trainedQuantizationError = input.readDouble();
+            int trainedVectorCount = input.readInt();
+            double trainedSkew = input.readDouble();
+            int insertedVectorCount = input.readInt();
+            double insertedSquaredDistance = input.readDouble();
+
+            List<Posting> postings = new ArrayList<>(clusterCount);
+            BitSet covered = new BitSet();
+            int dropped = 0;
+            for (int c = 0; c < clusterCount; c++) {
+                float[] centroid = new float[dimension];
+                for (int d = 0; d < dimension; d++) {
+                    centroid[d] = input.readFloat();
+                }
+                int size = input.readInt();
+                Posting posting = new Posting(centroid, size);
+                for (int i = 0; i < size; i++) {
+                    int ordinal = input.readInt();
+                    // Null for negative ordinals too
+                    Vector vector = segmentStore.getVector(ordinal);
+                    if (vector != null && !covered.get(ordinal)) {
+                        covered.set(ordinal);
+                        posting.add(vector.values(), ordinal);
+                    } else {
+                        dropped++;
+                    }
+                }
+                postings.add(posting);
+            }
+
+            Clusters loaded = new Clusters(metric, postings, trainedQuantizationError, trainedVectorCount, trainedSkew);
+            loaded.insertedVectorCount = insertedVectorCount;
+            loaded.insertedSquaredDistance = insertedSquaredDistance;
+            int added = 0;
+            for (Vector vector : segmentStore.getAllVectors(dimension)) {
+                int ordinal = segmentStore.getOrdinal(vector.id());
+                if (ordinal >= 0 && !covered.get(ordinal)) {
+                    loaded.add(vector.values(), ordinal);
+                    added++;
+                }
+            }
+            logger.info(
+                    "Loaded IVF index of {} clusters from disk, dropped {} and added {} vectors",
+                    clusterCount,
+                    dropped,
+                    added);
+            dirty = added > 0 || dropped > 0;
+            return loaded;
+        } catch (EOFException e) {
+            logger.warn("Truncated IVF index file {}, retraining", path);
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read IVF index from disk", e);
+        }
+    }
+
+    /**
+     * Starts recording the updates to apply to the retrained clusters and returns the vectors to retrain on, on the
+     * thread updating the segment store.
+     */
+    private TrainingSet startRetraining() {
+        synchronized (lock) {
+            pendingInserts = new LinkedHashMap<>();
+            pendingDeletes = new HashSet<>();
+            return trainingSet();
+        }
+    }
+
+    /**
+     * Reads the vectors of the dimension and their ordinals, must be called by the thread updating the segment store.
+     */
+    private TrainingSet trainingSet() {
+        List<Vector> vectors = segmentStore.getAllVectors(dimension);
+        // By identity, the clusters of the training hold these same instances
+        Map<Vector, Integer> ordinals = new IdentityHashMap<>(vectors.size());
+        for (Vector vector : vectors) {
+            ordinals.put(vector, segmentStore.getOrdinal(vector.id()));
+        }
+        return new TrainingSet(vectors, ordinals);
+    }
+
+    private Path indexPath() {
+        return Path.of(SegmentStore.SEGMENTS_DIR, IVF_INDEX_FILE_PREFIX + dimension);
+    }
+
+    private Clusters train(TrainingSet trainingSet) {
+        List<Vector> vectors = trainingSet.vectors();
+        KMeans.Result result = newKMeans().build().fit(vectors);
+        logger.info(
+                "Trained {} IVF centroids on {}/{} vectors, quantization error {}",
+                result.clusterCount(),
+                result.trainingPointCount(),
+                vectors.size(),
+                result.quantizationError());
+
+        List<Posting> postings = new ArrayList<>();
+        for (Cluster<Vector> cluster : splitOversizedClusters(result.clusters(vectors))) {
+            Posting posting = new Posting(cluster.getCentroid(), cluster.getData().size());
+            for (Vector vector : cluster.getData()) {
+                int ordinal = trainingSet.ordinals().getOrDefault(vector, -1);
+                if (ordinal >= 0) {
+                    posting.add(vector.values(), ordinal);
+                }
+            }
+            postings.add(posting);
+        }
+        return new Clusters(metric, postings, result.quantizationError());
+    }
+
+    /**
+     * Splits the clusters holding more than {@link #MAX_CLUSTER_SKEW} times the mean cluster size, which k-means
+     * produces for dense regions of the space, so that no probe scans a disproportionate share of the vectors.
+     */
+    private List<Cluster<Vector>> splitOversizedClusters(List<Cluster<Vector>> clusters) {
+        int vectorCount = clusters.stream().mapToInt(cluster -> cluster.getData().size()).sum();
+        double meanSize = (double) vectorCount / clusters.size();
+
+        List<Cluster<Vector>> balanced = new ArrayList<>(clusters.size());
+        for (Cluster<Vector> cluster : clusters) {
+            List<Vector> data = cluster.getData();
+            if (data.size() <= MAX_CLUSTER_SKEW * meanSize) {
+                balanced.add(cluster);
+                continue;
+            }
+            int parts = (int) Math.ceil(data.size() / meanSize);
+            logger.info("Splitting IVF cluster of {} vectors in {}", data.size(), parts);
+            for (Cluster<Vector> part : newKMeans().clusterCount(parts).build().fit(data).clusters(data)) {
+                // Identical vectors cannot be split and leave empty clusters
+                if (!part.getData().isEmpty()) {
+                    balanced.add(part);
+                }
+            }
+        }
+        return balanced;
+    }
+
+    private KMeans.Builder newKMeans() {
+        return new KMeans.Builder()
+                .metric(metric)
+                .trainingSampleSize(configuration.trainingSampleSize())
+                .miniBatchSize(configuration.trainingBatchSize());
+    }
+
+    private record TrainingSet(List<Vector> vectors, Map<Vector, Integer> ordinals) {}
+
+    /**
+     * Values and ordinals of the vectors of one cluster, in growable primitive arrays: the values of entry {@code i}
+     * start at {@code i * dimension} so that scanning a cluster reads a single contiguous array.
+     * <p>
+     * Written under the index lock. Entries are written before {@code size} is incremented and arrays are only
+     * replaced by larger copies, so a search reading {@code size} first sees complete entries.
+     */
+    private static final class Posting {
+
+        private static final int MIN_CAPACITY = 16;
+
+        private final float[] centroid;
+        private final int dimension;
+        private float[] values;
+        private int[] ordinals;
+        private volatile int size;
+
+        Posting(float[] centroid, int capacity) {
+            this.centroid = centroid;
+            this.dimension = centroid.length;
+            this.ordinals = new int[Math.max(capacity, MIN_CAPACITY)];
+            this.values = new float[ordinals.length * dimension];
+        }
+
+        void add(float[] vector, int ordinal) {
+            add(vector, 0, ordinal);
+        }
+
+        void add(float[] source, int offset, int ordinal) {
+            if (size == ordinals.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+                ordinals = Arrays.copyOf(ordinals, ordinals.length * 2);
+            }
+            System.arraycopy(source, offset, values, size * dimension, dimension);
+            ordinals[size] = ordinal;
+            size++;
+        }
+    }
+
+    /**
+     * Clusters of one training, with their tombstones and the statistics used to decide when to retrain them.
+     * <p>
+     * Vectors are added to their closest centroid by L2, as k-means assigns the training vectors, whatever the metric:
+     * under inner product, the largest centroids would otherwise take most of the inserts, and the quantization error
+     * of the inserted vectors would not be comparable to the one of the training. Queries are still routed with the
+     * metric.
+     * <p>
+     * Only mutated under the index lock, the statistics are volatile so that {@link #maintain(Executor)} can read
+     * them.
+     */
+    private static final class Clusters {
+
+        static final Clusters EMPTY = new Clusters(DistanceMetric.L2, List.of(), 0);
+
+        private final DistanceMetric metric;
+        private final List<Posting> postings;
+        private final Tombstones tombstones = new Tombstones();
+        private final double trainedQuantizationError;
+        private final int trainedVectorCount;
+        private final double trainedSkew;
+        // Live vectors, deleted ones excepted
+        private volatile int vectorCount;
+        private volatile int largestClusterSize;
+        private volatile int insertedVectorCount;
+        private volatile double insertedSquaredDistance;
+
+        Clusters(DistanceMetric metric, List<Posting> postings, double trainedQuantizationError) {
+            this(metric, postings, trainedQuantizationError, 0, 0);
+        }
+
+        /**
+         * Clusters loaded from disk, with the statistics of their training. Statistics of a new training are computed
+         * from the clusters when {@code trainedVectorCount} is 0.
+         */
+        Clusters(
+                DistanceMetric metric,
+                List<Posting> postings,
+                double trainedQuantizationError,
+                int trainedVectorCount,
+                double trainedSkew) {
+            this.metric = metric;
+            this.postings = postings;
+            this.trainedQuantizationError = trainedQuantizationError;
+            int count = 0;
+            int largest = 0;
+            for (Posting posting : postings) {
+                count += posting.size;
+                largest = Math.max(largest, posting.size);
+            }
+            this.vectorCount = count;
+            this.largestClusterSize = largest;
+            this.trainedVectorCount = trainedVectorCount > 0 ? trainedVectorCount : count;
+            this.trainedSkew = trainedVectorCount > 0 ? trainedSkew : skew();
+        }
+
+        List<Posting> postings() {
+            return postings;
+        }
+
+        Tombstones tombstones() {
+            return tombstones;
+        }
+
+        void add(float[] vector, int ordinal) {
+            List<Posting> closest = closest(vector, 1, DistanceMetric.L2);
+            if (closest.isEmpty()) {
+                return;
+            }
+            Posting posting = closest.getFirst();
+            posting.add(vector, ordinal);
+
+            vectorCount++;
+            largestClusterSize = Math.max(largestClusterSize, posting.size);
+            insertedVectorCount++;
+            insertedSquaredDistance += Vectors.squaredEuclidianDistance(posting.centroid, vector);
+        }
+
+        void delete(int ordinal) {
+            int deleted = tombstones.count();
+            tombstones.add(ordinal);
+            if (tombstones.count() > deleted) {
+                vectorCount--;
+            }
+        }
+
+        /**
+         * Returns new clusters with the same centroids and statistics, holding the entries kept by {@code filter}.
+         */
+        Clusters rebuilt(IntPredicate filter) {
+            List<Posting> kept = new ArrayList<>(postings.size());
+            for (Posting posting : postings) {
+                int size = posting.size;
+                Posting keptPosting = new Posting(posting.centroid, size);
+                for (int i = 0; i < size; i++) {
+                    if (filter.test(posting.ordinals[i])) {
+                        keptPosting.add(posting.values, i * posting.dimension, posting.ordinals[i]);
+                    }
+                }
+                kept.add(keptPosting);
+            }
+            Clusters rebuilt = new Clusters(metric, kept, trainedQuantizationError, trainedVectorCount, trainedSkew);
+            rebuilt.insertedVectorCount = insertedVectorCount;
+            rebuilt.insertedSquaredDistance = insertedSquaredDistance;
+            return rebuilt;
+        }
+
+        List<Posting> closest(float[] vector, int nprobe) {
+            return closest(vector, nprobe, metric);
+        }
+
+        private List<Posting> closest(float[] vector, int nprobe, DistanceMetric distanceMetric) {
+            TopKHeap heap = new TopKHeap(Math.min(nprobe, postings.size()));
+            for (int c = 0; c < postings.size(); c++) {
+                heap.offer(c, distanceMetric.distance(postings.get(c).centroid, vector));
+            }
+
+            List<Posting> closestPostings = new ArrayList<>(heap.size());
+            for (int index : heap.sortedIndexes()) {
+                closestPostings.add(postings.get(heap.id(index)));
+            }
+            return closestPostings;
+        }
+
+        /**
+         * Estimates the share of the entries accepted by the filter, deleted ones excepted, from a sample of evenly
+         * spaced entries, exact for small indexes.
+         */
+        double acceptedShare(IntPredicate filter) {
+            int entries = 0;
+            for (Posting posting : postings) {
+                entries += posting.size;
+            }
+            int step = Math.max(1, entries / FILTER_SAMPLE_SIZE);
+            int sampled = 0;
+            int accepted = 0;
+            int entry = 0;
+            for (Posting posting : postings) {
+                int size = posting.size;
+                for (; entry < size; entry += step) {
+                    int ordinal = posting.ordinals[entry];
+                    sampled++;
+                    if (!tombstones.contains(ordinal) && filter.test(ordinal)) {
+                        accepted++;
+                    }
+                }
+                entry -= size;
+            }
+            return sampled == 0 ? 0 : (double) accepted / sampled;
+        }
+
+        /**
+         * Returns why the clusters should be retrained, or null if they are still good enough.
+         */
+        @Nullable String retrainingReason() {
+            double skew = skew();
+            if (skew >= MAX_CLUSTER_SKEW && skew >= 2 * trainedSkew) {
+                return String.format("largest cluster is %.1f times the mean cluster size", skew);
+            }
+            // Wait for enough inserts for the mean to be meaningful
+            if (insertedVectorCount >= trainedVectorCount / 10 && insertedVectorCount > 0) {
+                double insertedQuantizationError = insertedSquaredDistance / insertedVectorCount;
+                if (insertedQuantizationError > MAX_QUANTIZATION_ERROR_GROWTH * trainedQuantizationError) {
+                    return String.format(
+                            "quantization error of new vectors is %.4f, trained on %.4f",
+                            insertedQuantizationError, trainedQuantizationError);
+                }
+            }
+            if (vectorCount >= MAX_VECTOR_COUNT_GROWTH * trainedVectorCount) {
+                return String.format("index grew from %d to %d vectors", trainedVectorCount, vectorCount);
+            }
+            return null;
+        }
+
+        private double skew() {
+            return postings.isEmpty() || vectorCount == 0
+                    ? 0
+                    : (double) largestClusterSize * postings.size() / vectorCount;
+        }
     }
 }
@@ -2,12 +2,64 @@ package fr.alexandredch.vectours.index.ivf;
 
 import fr.alexandredch.vectours.data.Vector;
 import java.util.List;
+import java.util.function.IntPredicate;
+import org.jspecify.annotations.Nullable;
 
 public interface IVFIndex {
 
+    /**
+     * Number of clusters scanned when the search does not specify it.
+     */
+    int DEFAULT_NPROBE = 8;
+
+    /**
+     * Number of entries tested against a search filter to estimate the share of the index it accepts.
+     */
+    int FILTER_SAMPLE_SIZE = 256;
+
     boolean canSearch();
 
     void insertVector(Vector vector);
 
-    List<Vector> search(double[] vector, int nprobe);
+    /**
+     * Removes the vector with this ordinal in the segment store, deleted or replaced since it was inserted.
+     */
+    void deleteVector(int ordinal);
+
+    /**
+     * Returns the {@code topK} closest vectors found in the {@code nprobe} clusters closest to {@code vector}, sorted
+     * by increasing distance.
+     *
+     * @param nprobe number of clusters to scan, {@link #DEFAULT_NPROBE} if not positive
+     */
+    default List<Vector> search(float[] vector, int topK, int nprobe) {
+        return search(vector, topK, nprobe, null);
+    }
+
+    /**
+     * Same as {@link #search(float[], int, int)}, only comparing {@code vector} to the vectors whose ordinal in the
+     * segment store is accepted by the filter.
+     * <p>
+     * More than {@code nprobe} clusters are scanned if needed for them to hold enough accepted vectors, see
+     * {@link #filteredProbeCount}. Fewer than {@code topK} vectors are still returned when the filter accepts more
+     * vectors in the sample than elsewhere, or when the accepted vectors are far from the query.
+     */
+    List<Vector> search(float[] vector, int topK, int nprobe, @Nullable IntPredicate filter);
+
+    /**
+     * Returns the number of clusters to scan for a filtered search, at least {@code nprobe}, so that the scanned
+     * clusters hold twice {@code topK} accepted vectors if the accepted vectors are spread evenly over the clusters.
+     *
+     * @param clusterSizes sizes of the clusters, the closest to the query first
+     * @param acceptedShare estimated share of the entries of the index accepted by the filter
+     */
+    static int filteredProbeCount(int[] clusterSizes, int nprobe, int topK, double acceptedShare) {
+        double expectedAccepted = 0;
+        int probes = 0;
+        while (probes < clusterSizes.length && (probes < nprobe || expectedAccepted < 2.0 * topK)) {
+            expectedAccepted += clusterSizes[probes] * acceptedShare;
+            probes++;
+        }
+        return probes;
+    }
 }
@@ -0,0 +1,640 @@
+package fr.alexandredch.vectours.index.ivfpq;
+
+import fr.alexandredch.vectours.data.SearchResult;
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.PersistentIndex;
+import fr.alexandredch.vectours.index.Tombstones;
+import fr.alexandredch.vectours.index.ivf.IVFIndex;
+import fr.alexandredch.vectours.index.pq.ProductQuantizer;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.math.KMeans;
+import fr.alexandredch.vectours.math.TopKHeap;
+import fr.alexandredch.vectours.store.StoreConfiguration;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * IVF index over the vectors of one dimension, whose inverted lists hold product quantization codes instead of
+ * vectors.
+ * <p>
+ * Each vector is stored in the list of its closest coarse centroid as the PQ codes of its residual, the vector minus
+ * that centroid. Residuals are much smaller than the vectors themselves, so a single set of codebooks trained on all
+ * the residuals encodes them more precisely, and a vector only costs its ordinal in the segment store and
+ * {@code subSpaceCount} bytes. The vectors of the final topK are read from the segment store by ordinal.
+ * <p>
+ * At query time, for {@link DistanceMetric#L2} a lookup table is computed per probed list from the residual of the
+ * query. The other metrics are linear in the stored vector, so one table for the query is shared by all the lists and
+ * the contribution of the centroid is added once per list.
+ * <p>
+ * Deleted and replaced vectors are marked in a {@link Tombstones} set skipped by searches, and removed from the lists
+ * by {@link #purge()}.
+ * <p>
+ * The centroids and codebooks are trained on the training executor, on a snapshot of the vectors taken by the index
+ * thread. The vectors inserted and the ordinals deleted meanwhile are kept, and applied when the lists are published,
+ * until then the index cannot be searched. The centroids, the codebooks and the ordinals and codes of each list are
+ * saved in {@link #IVF_PQ_INDEX_FILE_PREFIX} followed by the dimension, next to the segments, and reloaded by
+ * {@link #initFromDisk()} instead of retraining.
+ */
+public final class IVFPQIndex implements PersistentIndex {
+
+    public static final int MIN_VECTORS_FOR_IVF_PQ_INDEX = 10_000;
+    // Purge deleted entries when they are this share of the entries scanned by searches
+    public static final double MAX_DELETED_RATIO = 0.1;
+
+    public static final String IVF_PQ_INDEX_FILE_PREFIX = "ivf_pq_index_";
+
+    // "IVPQ", followed by the metric ordinal and the dimension
+    private static final int FILE_MAGIC = 0x49565051;
+    private static final long RETRY_DELAY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Logger logger = LoggerFactory.getLogger(IVFPQIndex.class);
+
+    private final SegmentStore segmentStore;
+    private final StoreConfiguration configuration;
+    private final DistanceMetric metric;
+    private final int dimension;
+    private final Executor trainingExecutor;
+    private final Object lock = new Object();
+
+    private volatile boolean built = false;
+    // Whether the lists changed since they were last saved or loaded
+    private volatile boolean dirty = false;
+    // Whether the lists are being trained, with the vectors inserted by ordinal and the ordinals deleted meanwhile
+    private boolean training;
+    private final Map<Integer, float[]> pendingInserts = new HashMap<>();
+    private final Set<Integer> pendingDeletes = new HashSet<>();
+    private boolean failed;
+    private long failedAt;
+    private float[] centroids = new float[0];
+    private int clusterCount;
+    private ProductQuantizer quantizer;
+    // Replaced along with the lists when they are purged, always written after and read before them
+    private volatile Tombstones tombstones = new Tombstones();
+    private volatile InvertedList[] lists = new InvertedList[0];
+    private int vectorCount;
+
+    public IVFPQIndex(SegmentStore segmentStore, StoreConfiguration configuration, int dimension) {
+        this(segmentStore, configuration, dimension, Runnable::run);
+    }
+
+    public IVFPQIndex(
+            SegmentStore segmentStore, StoreConfiguration configuration, int dimension, Executor trainingExecutor) {
+        this.segmentStore = segmentStore;
+        this.configuration = configuration;
+        this.metric = configuration.distanceMetric();
+        this.dimension = dimension;
+        this.trainingExecutor = trainingExecutor;
+    }
+
+    /**
+     * Loads the lists saved by {@link #saveToDisk()}, or starts training them if they were never saved.
+     * <p>
+     * Saved vectors that were deleted or replaced since are dropped, and the vectors saved in the segments after the
+     * index, including the ones replayed from the WAL, are encoded in their closest list.
+     */
+    public void initFromDisk() {
+        Path path = indexPath();
+        if (Files.exists(path) && readFromDisk(path)) {
+            return;
+        }
+        buildLists();
+    }
+
+    public boolean canSearch() {
+        return built;
+    }
+
+    public void insertVector(Vector vector) {
+        if (vector.values().length != dimension) {
+            throw new IllegalArgumentException("Vector of dimension " + vector.values().length
+                    + " inserted in IVF-PQ index of dimension " + dimension);
+        }
+        synchronized (lock) {
+            int ordinal = segmentStore.getOrdinal(vector.id());
+            if (ordinal < 0) {
+                return;
+            }
+            if (built) {
+                add(ordinal, vector.values());
+                dirty = true;
+                return;
+            }
+            if (training) {
+                pendingInserts.put(ordinal, vector.values());
+                return;
+            }
+        }
+        buildLists();
+    }
+
+    /**
+     * Removes the vector with this ordinal in the segment store, deleted or replaced since it was inserted.
+     */
+    public void deleteVector(int ordinal) {
+        synchronized (lock) {
+            if (training) {
+                pendingInserts.remove(ordinal);
+                pendingDeletes.add(ordinal);
+                return;
+            }
+            if (!built) {
+                return;
+            }
+            int deleted = tombstones.count();
+            tombstones.add(ordinal);
+            if (tombstones.count() > deleted) {
+                vectorCount--;
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Starts training the lists on the training executor once there are enough vectors, does nothing if they are
+     * trained or being trained, or if the last training failed less than {@link #RETRY_DELAY_NANOS} ago.
+     * <p>
+     * Must be called by the thread updating the segment store, which the vectors to train on are read from.
+     */
+    public void buildLists() {
+        synchronized (lock) {
+            if (built || training || (failed && System.nanoTime() - failedAt < RETRY_DELAY_NANOS)) {
+                return;
+            }
+            if (segmentStore.getVectorCount(dimension) <= MIN_VECTORS_FOR_IVF_PQ_INDEX) {
+                return;
+            }
+            training = true;
+        }
+        List<Vector> vectors = segmentStore.getAllVectors(dimension);
+        int[] ordinals = new int[vectors.size()];
+        for (int i = 0; i < vectors.size(); i++) {
+            ordinals[i] = segmentStore.getOrdinal(vectors.get(i).id());
+        }
+        logger.info("Training IVF-PQ index for dimension {} on {} vectors...", dimension, vectors.size());
+        trainingExecutor.execute(() -> {
+            try {
+                train(vectors, ordinals);
+            } catch (RuntimeException e) {
+                logger.error("IVF-PQ index training failed for dimension {}, retrying later", dimension, e);
+                synchronized (lock) {
+                    pendingInserts.clear();
+                    pendingDeletes.clear();
+                    training = false;
+                    failed = true;
+                    failedAt = System.nanoTime();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the deleted entries from the lists if they are a significant share of them.
+     *
+     * @return whether the lists were purged
+     */
+    public boolean purge() {
+        synchronized (lock) {
+            Tombstones deleted = tombstones;
+            if (!built || deleted.isEmpty() || deleted.count() < MAX_DELETED_RATIO * (vectorCount + deleted.count())) {
+                return false;
+            }
+            // Searches running on the current lists keep their tombstones
+            InvertedList[] purged = new InvertedList[lists.length];
+            byte[] vectorCodes = new byte[quantizer.subSpaceCount()];
+            for (int c = 0; c < lists.length; c++) {
+                InvertedList list = lists[c];
+                purged[c] = new InvertedList(quantizer.subSpaceCount());
+                for (int i = 0; i < list.size; i++) {
+                    if (!deleted.contains(list.ordinals[i])) {
+                        System.arraycopy(list.codes, i * vectorCodes.length, vectorCodes, 0, vectorCodes.length);
+                        purged[c].add(list.ordinals[i], vectorCodes);
+                    }
+                }
+            }
+            lists = purged;
+            tombstones = new Tombstones();
+            dirty = true;
+            logger.info("Purged {} deleted vectors from IVF-PQ index", deleted.count());
+            return true;
+        }
+    }
+
+    /**
+     * Returns the {@code topK} closest vectors found in the {@code nprobe} lists closest to {@code query}, with their
+     * approximate distance.
+     *
+     * @param nprobe number of lists to scan, {@link IVFIndex#DEFAULT_NPROBE} if not positive
+     */
+    public List<SearchResult> search(float[] query, int topK, int nprobe) {
+        return search(query, topK, nprobe, null);
+    }
+
+    /**
+     * Same as {@link #search(float[], int, int)}, only scoring the vectors whose ordinal in the segment store is
+     * accepted by the filter, in more than {@code nprobe} lists if needed, see {@link IVFIndex#filteredProbeCount}.
+     */
+    public List<SearchResult> search(float[] query, int topK, int nprobe, @Nullable IntPredicate filter) {
+        if (!built || topK <= 0 || query.length != dimension) {
+            return List.of();
+        }
+
+        Tombstones deleted = tombstones;
+        boolean filterDeleted = !deleted.isEmpty();
+        InvertedList[] currentLists = lists;
+        int[] probes;
+        if (filter == null) {
+            probes = closestCentroids(query, nprobe > 0 ? nprobe : IVFIndex.DEFAULT_NPROBE);
+        } else {
+            // Probes more lists when they would not hold enough accepted vectors
+            int[] byDistance = closestCentroids(query, clusterCount);
+            int[] sizes = new int[byDistance.length];
+            for (int i = 0; i < byDistance.length; i++) {
+                sizes[i] = currentLists[byDistance[i]].size;
+            }
+            double acceptedShare = acceptedShare(currentLists, deleted, filter);
+            probes = Arrays.copyOf(
+                    byDistance,
+                    IVFIndex.filteredProbeCount(
+                            sizes, nprobe > 0 ? nprobe : IVFIndex.DEFAULT_NPROBE, topK, acceptedShare));
+        }
+        boolean residualTables = metric == DistanceMetric.L2;
+        float[] queryTable = residualTables ? null : quantizer.distanceTable(query, metric);
+        float[] residual = new float[dimension];
+        float[] centroid = new float[dimension];
+
+        // Heap ids are ordinals, only the vectors of the results are read from the segment store
+        TopKHeap heap = new TopKHeap(topK);
+        for (int cluster : probes) {
+            System.arraycopy(centroids, cluster * dimension, centroid, 0, dimension);
+            float[] table;
+            float centroidPartialDistance = 0;
+            if (residualTables) {
+                for (int d = 0; d < dimension; d++) {
+                    residual[d] = query[d] - centroid[d];
+                }
+                table = quantizer.distanceTable(residual, metric);
+            } else {
+                table = queryTable;
+                centroidPartialDistance = metric.partialDistance(query, centroid);
+            }
+
+            InvertedList list = currentLists[cluster];
+            int size = list.size;
+            int[] ordinals = list.ordinals;
+            byte[] codes = list.codes;
+            int codeSize = quantizer.subSpaceCount();
+            for (int i = 0; i < size; i++) {
+                if ((filterDeleted && deleted.contains(ordinals[i])) || (filter != null && !filter.test(ordinals[i]))) {
+                    continue;
+                }
+                float partialDistance = quantizer.partialDistancesSum(table, codes, i * codeSize);
+                heap.offer(ordinals[i], metric.combine(centroidPartialDistance + partialDistance));
+            }
+        }
+
+        List<SearchResult> results = new ArrayList<>(heap.size());
+        for (int index : heap.sortedIndexes()) {
+            // Null if the vector was deleted since the tombstones were read
+            Vector vector = segmentStore.getVector(heap.id(index));
+            if (vector != null) {
+                results.add(new SearchResult(vector.id(), heap.distance(index), vector.metadata()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Estimates the share of the entries of the lists accepted by the filter, deleted ones excepted, from a sample of
+     * evenly spaced entries, exact for small indexes.
+     */
+    private static double acceptedShare(InvertedList[] lists, Tombstones deleted, IntPredicate filter) {
+        int entries = 0;
+        for (InvertedList list : lists) {
+            entries += list.size;
+        }
+        int step = Math.max(1, entries / IVFIndex.FILTER_SAMPLE_SIZE);
+        int sampled = 0;
+        int accepted = 0;
+        int entry = 0;
+        for (InvertedList list : lists) {
+            int size = list.size;
+            int[] ordinals = list.ordinals;
+            for (; entry < size; entry += step) {
+                sampled++;
+                if (!deleted.contains(ordinals[entry]) && filter.test(ordinals[entry])) {
+                    accepted++;
+                }
+            }
+            entry -= size;
+        }
+        return sampled == 0 ? 0 : (double) accepted / sampled;
+    }
+
+    private void train(List<Vector> vectors, int[] ordinals) {
+        KMeans.Result coarse = newKMeans().build().fit(vectors);
+        float[] trainedCentroids = coarse.centroids();
+
+        // Residuals of every vector to its centroid, the codebooks are trained on all of them together
+        float[] residuals = new float[vectors.size() * dimension];
+        for (int i = 0; i < vectors.size(); i++) {
+            float[] values = vectors.get(i).values();
+            int centroidOffset = coarse.assignments()[i] * dimension;
+            for (int d = 0; d < dimension; d++) {
+                residuals[i * dimension + d] = values[d] - trainedCentroids[centroidOffset + d];
+            }
+        }
+        int subSpaceCount = ProductQuantizer.subSpaceCount(dimension, ProductQuantizer.SubSpacePolicy.RESIDUAL);
+        byte[] codes = new byte[vectors.size() * subSpaceCount];
+        ProductQuantizer trainedQuantizer =
+                ProductQuantizer.train(residuals, dimension, subSpaceCount, newKMeans(), codes);
+
+        int pendingCount;
+        synchronized (lock) {
+            InvertedList[] trainedLists = new InvertedList[coarse.clusterCount()];
+            for (int c = 0; c < trainedLists.length; c++) {
+                trainedLists[c] = new InvertedList(subSpaceCount);
+            }
+            byte[] vectorCodes = new byte[subSpaceCount];
+            int count = 0;
+            for (int i = 0; i < vectors.size(); i++) {
+                // Replaced vectors are deleted, and encoded below with their new values
+                if (ordinals[i] < 0 || pendingDeletes.contains(ordinals[i])) {
+                    continue;
+                }
+                System.arraycopy(codes, i * subSpaceCount, vectorCodes, 0, subSpaceCount);
+                trainedLists[coarse.assignments()[i]].add(ordinals[i], vectorCodes);
+                count++;
+            }
+            publish(trainedCentroids, trainedQuantizer, trainedLists, count);
+            // Vectors inserted while training, those deleted or replaced since were removed
+            for (Map.Entry<Integer, float[]> pending : pendingInserts.entrySet()) {
+                add(pending.getKey(), pending.getValue());
+            }
+            pendingCount = pendingInserts.size();
+            pendingInserts.clear();
+            pendingDeletes.clear();
+            training = false;
+            failed = false;
+            built = true;
+            dirty = true;
+        }
+        logger.info(
+                "Trained IVF-PQ index of {} lists and {} subspaces on {} vectors, {} inserted while training, "
+                        + "coarse quantization error {}",
+                coarse.clusterCount(),
+                subSpaceCount,
+                vectors.size(),
+                pendingCount,
+                coarse.quantizationError());
+    }
+
+    /**
+     * Replaces the trained state of the index, before {@code built} is written.
+     */
+    private void publish(
+            float[] trainedCentroids, ProductQuantizer trainedQuantizer, InvertedList[] trainedLists, int count) {
+        centroids = trainedCentroids;
+        clusterCount = trainedLists.length;
+        quantizer = trainedQuantizer;
+        tombstones = new Tombstones();
+        lists = trainedLists;
+        vectorCount = count;
+    }
+
+    /**
+     * Writes the centroids, the codebooks and the live entries of each list to a temporary file, then moves it over
+     * the index file so that a crash never leaves a partial index behind.
+     */
+    @Override
+    public void saveToDisk() {
+        if (!dirty) {
+            return;
+        }
+        // Entries below the size of a list never change, only the lists and their sizes are read under the lock
+        InvertedList[] savedLists;
+        int[] sizes;
+        Tombstones deleted;
+        synchronized (lock) {
+            if (!built) {
+                return;
+            }
+            dirty = false;
+            deleted = tombstones;
+            savedLists = lists;
+            sizes = new int[savedLists.length];
+            for (int c = 0; c < savedLists.length; c++) {
+                sizes[c] = savedLists[c].size;
+            }
+        }
+
+        Path path = indexPath();
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (OutputStream outputStream = Files.newOutputStream(temporaryPath);
+                    BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+                    DataOutputStream output = new DataOutputStream(bufferedOutputStream)) {
+                output.writeInt(FILE_MAGIC);
+                output.writeByte(metric.ordinal());
+                output.writeInt(dimension);
+                output.writeInt(savedLists.length);
+                for (float value : centroids) {
+                    output.writeFloat(value);
+                }
+                quantizer.write(output);
+                int codeSize = quantizer.subSpaceCount();
+                for (int c = 0; c < savedLists.length; c++) {
+                    InvertedList list = savedLists[c];
+                    int live = 0;
+                    for (int i = 0; i < sizes[c]; i++) {
+                        if (!deleted.contains(list.ordinals[i])) {
+                            live++;
+                        }
+                    }
+                    output.writeInt(live);
+                    for (int i = 0; i < sizes[c]; i++) {
+                        if (!deleted.contains(list.ordinals[i])) {
+                            output.writeInt(list.ordinals[i]);
+                            output.write(list.codes, i * codeSize, codeSize);
+                        }
+                    }
+                }
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            throw new RuntimeException("Failed to write IVF-PQ index to disk", e);
+        }
+        logger.info("Saved IVF-PQ index of {} lists for dimension {} to disk", savedLists.length, dimension);
+    }
+
+    /**
+     * Loads the saved lists, unless the file does not match the configuration of the store or is truncated.
+     *
+     * @return whether the lists were loaded
+     */
+    private boolean readFromDisk(Path path) {
+        try (InputStream inputStream = Files.newInputStream(path);
+                BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+                DataInputStream input = new DataInputStream(bufferedInputStream)) {
+            if (input.readInt() != FILE_MAGIC) {
+                logger.warn("Unsupported IVF-PQ index file format: {}, retraining", path);
+                return false;
+            }
+            if (input.readByte() != metric.ordinal()) {
+                logger.warn("IVF-PQ index was saved with another distance metric, retraining");
+                return false;
+            }
+            if (input.readInt() != dimension) {
+                logger.warn("IVF-PQ index file {} holds vectors of another dimension, retraining", path);
+                return false;
+            }
+            int savedClusterCount = input.readInt();
+            if (savedClusterCount <= 0 || (long) savedClusterCount * dimension > Files.size(path)) {
+                logger.warn("Corrupted IVF-PQ index file {}, retraining", path);
+                return false;
+            }
+            float[] savedCentroids = new float[savedClusterCount * dimension];
+            for (int i = 0; i < savedCentroids.length; i++) {
+                savedCentroids[i] = input.readFloat();
+            }
+            ProductQuantizer savedQuantizer = ProductQuantizer.read(input, dimension);
+
+            int codeSize = savedQuantizer.subSpaceCount();
+            InvertedList[] savedLists = new InvertedList[savedClusterCount];
+            byte[] vectorCodes = new byte[codeSize];
+            BitSet covered = new BitSet();
+            int count = 0;
+            int dropped = 0;
+            for (int c = 0; c < savedClusterCount; c++) {
+                savedLists[c] = new InvertedList(codeSize);
+                int size = input.readInt();
+                for (int i = 0; i < size; i++) {
+                    int ordinal = input.readInt();
+                    input.readFully(vectorCodes);
+                    if (ordinal >= 0 && segmentStore.getVector(ordinal) != null && !covered.get(ordinal)) {
+                        covered.set(ordinal);
+                        savedLists[c].add(ordinal, vectorCodes);
+                        count++;
+                    } else {
+                        dropped++;
+                    }
+                }
+            }
+
+            int added = 0;
+            synchronized (lock) {
+                publish(savedCentroids, savedQuantizer, savedLists, count);
+                for (Vector vector : segmentStore.getAllVectors(dimension)) {
+                    int ordinal = segmentStore.getOrdinal(vector.id());
+                    if (ordinal >= 0 && !covered.get(ordinal)) {
+                        add(ordinal, vector.values());
+                        added++;
+                    }
+                }
+                built = true;
+                dirty = added > 0 || dropped > 0;
+            }
+            logger.info(
+                    "Loaded IVF-PQ index of {} lists from disk, dropped {} and added {} vectors",
+                    savedClusterCount,
+                    dropped,
+                    added);
+            return true;
+        } catch (EOFException e) {
+            logger.warn("Truncated IVF-PQ index file {}, retraining", path);
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read IVF-PQ index from disk", e);
+        }
+    }
+
+    private Path indexPath() {
+        return Path.of(SegmentStore.SEGMENTS_DIR, IVF_PQ_INDEX_FILE_PREFIX + dimension);
+    }
+
+    private void add(int ordinal, float[] values) {
+        // By L2 as k-means assigned the training vectors, which also gives the smallest residual to encode
+        int cluster = closestCentroids(values, 1, DistanceMetric.L2)[0];
+        float[] residual = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            residual[d] = values[d] - centroids[cluster * dimension + d];
+        }
+        byte[] codes = new byte[quantizer.subSpaceCount()];
+        quantizer.encode(residual, codes, 0);
+        lists[cluster].add(ordinal, codes);
+        vectorCount++;
+    }
+
+    private int[] closestCentroids(float[] vector, int nprobe) {
+        return closestCentroids(vector, nprobe, metric);
+    }
+
+    private int[] closestCentroids(float[] vector, int nprobe, DistanceMetric distanceMetric) {
+        TopKHeap heap = new TopKHeap(Math.min(nprobe, clusterCount));
+        float[] centroid = new float[dimension];
+        for (int c = 0; c < clusterCount; c++) {
+            System.arraycopy(centroids, c * dimension, centroid, 0, dimension);
+            heap.offer(c, distanceMetric.distance(vector, centroid));
+        }
+        int[] indexes = heap.sortedIndexes();
+        int[] closest = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            closest[i] = heap.id(indexes[i]);
+        }
+        return closest;
+    }
+
+    private KMeans.Builder newKMeans() {
+        return new KMeans.Builder()
+                .metric(metric)
+                .trainingSampleSize(configuration.trainingSampleSize())
+                .miniBatchSize(configuration.trainingBatchSize());
+    }
+
+    /**
+     * Ordinals and codes of the vectors of one list, in growable arrays.
+     * <p>
+     * Written under the index lock. Entries are written before {@code size} is incremented and arrays are only replaced
+     * by larger copies, so a search reading {@code size} first sees complete entries.
+     */
+    private static final class InvertedList {
+
+        private final int codeSize;
+        private int[] ordinals = new int[16];
+        private byte[] codes;
+        private volatile int size;
+
+        InvertedList(int codeSize) {
+            this.codeSize = codeSize;
+            this.codes = new byte[ordinals.length * codeSize];
+        }
+
+        void add(int ordinal, byte[] vectorCodes) {
+            if (size == ordinals.length) {
+                codes = Arrays.copyOf(codes, codes.length * 2);
+                ordinals = Arrays.copyOf(ordinals, ordinals.length * 2);
+            }
+            System.arraycopy(vectorCodes, 0, codes, size * codeSize, codeSize);
+            ordinals[size] = ordinal;
+            size++;
+        }
+    }
+}
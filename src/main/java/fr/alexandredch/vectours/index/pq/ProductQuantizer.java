@@ -0,0 +1,189 @@
+package fr.alexandredch.vectours.index.pq;
+
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.math.KMeans;
+import fr.alexandredch.vectours.math.Vectors;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Trained product quantization codebooks: vectors are split into {@code subSpaceCount} contiguous subvectors, each
+ * encoded as the index of its closest centroid in the codebook of its subspace, on one byte.
+ * <p>
+ * Codebooks and distance tables are flat arrays, the centroid {@code k} of subspace {@code m} starts at
+ * {@code (m * CENTROIDS_PER_SUBSPACE + k) * subDimension}.
+ */
+public final class ProductQuantizer {
+
+    public static final int CENTROIDS_PER_SUBSPACE = 256;
+    // Codebooks are refined by later points anyway, more iterations barely reduce the quantization error
+    public static final int TRAINING_ITERATIONS = 25;
+
+    private final int dimension;
+    private final int subSpaceCount;
+    private final int subDimension;
+    private final float[] codebooks;
+
+    private ProductQuantizer(int dimension, int subSpaceCount, float[] codebooks) {
+        this.dimension = dimension;
+        this.subSpaceCount = subSpaceCount;
+        this.subDimension = dimension / subSpaceCount;
+        this.codebooks = codebooks;
+    }
+
+    /**
+     * How many subspaces vectors are split into, depending on what the codes encode.
+     */
+    public enum SubSpacePolicy {
+        // Vectors scanned in full by flat searches: 4 subspaces up to 128 components, then doubling with the dimension
+        // up to 64, the counts the flat index recall was tuned with
+        FLAT,
+        // Residuals to the IVF centroids: about one subspace per 8 components, at most 64
+        RESIDUAL
+    }
+
+    /**
+     * Number of subspaces to split vectors of this dimension into under this policy, lowered to a divisor of the
+     * dimension so that every subspace has the same size.
+     */
+    public static int subSpaceCount(int dimension, SubSpacePolicy policy) {
+        int subSpaceCount;
+        if (policy == SubSpacePolicy.RESIDUAL) subSpaceCount = Math.max(1, Math.min(64, dimension / 8));
+        else if (dimension <= 128) subSpaceCount = Math.min(4, dimension);
+        else if (dimension <= 256) subSpaceCount = 8;
+        else if (dimension <= 512) subSpaceCount = 16;
+        else if (dimension <= 1024) subSpaceCount = 32;
+        else subSpaceCount = 64;
+        while (dimension % subSpaceCount != 0) {
+            subSpaceCount--;
+        }
+        return subSpaceCount;
+    }
+
+    /**
+     * Trains one codebook per subspace with k-means on {@code points}, stored row-major.
+     *
+     * @param kMeans configuration of the k-means runs, subspaces are always clustered with {@link DistanceMetric#L2}
+     *               into {@link #CENTROIDS_PER_SUBSPACE} centroids
+     * @param codes  receives the {@code subSpaceCount} codes of every point, row-major
+     */
+    public static ProductQuantizer train(
+            float[] points, int dimension, int subSpaceCount, KMeans.Builder kMeans, byte[] codes) {
+        int pointCount = points.length / dimension;
+        int subDimension = dimension / subSpaceCount;
+        float[] codebooks = new float[subSpaceCount * CENTROIDS_PER_SUBSPACE * subDimension];
+        float[] subvectors = new float[pointCount * subDimension];
+        kMeans.clusterCount(CENTROIDS_PER_SUBSPACE).maxIterations(TRAINING_ITERATIONS).metric(DistanceMetric.L2);
+        KMeans subSpaceKMeans = kMeans.build();
+
+        for (int m = 0; m < subSpaceCount; m++) {
+            for (int i = 0; i < pointCount; i++) {
+                System.arraycopy(points, i * dimension + m * subDimension, subvectors, i * subDimension, subDimension);
+            }
+            KMeans.Result result = subSpaceKMeans.fit(subvectors, subDimension);
+
+            // With fewer points than centroids, the codebook is padded with copies of the first centroid
+            int codebookOffset = m * CENTROIDS_PER_SUBSPACE * subDimension;
+            for (int k = 0; k < CENTROIDS_PER_SUBSPACE; k++) {
+                int centroid = k < result.clusterCount() ? k : 0;
+                System.arraycopy(
+                        result.centroids(),
+                        centroid * subDimension,
+                        codebooks,
+                        codebookOffset + k * subDimension,
+                        subDimension);
+            }
+            for (int i = 0; i < pointCount; i++) {
+                codes[i * subSpaceCount + m] = (byte) result.assignments()[i];
+            }
+        }
+        return new ProductQuantizer(dimension, subSpaceCount, codebooks);
+    }
+
+    /**
+     * Reads codebooks of vectors of this dimension written by {@link #write(DataOutputStream)}.
+     */
+    public static ProductQuantizer read(DataInputStream input, int dimension) throws IOException {
+        int subSpaceCount = input.readInt();
+        if (subSpaceCount <= 0 || subSpaceCount > dimension || dimension % subSpaceCount != 0) {
+            throw new IOException("Invalid subspace count " + subSpaceCount + " for dimension " + dimension);
+        }
+        // Every subspace holds the same number of centroids, so the codebooks hold that many vectors
+        float[] codebooks = new float[CENTROIDS_PER_SUBSPACE * dimension];
+        for (int i = 0; i < codebooks.length; i++) {
+            codebooks[i] = input.readFloat();
+        }
+        return new ProductQuantizer(dimension, subSpaceCount, codebooks);
+    }
+
+    /**
+     * Writes the subspace count followed by the codebooks.
+     */
+    public void write(DataOutputStream output) throws IOException {
+        output.writeInt(subSpaceCount);
+        for (float value : codebooks) {
+            output.writeFloat(value);
+        }
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int subSpaceCount() {
+        return subSpaceCount;
+    }
+
+    /**
+     * Writes the codes of {@code vector} at {@code codesOffset}.
+     */
+    public void encode(float[] vector, byte[] codes, int codesOffset) {
+        for (int m = 0; m < subSpaceCount; m++) {
+            int closest = 0;
+            float closestDistance = Float.POSITIVE_INFINITY;
+            for (int k = 0; k < CENTROIDS_PER_SUBSPACE; k++) {
+                float distance = Vectors.squaredEuclidianDistance(
+                        vector, m * subDimension, codebooks, centroidOffset(m, k), subDimension);
+                if (distance < closestDistance) {
+                    closestDistance = distance;
+                    closest = k;
+                }
+            }
+            codes[codesOffset + m] = (byte) closest;
+        }
+    }
+
+    /**
+     * Returns {@code table[m * CENTROIDS_PER_SUBSPACE + k] = metric.partialDistance(query_m, codebook_m[k])}.
+     */
+    public float[] distanceTable(float[] query, DistanceMetric metric) {
+        float[] table = new float[subSpaceCount * CENTROIDS_PER_SUBSPACE];
+        float[] querySubvector = new float[subDimension];
+        float[] centroid = new float[subDimension];
+        for (int m = 0; m < subSpaceCount; m++) {
+            System.arraycopy(query, m * subDimension, querySubvector, 0, subDimension);
+            for (int k = 0; k < CENTROIDS_PER_SUBSPACE; k++) {
+                System.arraycopy(codebooks, centroidOffset(m, k), centroid, 0, subDimension);
+                table[m * CENTROIDS_PER_SUBSPACE + k] = metric.partialDistance(querySubvector, centroid);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Sums the table entries of the codes at {@code codesOffset}, to be turned into a distance with
+     * {@link DistanceMetric#combine(float)}.
+     */
+    public float partialDistancesSum(float[] table, byte[] codes, int codesOffset) {
+        float sum = 0;
+        for (int m = 0; m < subSpaceCount; m++) {
+            sum += table[m * CENTROIDS_PER_SUBSPACE + (codes[codesOffset + m] & 0xFF)];
+        }
+        return sum;
+    }
+
+    private int centroidOffset(int subSpace, int centroid) {
+        return (subSpace * CENTROIDS_PER_SUBSPACE + centroid) * subDimension;
+    }
+}
@@ -2,199 +2,391 @@ package fr.alexandredch.vectours.index.pq;
 
 import fr.alexandredch.vectours.data.SearchResult;
 import fr.alexandredch.vectours.data.Vector;
-import fr.alexandredch.vectours.math.Cluster;
+import fr.alexandredch.vectours.math.DistanceMetric;
 import fr.alexandredch.vectours.math.KMeans;
-import fr.alexandredch.vectours.math.Vectors;
+import fr.alexandredch.vectours.math.TopKHeap;
+import fr.alexandredch.vectours.store.StoreConfiguration;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
-import java.util.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Product quantization of all the vectors of one dimension, searched by scanning the codes of every vector.
+ * <p>
+ * Codes are stored by ordinal in the segment store, in pages of {@link #PAGE_SIZE} ordinals: the codes of the vector
+ * with ordinal {@code o} are at {@code (o % PAGE_SIZE) * subSpaceCount} in the byte array of page
+ * {@code o / PAGE_SIZE}, and a bit set per page marks the ordinals holding the codes of a live vector. Pages are only
+ * allocated once they hold a vector of this dimension. A search computes the table of the partial distances of the
+ * query to every centroid once, then sums table entries over the codes of the set bits, in chunks of
+ * {@link #SCAN_CHUNK_SIZE} ordinals scanned in parallel, each into its own {@link TopKHeap}. Heaps rank the sums of
+ * partial distances, they are only turned into distances, and {@link SearchResult}s created, for the final topK.
+ * <p>
+ * Codes are written in place under the index lock, and searched without locking: the page arrays are only replaced by
+ * larger copies, pages are allocated before {@code ordinalLimit} is written, and bit set words are written with
+ * release semantics after the codes of their ordinals, and read with acquire semantics, so a search reading
+ * {@code ordinalLimit} first sees complete codes.
+ * <p>
+ * Codebooks are trained on the training executor, away from the index updates, on a snapshot of the vectors taken by
+ * the index thread, as the segment store cannot be read concurrently with its updates. The vectors inserted and the
+ * ordinals deleted meanwhile are kept, and applied when the codebooks are published, until then the index cannot be
+ * searched. A failed training is started again by the next insert, after {@link #RETRY_DELAY_NANOS}.
+ */
 public final class VectorProductQuantization {
 
-    private static final int MIN_VECTORS_FOR_PRODUCT_QUANTIZATION = 10_000;
-    private static final int DEFAULT_CENTROIDS_PER_SUBSPACE = 256;
+    public enum TrainingState {
+        WAITING_FOR_VECTORS,
+        TRAINING,
+        TRAINED,
+        FAILED
+    }
 
-    private static final Logger logger = LoggerFactory.getLogger(VectorProductQuantization.class);
+    public static final int MIN_VECTORS_FOR_PRODUCT_QUANTIZATION = 10_000;
 
-    private final int subSpacesCount;
-    private final int centroidsPerSubSpaceCount;
-    private final int subvectorDim; // Dimension of each subspace
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    // Multiple of the page size, so that chunks cover whole pages
+    private static final int SCAN_CHUNK_SIZE = 1 << 16;
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final long RETRY_DELAY_NANOS = TimeUnit.MINUTES.toNanos(1);
 
-    // codebooks[m] = centroids for subspace m
-    // codebooks[m][k] = k-th centroid in subspace m (array of size subvectorDim)
-    private double[][][] codebooks;
+    private static final Logger logger = LoggerFactory.getLogger(VectorProductQuantization.class);
 
-    // Store encoded vectors: vectorId -> byte array of codes
-    private final Map<String, byte[]> encodedVectors;
     private final SegmentStore segmentStore;
-
-    private boolean built = false;
+    private final StoreConfiguration configuration;
+    private final DistanceMetric metric;
+    private final int dimension;
+    private final ForkJoinPool searchPool;
+    private final Executor trainingExecutor;
+    private final Object lock = new Object();
+
+    private volatile TrainingState trainingState = TrainingState.WAITING_FOR_VECTORS;
+    // Values of the vectors inserted while training by ordinal, and ordinals deleted while training
+    private final Map<Integer, float[]> pendingVectors = new HashMap<>();
+    private final Set<Integer> pendingDeletes = new HashSet<>();
+    private long failedAt;
+    private ProductQuantizer quantizer;
+    // Codes of the vector with ordinal o in page o / PAGE_SIZE if bit o % PAGE_SIZE of its encoded page is set, null
+    // for the pages without any vector of this dimension
+    private byte[][] codePages = new byte[0][];
+    private long[][] encodedPages = new long[0][];
+    // One past the largest ordinal encoded, written after every update
+    private volatile int ordinalLimit;
 
     public VectorProductQuantization(SegmentStore segmentStore, int dimension) {
+        this(segmentStore, dimension, new StoreConfiguration.Builder().build());
+    }
+
+    public VectorProductQuantization(SegmentStore segmentStore, int dimension, StoreConfiguration configuration) {
+        this(segmentStore, dimension, configuration, ForkJoinPool.commonPool());
+    }
+
+    public VectorProductQuantization(
+            SegmentStore segmentStore, int dimension, StoreConfiguration configuration, ForkJoinPool searchPool) {
+        this(segmentStore, dimension, configuration, searchPool, Runnable::run);
+    }
+
+    public VectorProductQuantization(
+            SegmentStore segmentStore,
+            int dimension,
+            StoreConfiguration configuration,
+            ForkJoinPool searchPool,
+            Executor trainingExecutor) {
         this.segmentStore = segmentStore;
-        this.subSpacesCount = calculateOptimalSubSpacesCount(dimension);
-        this.centroidsPerSubSpaceCount = DEFAULT_CENTROIDS_PER_SUBSPACE;
-        this.subvectorDim = dimension / subSpacesCount;
-        this.encodedVectors = new HashMap<>();
+        this.configuration = configuration;
+        this.metric = configuration.distanceMetric();
+        this.dimension = dimension;
+        this.searchPool = searchPool;
+        this.trainingExecutor = trainingExecutor;
+    }
 
-        if (dimension % subSpacesCount != 0) {
-            logger.error("Dimension {} is not divisible by subspaces count {}", dimension, subSpacesCount);
-        }
+    public boolean canSearch() {
+        return trainingState == TrainingState.TRAINED;
+    }
+
+    public TrainingState trainingState() {
+        return trainingState;
     }
 
     public void insertVector(Vector vector) {
-        if (!built) {
+        TrainingState state = trainingState;
+        if (state == TrainingState.WAITING_FOR_VECTORS || state == TrainingState.FAILED) {
             // Index will be built later and the vector encoded at that time
             return;
         }
-        byte[] codes = encode(vector.values());
-        encodedVectors.put(vector.id(), codes);
+        int ordinal = segmentStore.getOrdinal(vector.id());
+        if (ordinal < 0) {
+            return;
+        }
+        synchronized (lock) {
+            // The state may have changed to TRAINED since it was read
+            if (trainingState == TrainingState.TRAINING) {
+                pendingVectors.put(ordinal, vector.values());
+                return;
+            }
+            add(ordinal, vector.values());
+            ordinalLimit = Math.max(ordinalLimit, ordinal + 1);
+        }
     }
 
+    /**
+     * Removes the vector with this ordinal in the segment store, deleted or replaced since it was inserted.
+     */
+    public void deleteVector(int ordinal) {
+        synchronized (lock) {
+            if (trainingState == TrainingState.TRAINING) {
+                pendingVectors.remove(ordinal);
+                pendingDeletes.add(ordinal);
+                return;
+            }
+            int page = ordinal >>> PAGE_SHIFT;
+            if (ordinal >= 0 && page < encodedPages.length && encodedPages[page] != null) {
+                long[] words = encodedPages[page];
+                int w = (ordinal & (PAGE_SIZE - 1)) >>> 6;
+                WORDS.setRelease(words, w, words[w] & ~(1L << ordinal));
+            }
+        }
+    }
+
+    /**
+     * Starts training the codebooks on the training executor once there are enough vectors, does nothing if training
+     * already started.
+     * <p>
+     * Must be called by the thread updating the segment store, which the vectors to train on are read from.
+     */
     public void buildSubspaces() {
-        if (segmentStore.getTotalVectorCount() < MIN_VECTORS_FOR_PRODUCT_QUANTIZATION) {
-            logger.debug("Not enough vectors to build subspaces, skipping");
+        if (!canStartTraining()) {
+            // Already started, new vectors are encoded on insert or when the codebooks are published
             return;
         }
-        if (built) {
-            // Already built, just insert new vectors
+        if (segmentStore.getVectorCount(dimension) < MIN_VECTORS_FOR_PRODUCT_QUANTIZATION) {
+            logger.debug("Not enough vectors to build subspaces, skipping");
             return;
         }
-
-        List<Vector> vectors = segmentStore.getAllVectors();
-        logger.debug("Found {} vectors to build subspaces", vectors.size());
-        codebooks = new double[subSpacesCount][centroidsPerSubSpaceCount][subvectorDim];
-
-        // For each subspace
-        for (int m = 0; m < subSpacesCount; m++) {
-            logger.debug("Building subspace {}...", m);
-
-            // Extract all subvectors for this subspace from all training vectors
-            List<Vector> subvectors = new ArrayList<>();
-            for (int i = 0; i < vectors.size(); i++) {
-                Vector vector = vectors.get(i);
-                double[] subvector = extractSubvector(vector.values(), m);
-                subvectors.add(new Vector("sub_" + i, subvector, null));
-            }
-
-            // Run k-means on these subvectors to get K centroids
-            List<Cluster<Vector>> clusters = KMeans.fit(subvectors, centroidsPerSubSpaceCount);
-
-            for (int k = 0; k < centroidsPerSubSpaceCount; k++) {
-                codebooks[m][k] = clusters.get(k).getCentroid();
+        synchronized (lock) {
+            if (!canStartTraining()) {
+                return;
             }
+            trainingState = TrainingState.TRAINING;
         }
-
-        // Encode all vectors
-        logger.debug("Encoding vectors...");
-        for (Vector vector : vectors) {
-            byte[] codes = encode(vector.values());
-            encodedVectors.put(vector.id(), codes);
+        List<Vector> vectors = segmentStore.getAllVectors(dimension);
+        int[] ordinals = new int[vectors.size()];
+        for (int i = 0; i < vectors.size(); i++) {
+            ordinals[i] = segmentStore.getOrdinal(vectors.get(i).id());
         }
+        logger.info("Training PQ index for dimension {} on {} vectors...", dimension, vectors.size());
+        trainingExecutor.execute(() -> {
+            try {
+                train(vectors, ordinals);
+            } catch (RuntimeException e) {
+                logger.error("PQ index training failed for dimension {}, retrying later", dimension, e);
+                synchronized (lock) {
+                    pendingVectors.clear();
+                    pendingDeletes.clear();
+                    failedAt = System.nanoTime();
+                    trainingState = TrainingState.FAILED;
+                }
+            }
+        });
+    }
 
-        logger.info("Subspaces built");
-        built = true;
+    private boolean canStartTraining() {
+        TrainingState state = trainingState;
+        return state == TrainingState.WAITING_FOR_VECTORS
+                || (state == TrainingState.FAILED && System.nanoTime() - failedAt >= RETRY_DELAY_NANOS);
     }
 
-    public List<SearchResult> approxSearch(double[] query, int nprobe) {
-        if (codebooks == null || encodedVectors.isEmpty()) {
-            throw new IllegalStateException("Index not built. Call buildSubspaces() first.");
+    private void train(List<Vector> vectors, int[] ordinals) {
+        float[] points = new float[Math.multiplyExact(vectors.size(), dimension)];
+        for (int i = 0; i < vectors.size(); i++) {
+            System.arraycopy(vectors.get(i).values(), 0, points, i * dimension, dimension);
         }
+        int subSpaceCount = ProductQuantizer.subSpaceCount(dimension, ProductQuantizer.SubSpacePolicy.FLAT);
+        byte[] trainedCodes = new byte[vectors.size() * subSpaceCount];
+        KMeans.Builder kMeans = new KMeans.Builder()
+                .metric(metric)
+                .trainingSampleSize(configuration.trainingSampleSize())
+                .miniBatchSize(configuration.trainingBatchSize());
+        ProductQuantizer trained = ProductQuantizer.train(points, dimension, subSpaceCount, kMeans, trainedCodes);
+
+        int pendingCount;
+        synchronized (lock) {
+            quantizer = trained;
+            int limit = 0;
+            for (int i = 0; i < vectors.size(); i++) {
+                // Replaced vectors are deleted, and encoded below with their new values
+                int ordinal = ordinals[i];
+                if (ordinal < 0 || pendingDeletes.contains(ordinal)) {
+                    continue;
+                }
+                ensurePage(ordinal);
+                System.arraycopy(
+                        trainedCodes,
+                        i * subSpaceCount,
+                        codePages[ordinal >>> PAGE_SHIFT],
+                        (ordinal & (PAGE_SIZE - 1)) * subSpaceCount,
+                        subSpaceCount);
+                markEncoded(ordinal);
+                limit = Math.max(limit, ordinal + 1);
+            }
+            // Vectors inserted while training, those deleted or replaced since were removed
+            for (Map.Entry<Integer, float[]> pending : pendingVectors.entrySet()) {
+                add(pending.getKey(), pending.getValue());
+                limit = Math.max(limit, pending.getKey() + 1);
+            }
+            pendingCount = pendingVectors.size();
+            pendingVectors.clear();
+            pendingDeletes.clear();
+            ordinalLimit = limit;
+            trainingState = TrainingState.TRAINED;
+        }
+        logger.info(
+                "Trained PQ index of {} subspaces on {} vectors, {} inserted while training",
+                subSpaceCount,
+                vectors.size(),
+                pendingCount);
+    }
 
-        double[][] distanceTable = buildDistanceTable(query);
-
-        return encodedVectors.entrySet().stream()
-                .map(entry ->
-                        new SearchResult(entry.getKey(), asymmetricDistance(distanceTable, entry.getValue()), null))
-                .sorted(Comparator.comparingDouble(SearchResult::distance))
-                .limit(nprobe)
-                .toList();
+    public List<SearchResult> approxSearch(float[] query, int topK) {
+        return approxSearch(query, topK, null);
     }
 
     /**
-     * distanceTable[m][k] = ||query_subvector_m - codebook[m][k]||^2
+     * Returns the {@code topK} vectors with the smallest approximate distance to {@code query}, only scoring the
+     * vectors whose ordinal in the segment store is accepted by the filter.
      */
-    private double[][] buildDistanceTable(double[] query) {
-        double[][] distanceTable = new double[subSpacesCount][centroidsPerSubSpaceCount];
-
-        for (int m = 0; m < subSpacesCount; m++) {
-            double[] querySubvector = extractSubvector(query, m);
+    public List<SearchResult> approxSearch(float[] query, int topK, @Nullable IntPredicate filter) {
+        if (!canSearch()) {
+            throw new IllegalStateException("Index not built. Call buildSubspaces() first.");
+        }
+        if (topK <= 0 || query.length != dimension) {
+            return List.of();
+        }
 
-            for (int k = 0; k < centroidsPerSubSpaceCount; k++) {
-                distanceTable[m][k] = Vectors.squaredEuclidianDistance(querySubvector, codebooks[m][k]);
+        // Read the limit before the arrays, see the class comment
+        int limit = ordinalLimit;
+        ProductQuantizer currentQuantizer = quantizer;
+        byte[][] currentCodePages = codePages;
+        long[][] currentEncodedPages = encodedPages;
+        float[] table = currentQuantizer.distanceTable(query, metric);
+
+        TopKHeap heap;
+        if (limit <= SCAN_CHUNK_SIZE) {
+            heap = scan(currentQuantizer, table, currentCodePages, currentEncodedPages, 0, limit, topK, filter);
+        } else {
+            List<ForkJoinTask<TopKHeap>> tasks = new ArrayList<>();
+            for (int from = 0; from < limit; from += SCAN_CHUNK_SIZE) {
+                int chunkFrom = from;
+                int chunkTo = Math.min(limit, from + SCAN_CHUNK_SIZE);
+                tasks.add(searchPool.submit(() -> scan(
+                        currentQuantizer,
+                        table,
+                        currentCodePages,
+                        currentEncodedPages,
+                        chunkFrom,
+                        chunkTo,
+                        topK,
+                        filter)));
+            }
+            heap = new TopKHeap(topK);
+            for (ForkJoinTask<TopKHeap> task : tasks) {
+                TopKHeap chunkHeap = task.join();
+                for (int i = 0; i < chunkHeap.size(); i++) {
+                    heap.offer(chunkHeap.id(i), chunkHeap.distance(i));
+                }
             }
         }
 
-        return distanceTable;
+        List<SearchResult> results = new ArrayList<>(heap.size());
+        for (int index : heap.sortedIndexes()) {
+            // Null if the vector was deleted since the scan
+            Vector vector = segmentStore.getVector(heap.id(index));
+            if (vector != null) {
+                results.add(new SearchResult(vector.id(), metric.combine(heap.distance(index)), vector.metadata()));
+            }
+        }
+        return results;
     }
 
     /**
-     * Compute asymmetric distance from query to encoded vector using pre-computed distance table
+     * Scans the encoded ordinals from {@code from} to {@code to}, {@code from} being a multiple of the page size, into
+     * a heap of the {@code topK} smallest sums of partial distances.
      */
-    private double asymmetricDistance(double[][] distanceTable, byte[] codes) {
-        double totalDist = 0;
-
-        for (int m = 0; m < subSpacesCount; m++) {
-            int code = codes[m] & 0xFF; // Convert to unsigned
-            totalDist += distanceTable[m][code];
+    private static TopKHeap scan(
+            ProductQuantizer quantizer,
+            float[] table,
+            byte[][] codePages,
+            long[][] encodedPages,
+            int from,
+            int to,
+            int topK,
+            @Nullable IntPredicate filter) {
+        TopKHeap heap = new TopKHeap(topK);
+        int codeSize = quantizer.subSpaceCount();
+        int lastPage = Math.min(encodedPages.length, ((to - 1) >>> PAGE_SHIFT) + 1);
+        for (int page = from >>> PAGE_SHIFT; page < lastPage; page++) {
+            long[] words = encodedPages[page];
+            if (words == null) {
+                // No vector of this dimension in the page
+                continue;
+            }
+            byte[] codes = codePages[page];
+            for (int w = 0; w < words.length; w++) {
+                // Only visits the set bits, ordinals of other dimensions and deleted vectors are skipped a word at a
+                // time
+                for (long word = (long) WORDS.getAcquire(words, w); word != 0; word &= word - 1) {
+                    int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+                    int ordinal = (page << PAGE_SHIFT) + slot;
+                    if (ordinal >= to || (filter != null && !filter.test(ordinal))) {
+                        continue;
+                    }
+                    heap.offer(ordinal, quantizer.partialDistancesSum(table, codes, slot * codeSize));
+                }
+            }
         }
-
-        return Math.sqrt(totalDist);
+        return heap;
     }
 
-    /**
-     * Extract the m-th subvector from a vector
-     */
-    private double[] extractSubvector(double[] vector, int m) {
-        double[] subvector = new double[subvectorDim];
-        int startIdx = m * subvectorDim;
-        System.arraycopy(vector, startIdx, subvector, 0, subvectorDim);
-        return subvector;
+    private void add(int ordinal, float[] values) {
+        ensurePage(ordinal);
+        quantizer.encode(
+                values, codePages[ordinal >>> PAGE_SHIFT], (ordinal & (PAGE_SIZE - 1)) * quantizer.subSpaceCount());
+        markEncoded(ordinal);
     }
 
     /**
-     * Encode a vector into PQ codes
+     * Sets the bit of the ordinal, once its codes are written.
      */
-    public byte[] encode(double[] vector) {
-        if (codebooks == null) {
-            throw new IllegalStateException("Codebooks not trained. Call buildSubspaces() first.");
-        }
-
-        byte[] codes = new byte[subSpacesCount];
-
-        for (int m = 0; m < subSpacesCount; m++) {
-            double[] subvector = extractSubvector(vector, m);
-            int nearestCentroid = findNearestCentroid(subvector, codebooks[m]);
-            codes[m] = (byte) nearestCentroid;
-        }
-
-        return codes;
+    private void markEncoded(int ordinal) {
+        long[] words = encodedPages[ordinal >>> PAGE_SHIFT];
+        int w = (ordinal & (PAGE_SIZE - 1)) >>> 6;
+        WORDS.setRelease(words, w, words[w] | (1L << ordinal));
     }
 
-    /**
-     * Find the nearest centroid to a subvector
-     */
-    private int findNearestCentroid(double[] subvector, double[][] centroids) {
-        int nearest = 0;
-        double minDist = Double.MAX_VALUE;
-
-        for (int k = 0; k < centroids.length; k++) {
-            double dist = Vectors.squaredEuclidianDistance(subvector, centroids[k]);
-            if (dist < minDist) {
-                minDist = dist;
-                nearest = k;
-            }
+    private void ensurePage(int ordinal) {
+        int page = ordinal >>> PAGE_SHIFT;
+        if (page >= encodedPages.length) {
+            int capacity = Math.max(page + 1, encodedPages.length * 2);
+            codePages = Arrays.copyOf(codePages, capacity);
+            encodedPages = Arrays.copyOf(encodedPages, capacity);
+        }
+        if (encodedPages[page] == null) {
+            codePages[page] = new byte[PAGE_SIZE * quantizer.subSpaceCount()];
+            encodedPages[page] = new long[PAGE_SIZE >>> 6];
         }
-
-        return nearest;
-    }
-
-    private int calculateOptimalSubSpacesCount(int dimension) {
-        if (dimension <= 128) return 4;
-        if (dimension <= 256) return 8;
-        if (dimension <= 512) return 16;
-        if (dimension <= 1024) return 32;
-        return 64;
     }
 }
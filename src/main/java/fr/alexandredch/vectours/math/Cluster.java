@@ -6,15 +6,15 @@ import java.util.List;
 
 public final class Cluster<T> {
 
-    private final double[] centroid;
+    private final float[] centroid;
     private List<T> data;
 
-    public Cluster(double[] centroid) {
+    public Cluster(float[] centroid) {
         this.centroid = centroid;
         this.data = new ArrayList<>();
     }
 
-    public double[] getCentroid() {
+    public float[] getCentroid() {
         return centroid;
     }
 
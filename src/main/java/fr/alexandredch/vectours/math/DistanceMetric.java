@@ -0,0 +1,102 @@
+package fr.alexandredch.vectours.math;
+
+/**
+ * Distance used to rank vectors. For every metric a lower distance means a closer vector.
+ * <p>
+ * {@link #COSINE} expects vectors normalized by {@link #prepare(float[])}, the store does it once on insert and once
+ * per query so that cosine distances are computed with a single dot product.
+ */
+public enum DistanceMetric {
+    L2 {
+        @Override
+        public float distance(float[] values1, float[] values2) {
+            return Vectors.squaredEuclidianDistance(values1, values2);
+        }
+
+        @Override
+        public float distance(float[] values1, int offset1, float[] values2, int offset2, int length) {
+            return Vectors.squaredEuclidianDistance(values1, offset1, values2, offset2, length);
+        }
+
+        @Override
+        public float partialDistance(float[] subvector1, float[] subvector2) {
+            return Vectors.squaredEuclidianDistance(subvector1, subvector2);
+        }
+
+        @Override
+        public float combine(float partialDistancesSum) {
+            return partialDistancesSum;
+        }
+    },
+    INNER_PRODUCT {
+        @Override
+        public float distance(float[] values1, float[] values2) {
+            return -Vectors.dotProduct(values1, values2);
+        }
+
+        @Override
+        public float distance(float[] values1, int offset1, float[] values2, int offset2, int length) {
+            return -Vectors.dotProduct(values1, offset1, values2, offset2, length);
+        }
+
+        @Override
+        public float partialDistance(float[] subvector1, float[] subvector2) {
+            return -Vectors.dotProduct(subvector1, subvector2);
+        }
+
+        @Override
+        public float combine(float partialDistancesSum) {
+            return partialDistancesSum;
+        }
+    },
+    COSINE {
+        @Override
+        public float distance(float[] values1, float[] values2) {
+            return 1f - Vectors.dotProduct(values1, values2);
+        }
+
+        @Override
+        public float distance(float[] values1, int offset1, float[] values2, int offset2, int length) {
+            return 1f - Vectors.dotProduct(values1, offset1, values2, offset2, length);
+        }
+
+        @Override
+        public float partialDistance(float[] subvector1, float[] subvector2) {
+            return -Vectors.dotProduct(subvector1, subvector2);
+        }
+
+        @Override
+        public float combine(float partialDistancesSum) {
+            return 1f + partialDistancesSum;
+        }
+
+        @Override
+        public float[] prepare(float[] values) {
+            return Vectors.normalize(values);
+        }
+    };
+
+    public abstract float distance(float[] values1, float[] values2);
+
+    /**
+     * Distance between {@code length} components of two flat arrays, starting at the given offsets.
+     */
+    public abstract float distance(float[] values1, int offset1, float[] values2, int offset2, int length);
+
+    /**
+     * Distance contribution of one subspace, summed over all subspaces by product quantization lookup tables.
+     */
+    public abstract float partialDistance(float[] subvector1, float[] subvector2);
+
+    /**
+     * Turns the sum of {@link #partialDistance(float[], float[])} over all subspaces into a {@link #distance}.
+     */
+    public abstract float combine(float partialDistancesSum);
+
+    /**
+     * Returns the values as they must be stored and queried for this metric, {@code values} itself if unchanged.
+     */
+    public float[] prepare(float[] values) {
+        return values;
+    }
+}
@@ -1,99 +1,674 @@
 package fr.alexandredch.vectours.math;
 
 import fr.alexandredch.vectours.data.Vector;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Lloyd's k-means with k-means++ seeding, accelerated with Hamerly's bounds.
+ * <p>
+ * Points and centroids are kept in flat row-major {@code float[]} arrays. Each iteration splits the points into one
+ * partition per fork-join worker, every partition assigns its points and accumulates them into its own reusable sums,
+ * which are then merged into the new centroids. Nothing is allocated per point or per iteration.
+ * <p>
+ * Points are always assigned with the squared euclidean distance. For {@link DistanceMetric#COSINE} the points are
+ * expected to be normalized and centroids are normalized after each update (spherical k-means), the closest centroid
+ * in euclidean distance is then also the closest in cosine distance.
+ * <p>
+ * On large inputs the centroids can be trained on a uniform sample of the points, and with mini-batch updates instead
+ * of full iterations. All the points are then assigned to the trained centroids, so {@link Result#quantizationError()}
+ * always measures the error over the whole input.
+ */
 public final class KMeans {
 
-    private static final int MAX_ITERATIONS = 50;
-    private static final double tolerance = 1e-4;
+    public static final int DEFAULT_MAX_ITERATIONS = 50;
+    public static final double DEFAULT_TOLERANCE = 1e-4;
 
-    private static final Random random = new Random();
+    // Below this many points per partition, splitting the work costs more than it saves
+    private static final int MIN_POINTS_PER_PARTITION = 1024;
 
-    public static List<Cluster<Vector>> fit(List<Vector> data) {
-        int clusterCount = (int) (Math.log(data.size()) * 3);
-        return fit(data, clusterCount);
+    private static final Logger logger = LoggerFactory.getLogger(KMeans.class);
+
+    private final int clusterCount;
+    private final int maxIterations;
+    private final double tolerance;
+    private final long seed;
+    private final DistanceMetric metric;
+    private final int trainingSampleSize;
+    private final int miniBatchSize;
+    private final boolean accelerated;
+
+    private KMeans(Builder builder) {
+        this.clusterCount = builder.clusterCount;
+        this.maxIterations = builder.maxIterations;
+        this.tolerance = builder.tolerance;
+        this.seed = builder.seed;
+        this.metric = builder.metric;
+        this.trainingSampleSize = builder.trainingSampleSize;
+        this.miniBatchSize = builder.miniBatchSize;
+        this.accelerated = builder.accelerated;
     }
 
-    public static List<Cluster<Vector>> fit(List<Vector> data, int clusterCount) {
-        // Create clusters with random centroids
-        List<Cluster<Vector>> clusters = generateRandomClusters(data, clusterCount);
+    /**
+     * Number of clusters used when none is configured: {@code 3 * ln(n)}.
+     */
+    public static int defaultClusterCount(int pointCount) {
+        return Math.max(1, (int) (Math.log(pointCount) * 3));
+    }
 
-        boolean converged = false;
+    public Result fit(List<Vector> data) {
+        int dimension = data.isEmpty() ? 0 : data.getFirst().values().length;
+        float[] points = new float[data.size() * dimension];
+        for (int i = 0; i < data.size(); i++) {
+            System.arraycopy(data.get(i).values(), 0, points, i * dimension, dimension);
+        }
+        return fit(points, dimension);
+    }
+
+    /**
+     * Clusters {@code points.length / dimension} points stored row-major in {@code points}.
+     * <p>
+     * Centroids are trained on at most {@code trainingSampleSize} points, then every point is assigned to its closest
+     * trained centroid.
+     */
+    public Result fit(float[] points, int dimension) {
+        int pointCount = dimension == 0 ? 0 : points.length / dimension;
+        if (pointCount == 0) {
+            return new Result(new float[0], new int[0], 0, dimension, 0, 0, 0, 0);
+        }
+        int k = Math.min(clusterCount > 0 ? clusterCount : defaultClusterCount(pointCount), pointCount);
+        SplittableRandom random = new SplittableRandom(seed);
+
+        float[] trainingPoints = points;
+        if (trainingSampleSize > 0 && trainingSampleSize < pointCount) {
+            trainingPoints = samplePoints(points, pointCount, dimension, Math.max(trainingSampleSize, k), random);
+        }
+        int trainingPointCount = trainingPoints.length / dimension;
+
+        float[] centroids = seedCentroids(trainingPoints, trainingPointCount, dimension, k, random);
+        // Every point is compared to every centroid chosen before it
+        long seedingDistanceCount = (long) trainingPointCount * (k - 1);
+
+        Partitions partitions = new Partitions(trainingPointCount, dimension, k, accelerated);
+        Training training = miniBatchSize > 0
+                ? trainMiniBatch(trainingPoints, trainingPointCount, dimension, k, centroids, random)
+                : trainLloyd(trainingPoints, partitions, centroids);
+
+        // Assign every point to the final centroids, reusing the bounds when every point was used for training
+        if (trainingPoints != points || miniBatchSize > 0) {
+            partitions = new Partitions(pointCount, dimension, k, accelerated);
+        }
+        long distanceCountBeforeAssignment = partitions.distanceCount();
+        double inertia = partitions.assign(points, training.centroids(), true);
+        long distanceCount = seedingDistanceCount + training.distanceCount();
+        distanceCount += partitions.distanceCount() - distanceCountBeforeAssignment;
+
+        Result result = new Result(
+                training.centroids(),
+                partitions.assignments(),
+                k,
+                dimension,
+                inertia,
+                training.iterations(),
+                trainingPointCount,
+                distanceCount);
+        logger.debug(
+                "Trained {} centroids on {}/{} points in {} iterations ({} distances), quantization error {}",
+                k,
+                trainingPointCount,
+                pointCount,
+                result.iterations(),
+                distanceCount,
+                result.quantizationError());
+        return result;
+    }
 
+    private Training trainLloyd(float[] points, Partitions partitions, float[] centroids) {
+        int dimension = partitions.dimension;
+        int k = partitions.k;
         int iterations = 0;
+        boolean converged = false;
+        while (!converged && iterations < maxIterations) {
+            iterations++;
+
+            partitions.assign(points, centroids, false);
+            float[] newCentroids = partitions.mergeCentroids(centroids);
+            if (metric == DistanceMetric.COSINE) {
+                normalizeCentroids(newCentroids, dimension, k);
+            }
+            partitions.moveCentroids(centroids, newCentroids);
+
+            converged = maxShift(centroids, newCentroids, dimension, k) <= tolerance;
+            centroids = newCentroids;
+        }
+        return new Training(centroids, iterations, partitions.distanceCount());
+    }
+
+    /**
+     * Mini-batch k-means (Sculley, 2010): each iteration draws {@code miniBatchSize} points and moves their closest
+     * centroid towards them, with a learning rate of one over the number of points the centroid has seen. Stops like
+     * Lloyd's iterations once no centroid moved by more than the tolerance, which the decreasing learning rates lead
+     * to.
+     */
+    private Training trainMiniBatch(
+            float[] points, int pointCount, int dimension, int k, float[] centroids, SplittableRandom random) {
+        int[] seenCounts = new int[k];
+        int[] batch = new int[miniBatchSize];
+        int[] batchAssignments = new int[miniBatchSize];
 
-        while (!converged && iterations < MAX_ITERATIONS) {
+        int iterations = 0;
+        boolean converged = false;
+        while (!converged && iterations < maxIterations) {
             iterations++;
-            Map<Cluster<Vector>, List<Vector>> assignments = new HashMap<>();
-
-            // Assign points to the closest cluster
-            for (Vector vector : data) {
-                Cluster<Vector> closestCluster = null;
-                double closestDistance = Float.MAX_VALUE;
-                for (Cluster<Vector> cluster : clusters) {
-                    double distance = Vectors.squaredEuclidianDistance(vector.values(), cluster.getCentroid());
-                    if (distance < closestDistance) {
-                        closestDistance = distance;
-                        closestCluster = cluster;
-                    }
+            for (int b = 0; b < miniBatchSize; b++) {
+                batch[b] = random.nextInt(pointCount);
+            }
+
+            // Assign against the centroids of the previous iteration, then update
+            float[] previousCentroids = centroids;
+            IntStream.range(0, miniBatchSize).parallel().forEach(b -> {
+                batchAssignments[b] = closestCentroid(points, batch[b] * dimension, previousCentroids, dimension, k);
+            });
+
+            centroids = centroids.clone();
+            for (int b = 0; b < miniBatchSize; b++) {
+                int c = batchAssignments[b];
+                float learningRate = 1f / ++seenCounts[c];
+                int pointOffset = batch[b] * dimension;
+                int centroidOffset = c * dimension;
+                for (int d = 0; d < dimension; d++) {
+                    centroids[centroidOffset + d] +=
+                            learningRate * (points[pointOffset + d] - centroids[centroidOffset + d]);
+                }
+            }
+            if (metric == DistanceMetric.COSINE) {
+                normalizeCentroids(centroids, dimension, k);
+            }
+            converged = maxShift(previousCentroids, centroids, dimension, k) <= tolerance;
+        }
+        return new Training(centroids, iterations, (long) iterations * miniBatchSize * k);
+    }
+
+    /**
+     * Copies {@code sampleSize} distinct points drawn uniformly (reservoir sampling), kept in their original order.
+     */
+    private static float[] samplePoints(
+            float[] points, int pointCount, int dimension, int sampleSize, SplittableRandom random) {
+        int[] reservoir = new int[sampleSize];
+        for (int i = 0; i < pointCount; i++) {
+            if (i < sampleSize) {
+                reservoir[i] = i;
+            } else {
+                int j = random.nextInt(i + 1);
+                if (j < sampleSize) {
+                    reservoir[j] = i;
                 }
-                assignments
-                        .computeIfAbsent(closestCluster, _cluster -> new ArrayList<>())
-                        .add(vector);
             }
+        }
+        Arrays.sort(reservoir);
 
-            // Recalculate centroids
-            List<Cluster<Vector>> newClusters = new ArrayList<>();
-            for (Cluster<Vector> cluster : clusters) {
-                List<Vector> assignedPoints = assignments.get(cluster);
-                if (assignedPoints == null || assignedPoints.isEmpty()) {
-                    newClusters.add(cluster);
-                    continue;
+        float[] sample = new float[sampleSize * dimension];
+        for (int i = 0; i < sampleSize; i++) {
+            System.arraycopy(points, reservoir[i] * dimension, sample, i * dimension, dimension);
+        }
+        return sample;
+    }
+
+    private static int closestCentroid(float[] points, int pointOffset, float[] centroids, int dimension, int k) {
+        int closest = 0;
+        float closestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            float distance = Vectors.squaredEuclidianDistance(points, pointOffset, centroids, c * dimension, dimension);
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closest = c;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * k-means++: each new centroid is a point drawn with a probability proportional to its squared distance to the
+     * closest centroid already chosen.
+     */
+    private static float[] seedCentroids(
+            float[] points, int pointCount, int dimension, int k, SplittableRandom random) {
+        float[] centroids = new float[k * dimension];
+        float[] closestDistances = new float[pointCount];
+        Arrays.fill(closestDistances, Float.POSITIVE_INFINITY);
+
+        int chosen = random.nextInt(pointCount);
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(points, chosen * dimension, centroids, c * dimension, dimension);
+            if (c == k - 1) {
+                break;
+            }
+
+            int centroidOffset = c * dimension;
+            double total = IntStream.range(0, pointCount)
+                    .parallel()
+                    .mapToDouble(i -> {
+                        float distance = Vectors.squaredEuclidianDistance(
+                                points, i * dimension, centroids, centroidOffset, dimension);
+                        if (distance < closestDistances[i]) {
+                            closestDistances[i] = distance;
+                        }
+                        return closestDistances[i];
+                    })
+                    .sum();
+
+            chosen = total > 0 ? sample(closestDistances, total, random) : random.nextInt(pointCount);
+        }
+        return centroids;
+    }
+
+    private static int sample(float[] weights, double total, SplittableRandom random) {
+        double target = random.nextDouble() * total;
+        double cumulative = 0;
+        for (int i = 0; i < weights.length; i++) {
+            cumulative += weights[i];
+            if (cumulative > target && weights[i] > 0) {
+                return i;
+            }
+        }
+        // Rounding errors, fall back to the last point that can still be chosen
+        for (int i = weights.length - 1; i >= 0; i--) {
+            if (weights[i] > 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static void normalizeCentroids(float[] centroids, int dimension, int k) {
+        for (int c = 0; c < k; c++) {
+            double squaredNorm = 0;
+            for (int i = c * dimension; i < (c + 1) * dimension; i++) {
+                squaredNorm += centroids[i] * centroids[i];
+            }
+            if (squaredNorm == 0) {
+                continue;
+            }
+            float inverseNorm = (float) (1.0 / Math.sqrt(squaredNorm));
+            for (int i = c * dimension; i < (c + 1) * dimension; i++) {
+                centroids[i] *= inverseNorm;
+            }
+        }
+    }
+
+    private static double maxShift(float[] centroids, float[] newCentroids, int dimension, int k) {
+        double maxShift = 0;
+        for (int c = 0; c < k; c++) {
+            float shift = Vectors.squaredEuclidianDistance(
+                    centroids, c * dimension, newCentroids, c * dimension, dimension);
+            maxShift = Math.max(maxShift, shift);
+        }
+        return maxShift;
+    }
+
+    /**
+     * Assignment state of a set of points: their closest centroid, and the per-partition accumulators which are reset
+     * at every assignment.
+     * <p>
+     * When accelerated, Hamerly's bounds are kept for every point: an upper bound on the distance to its centroid and a
+     * lower bound on the distance to any other centroid. A point whose upper bound is below both its lower bound and
+     * half the distance from its centroid to the closest other centroid cannot change cluster, so its distances are
+     * not computed. Other points are assigned exactly as without the bounds, and the bounds are loosened by
+     * {@link #BOUND_SLACK} to absorb float rounding, so the assignments are identical.
+     */
+    private static final class Partitions {
+
+        private static final double BOUND_SLACK = 1e-4;
+
+        private final int pointCount;
+        private final int dimension;
+        private final int k;
+        private final boolean accelerated;
+        private final int partitionCount;
+        private final double[][] sums;
+        private final int[][] counts;
+        private final double[] inertias;
+        private final long[] distanceCounts;
+        private final int[] assignments;
+        private final double[] upperBounds;
+        private final double[] lowerBounds;
+        private final double[] halfSeparations;
+        private long distanceCount;
+
+        Partitions(int pointCount, int dimension, int k, boolean accelerated) {
+            this.pointCount = pointCount;
+            this.dimension = dimension;
+            this.k = k;
+            this.accelerated = accelerated;
+            int maxPartitionCount = (pointCount + MIN_POINTS_PER_PARTITION - 1) / MIN_POINTS_PER_PARTITION;
+            this.partitionCount = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), maxPartitionCount));
+            this.sums = new double[partitionCount][k * dimension];
+            this.counts = new int[partitionCount][k];
+            this.inertias = new double[partitionCount];
+            this.distanceCounts = new long[partitionCount];
+            this.assignments = new int[pointCount];
+            this.halfSeparations = new double[k];
+            this.upperBounds = new double[accelerated ? pointCount : 0];
+            this.lowerBounds = new double[accelerated ? pointCount : 0];
+            // No bound yet: every point is checked against every centroid on the first assignment
+            Arrays.fill(upperBounds, Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * Assigns every point to its closest centroid and accumulates the partition sums.
+         *
+         * @param withInertia whether to compute the inertia, which costs one distance per point when accelerated
+         * @return the sum of squared distances of the points to their centroid, 0 if not computed
+         */
+        double assign(float[] points, float[] centroids, boolean withInertia) {
+            if (accelerated) {
+                updateHalfSeparations(centroids);
+            }
+            IntStream.range(0, partitionCount).parallel().forEach(p -> {
+                double[] partitionSums = sums[p];
+                int[] partitionCounts = counts[p];
+                Arrays.fill(partitionSums, 0);
+                Arrays.fill(partitionCounts, 0);
+                double inertia = 0;
+                long partitionDistanceCount = 0;
+
+                int end = end(p);
+                for (int i = start(p); i < end; i++) {
+                    int pointOffset = i * dimension;
+                    float assignedDistance = Float.NaN;
+                    if (!accelerated) {
+                        assignedDistance = assignExactly(points, centroids, i);
+                        partitionDistanceCount += k;
+                    } else {
+                        int assigned = assignments[i];
+                        double bound = Math.max(halfSeparations[assigned], lowerBounds[i]);
+                        if (upperBounds[i] >= bound) {
+                            // Tighten the upper bound, the point may still stay in its cluster
+                            assignedDistance = Vectors.squaredEuclidianDistance(
+                                    points, pointOffset, centroids, assigned * dimension, dimension);
+                            upperBounds[i] = Math.sqrt(assignedDistance) * (1 + BOUND_SLACK);
+                            partitionDistanceCount++;
+                            if (upperBounds[i] >= bound) {
+                                assignedDistance = assignExactly(points, centroids, i);
+                                partitionDistanceCount += k;
+                            }
+                        }
+                        if (withInertia && Float.isNaN(assignedDistance)) {
+                            assignedDistance = Vectors.squaredEuclidianDistance(
+                                    points, pointOffset, centroids, assignments[i] * dimension, dimension);
+                            partitionDistanceCount++;
+                        }
+                    }
+                    if (withInertia) {
+                        inertia += assignedDistance;
+                    }
+
+                    int closest = assignments[i];
+                    partitionCounts[closest]++;
+                    int sumOffset = closest * dimension;
+                    for (int d = 0; d < dimension; d++) {
+                        partitionSums[sumOffset + d] += points[pointOffset + d];
+                    }
+                }
+                inertias[p] = inertia;
+                distanceCounts[p] = partitionDistanceCount;
+            });
+            distanceCount += Arrays.stream(distanceCounts).sum();
+            return Arrays.stream(inertias).sum();
+        }
+
+        /**
+         * Computes the distance of point {@code i} to every centroid and assigns it to the closest one, the first one
+         * on ties.
+         *
+         * @return the squared distance to the closest centroid
+         */
+        private float assignExactly(float[] points, float[] centroids, int i) {
+            int pointOffset = i * dimension;
+            int closest = 0;
+            float closestDistance = Float.POSITIVE_INFINITY;
+            float secondDistance = Float.POSITIVE_INFINITY;
+            for (int c = 0; c < k; c++) {
+                float distance =
+                        Vectors.squaredEuclidianDistance(points, pointOffset, centroids, c * dimension, dimension);
+                if (distance < closestDistance) {
+                    secondDistance = closestDistance;
+                    closestDistance = distance;
+                    closest = c;
+                } else if (distance < secondDistance) {
+                    secondDistance = distance;
                 }
+            }
+            assignments[i] = closest;
+            if (accelerated) {
+                upperBounds[i] = Math.sqrt(closestDistance) * (1 + BOUND_SLACK);
+                lowerBounds[i] = Math.sqrt(secondDistance) * (1 - BOUND_SLACK);
+            }
+            return closestDistance;
+        }
 
-                double[] newCentroid = new double[cluster.getCentroid().length];
-                for (Vector point : assignedPoints) {
-                    for (int i = 0; i < point.values().length; i++) {
-                        newCentroid[i] += point.values()[i];
+        /**
+         * Half the distance from each centroid to the closest other centroid.
+         */
+        private void updateHalfSeparations(float[] centroids) {
+            IntStream.range(0, k).parallel().forEach(c -> {
+                float closestDistance = Float.POSITIVE_INFINITY;
+                for (int other = 0; other < k; other++) {
+                    if (other != c) {
+                        closestDistance = Math.min(
+                                closestDistance,
+                                Vectors.squaredEuclidianDistance(
+                                        centroids, c * dimension, centroids, other * dimension, dimension));
                     }
                 }
-                for (int i = 0; i < newCentroid.length; i++) {
-                    newCentroid[i] /= assignedPoints.size();
+                halfSeparations[c] = Math.sqrt(closestDistance) / 2 * (1 - BOUND_SLACK);
+            });
+            distanceCount += (long) k * (k - 1);
+        }
+
+        /**
+         * Loosens the bounds by how much the centroids moved, so they still hold for the new centroids.
+         */
+        void moveCentroids(float[] centroids, float[] newCentroids) {
+            if (!accelerated) {
+                return;
+            }
+            double[] shifts = new double[k];
+            int largestShift = 0;
+            for (int c = 0; c < k; c++) {
+                float shift = Vectors.squaredEuclidianDistance(
+                        centroids, c * dimension, newCentroids, c * dimension, dimension);
+                shifts[c] = Math.sqrt(shift) * (1 + BOUND_SLACK);
+                if (shifts[c] > shifts[largestShift]) {
+                    largestShift = c;
+                }
+            }
+            double secondLargestShift = 0;
+            for (int c = 0; c < k; c++) {
+                if (c != largestShift) {
+                    secondLargestShift = Math.max(secondLargestShift, shifts[c]);
+                }
+            }
+            distanceCount += k;
+
+            // Any other centroid moved at most by the largest shift, or the second largest for its own cluster
+            int finalLargestShift = largestShift;
+            double finalSecondLargestShift = secondLargestShift;
+            IntStream.range(0, partitionCount).parallel().forEach(p -> {
+                int end = end(p);
+                for (int i = start(p); i < end; i++) {
+                    int assigned = assignments[i];
+                    upperBounds[i] += shifts[assigned];
+                    lowerBounds[i] -=
+                            assigned == finalLargestShift ? finalSecondLargestShift : shifts[finalLargestShift];
                 }
+            });
+        }
 
-                Cluster<Vector> newCluster = new Cluster<>(newCentroid);
-                newCluster.setData(assignedPoints);
-                newClusters.add(newCluster);
+        /**
+         * Returns the mean of the points assigned to each centroid, clusters left empty keep their centroid.
+         */
+        float[] mergeCentroids(float[] centroids) {
+            float[] newCentroids = centroids.clone();
+            for (int c = 0; c < k; c++) {
+                int count = 0;
+                for (int p = 0; p < partitionCount; p++) {
+                    count += counts[p][c];
+                }
+                if (count == 0) {
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    double sum = 0;
+                    for (int p = 0; p < partitionCount; p++) {
+                        sum += sums[p][c * dimension + d];
+                    }
+                    newCentroids[c * dimension + d] = (float) (sum / count);
+                }
             }
+            return newCentroids;
+        }
+
+        int[] assignments() {
+            return assignments;
+        }
 
-            // Check for convergence
-            converged = hasClusterConverged(clusters, newClusters);
+        long distanceCount() {
+            return distanceCount;
+        }
 
-            clusters = newClusters;
+        private int start(int partition) {
+            return (int) ((long) pointCount * partition / partitionCount);
         }
 
-        return clusters;
+        private int end(int partition) {
+            return (int) ((long) pointCount * (partition + 1) / partitionCount);
+        }
     }
 
-    private static boolean hasClusterConverged(List<Cluster<Vector>> clusters, List<Cluster<Vector>> newClusters) {
-        boolean converged = true;
-        for (int i = 0; i < clusters.size(); i++) {
-            double distance = Vectors.squaredEuclidianDistance(
-                    clusters.get(i).getCentroid(), newClusters.get(i).getCentroid());
-            if (distance > tolerance) {
-                converged = false;
+    private record Training(float[] centroids, int iterations, long distanceCount) {}
+
+    /**
+     * @param centroids            {@code clusterCount * dimension} centroid components, row-major
+     * @param assignments          index of the closest centroid of each point
+     * @param inertia              sum of squared distances of all the points to their centroid
+     * @param trainingPointCount   number of points the centroids were trained on
+     * @param distanceComputations number of point-to-centroid and centroid-to-centroid distances computed
+     */
+    public record Result(
+            float[] centroids,
+            int[] assignments,
+            int clusterCount,
+            int dimension,
+            double inertia,
+            int iterations,
+            int trainingPointCount,
+            long distanceComputations) {
+
+        public float[] centroid(int cluster) {
+            return Arrays.copyOfRange(centroids, cluster * dimension, (cluster + 1) * dimension);
+        }
+
+        /**
+         * Mean squared distance of the points to their centroid.
+         */
+        public double quantizationError() {
+            return assignments.length == 0 ? 0 : inertia / assignments.length;
+        }
+
+        /**
+         * Groups {@code data}, the vectors this result was computed from, by cluster.
+         */
+        public List<Cluster<Vector>> clusters(List<Vector> data) {
+            List<Cluster<Vector>> clusters = new ArrayList<>(clusterCount);
+            for (int c = 0; c < clusterCount; c++) {
+                clusters.add(new Cluster<>(centroid(c)));
+            }
+            for (int i = 0; i < data.size(); i++) {
+                clusters.get(assignments[i]).add(data.get(i));
             }
+            return clusters;
         }
-        return converged;
     }
 
-    private static List<Cluster<Vector>> generateRandomClusters(List<Vector> data, int clusterCount) {
-        List<Cluster<Vector>> clusters = new ArrayList<>(clusterCount);
-        random.ints(0, data.size())
-                .distinct()
-                .limit(clusterCount)
-                .forEach(index -> clusters.add(new Cluster<>(data.get(index).values())));
-        return clusters;
+    public static class Builder {
+        private int clusterCount = 0;
+        private int maxIterations = DEFAULT_MAX_ITERATIONS;
+        private double tolerance = DEFAULT_TOLERANCE;
+        private long seed = ThreadLocalRandom.current().nextLong();
+        private DistanceMetric metric = DistanceMetric.L2;
+        private int trainingSampleSize = 0;
+        private int miniBatchSize = 0;
+        private boolean accelerated = true;
+
+        /**
+         * Defaults to {@link #defaultClusterCount(int)}, capped to the number of points.
+         */
+        public Builder clusterCount(int clusterCount) {
+            this.clusterCount = clusterCount;
+            return this;
+        }
+
+        /**
+         * Number of Lloyd iterations, or of batches with {@link #miniBatchSize(int)}.
+         */
+        public Builder maxIterations(int maxIterations) {
+            this.maxIterations = maxIterations;
+            return this;
+        }
+
+        /**
+         * Training stops once no centroid moved by more than this squared euclidean distance in an iteration, or in a
+         * batch with {@link #miniBatchSize(int)}.
+         */
+        public Builder tolerance(double tolerance) {
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder metric(DistanceMetric metric) {
+            this.metric = metric;
+            return this;
+        }
+
+        /**
+         * Trains the centroids on a uniform sample of at most this many points, 0 to train on all of them.
+         */
+        public Builder trainingSampleSize(int trainingSampleSize) {
+            this.trainingSampleSize = trainingSampleSize;
+            return this;
+        }
+
+        /**
+         * Trains with mini-batches of this many points instead of full Lloyd iterations, 0 to disable.
+         */
+        public Builder miniBatchSize(int miniBatchSize) {
+            this.miniBatchSize = miniBatchSize;
+            return this;
+        }
+
+        /**
+         * Whether to skip the distances Hamerly's bounds prove useless, the clusters are identical either way.
+         */
+        public Builder accelerated(boolean accelerated) {
+            this.accelerated = accelerated;
+            return this;
+        }
+
+        public KMeans build() {
+            return new KMeans(this);
+        }
     }
 }
@@ -0,0 +1,39 @@
+package fr.alexandredch.vectours.math;
+
+/**
+ * Plain Java loops, used when the Vector API is not available or disabled.
+ */
+public final class ScalarVectorKernel implements VectorKernel {
+
+    @Override
+    public float squaredEuclidianDistance(float[] values1, int offset1, float[] values2, int offset2, int length) {
+        float sum = 0f;
+        for (int i = 0; i < length; i++) {
+            float diff = values1[offset1 + i] - values2[offset2 + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    @Override
+    public float dotProduct(float[] values1, int offset1, float[] values2, int offset2, int length) {
+        float sum = 0f;
+        for (int i = 0; i < length; i++) {
+            sum += values1[offset1 + i] * values2[offset2 + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float cosineDistance(float[] values1, float[] values2) {
+        float dot = 0f;
+        float norm1 = 0f;
+        float norm2 = 0f;
+        for (int i = 0; i < values1.length; i++) {
+            dot += values1[i] * values2[i];
+            norm1 += values1[i] * values1[i];
+            norm2 += values2[i] * values2[i];
+        }
+        return Vectors.cosineDistance(dot, norm1, norm2);
+    }
+}
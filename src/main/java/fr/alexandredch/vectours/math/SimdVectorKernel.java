@@ -0,0 +1,79 @@
+package fr.alexandredch.vectours.math;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels built on the incubating Java Vector API ({@code jdk.incubator.vector}).
+ * <p>
+ * Each loop processes {@link #SPECIES} lanes at a time with fused multiply-add accumulators, the remaining tail is
+ * handled by a scalar loop.
+ */
+public final class SimdVectorKernel implements VectorKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float squaredEuclidianDistance(float[] values1, int offset1, float[] values2, int offset2, int length) {
+        FloatVector accumulator = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upperBound = SPECIES.loopBound(length);
+        for (; i < upperBound; i += SPECIES.length()) {
+            FloatVector diff = FloatVector.fromArray(SPECIES, values1, offset1 + i)
+                    .sub(FloatVector.fromArray(SPECIES, values2, offset2 + i));
+            accumulator = diff.fma(diff, accumulator);
+        }
+
+        float sum = accumulator.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float diff = values1[offset1 + i] - values2[offset2 + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    @Override
+    public float dotProduct(float[] values1, int offset1, float[] values2, int offset2, int length) {
+        FloatVector accumulator = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upperBound = SPECIES.loopBound(length);
+        for (; i < upperBound; i += SPECIES.length()) {
+            FloatVector vector1 = FloatVector.fromArray(SPECIES, values1, offset1 + i);
+            FloatVector vector2 = FloatVector.fromArray(SPECIES, values2, offset2 + i);
+            accumulator = vector1.fma(vector2, accumulator);
+        }
+
+        float sum = accumulator.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += values1[offset1 + i] * values2[offset2 + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float cosineDistance(float[] values1, float[] values2) {
+        FloatVector dotAccumulator = FloatVector.zero(SPECIES);
+        FloatVector norm1Accumulator = FloatVector.zero(SPECIES);
+        FloatVector norm2Accumulator = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upperBound = SPECIES.loopBound(values1.length);
+        for (; i < upperBound; i += SPECIES.length()) {
+            FloatVector vector1 = FloatVector.fromArray(SPECIES, values1, i);
+            FloatVector vector2 = FloatVector.fromArray(SPECIES, values2, i);
+            dotAccumulator = vector1.fma(vector2, dotAccumulator);
+            norm1Accumulator = vector1.fma(vector1, norm1Accumulator);
+            norm2Accumulator = vector2.fma(vector2, norm2Accumulator);
+        }
+
+        float dot = dotAccumulator.reduceLanes(VectorOperators.ADD);
+        float norm1 = norm1Accumulator.reduceLanes(VectorOperators.ADD);
+        float norm2 = norm2Accumulator.reduceLanes(VectorOperators.ADD);
+        for (; i < values1.length; i++) {
+            dot += values1[i] * values2[i];
+            norm1 += values1[i] * values1[i];
+            norm2 += values2[i] * values2[i];
+        }
+        return Vectors.cosineDistance(dot, norm1, norm2);
+    }
+}
@@ -0,0 +1,150 @@
+package fr.alexandredch.vectours.math;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the {@code capacity} entries with the smallest distances, as parallel primitive arrays.
+ * <p>
+ * Entries are stored as a binary max-heap on distance, so the worst kept distance is always at the root and a
+ * rejected candidate costs a single comparison.
+ */
+public final class TopKHeap {
+
+    private int[] ids;
+    private float[] distances;
+    private int capacity;
+    private int size;
+
+    public TopKHeap(int capacity) {
+        this.ids = new int[capacity];
+        this.distances = new float[capacity];
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds the entry if the heap is not full or if it is closer than the worst entry, which is then evicted.
+     *
+     * @return whether the entry was kept
+     */
+    public boolean offer(int id, float distance) {
+        if (size < capacity) {
+            ids[size] = id;
+            distances[size] = distance;
+            siftUp(size++);
+            return true;
+        }
+        if (size == 0 || distance >= distances[0]) {
+            return false;
+        }
+        ids[0] = id;
+        distances[0] = distance;
+        siftDown(0);
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Distance an entry must beat to be kept once the heap is full.
+     */
+    public float worstDistance() {
+        return isFull() ? distances[0] : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Id of the i-th entry, in heap order.
+     */
+    public int id(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Distance of the i-th entry, in heap order.
+     */
+    public float distance(int i) {
+        return distances[i];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Empties the heap and changes its capacity, keeping its arrays if they are large enough, so that a heap can be
+     * reused across searches of different sizes.
+     */
+    public void clear(int capacity) {
+        if (capacity > ids.length) {
+            ids = new int[capacity];
+            distances = new float[capacity];
+        }
+        this.capacity = capacity;
+        size = 0;
+    }
+
+    /**
+     * Returns the indexes of the entries sorted by increasing distance, the heap itself is left untouched.
+     */
+    public int[] sortedIndexes() {
+        // Sort (distance, index) pairs packed in longs, the distance bits are flipped to sort like signed floats
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            int bits = Float.floatToIntBits(distances[i]);
+            bits ^= (bits >> 31) & Integer.MAX_VALUE;
+            keys[i] = ((long) bits << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = (int) keys[i];
+        }
+        return indexes;
+    }
+
+    private void siftUp(int index) {
+        int id = ids[index];
+        float distance = distances[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (distances[parent] >= distance) {
+                break;
+            }
+            ids[index] = ids[parent];
+            distances[index] = distances[parent];
+            index = parent;
+        }
+        ids[index] = id;
+        distances[index] = distance;
+    }
+
+    private void siftDown(int index) {
+        int id = ids[index];
+        float distance = distances[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && distances[right] > distances[child]) {
+                child = right;
+            }
+            if (distance >= distances[child]) {
+                break;
+            }
+            ids[index] = ids[child];
+            distances[index] = distances[child];
+            index = child;
+        }
+        ids[index] = id;
+        distances[index] = distance;
+    }
+}
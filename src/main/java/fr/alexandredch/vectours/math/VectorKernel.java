@@ -0,0 +1,27 @@
+package fr.alexandredch.vectours.math;
+
+/**
+ * Distance kernels over raw vector components.
+ * <p>
+ * Implementations assume both arrays have the same length, the check is done once by {@link Vectors}. The offset
+ * variants compare {@code length} components starting at the given offsets, to work on rows of flat matrices.
+ */
+public interface VectorKernel {
+
+    float squaredEuclidianDistance(float[] values1, int offset1, float[] values2, int offset2, int length);
+
+    float dotProduct(float[] values1, int offset1, float[] values2, int offset2, int length);
+
+    /**
+     * Returns {@code 1 - cos(values1, values2)}, or 1 if one of the vectors has a zero norm.
+     */
+    float cosineDistance(float[] values1, float[] values2);
+
+    default float squaredEuclidianDistance(float[] values1, float[] values2) {
+        return squaredEuclidianDistance(values1, 0, values2, 0, values1.length);
+    }
+
+    default float dotProduct(float[] values1, float[] values2) {
+        return dotProduct(values1, 0, values2, 0, values1.length);
+    }
+}
@@ -1,17 +1,100 @@
 package fr.alexandredch.vectours.math;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class Vectors {
 
-    public static double squaredEuclidianDistance(double[] values1, double[] values2) {
+    /**
+     * Set to {@code false} to force the scalar kernels even when the Vector API module is present.
+     */
+    public static final String SIMD_PROPERTY = "vectours.simd";
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private static final Logger logger = LoggerFactory.getLogger(Vectors.class);
+
+    private static final VectorKernel kernel = selectKernel();
+
+    public static float squaredEuclidianDistance(float[] values1, float[] values2) {
+        checkSameLength(values1, values2);
+        return kernel.squaredEuclidianDistance(values1, values2);
+    }
+
+    /**
+     * Squared euclidean distance between {@code length} components of two flat arrays, starting at the given offsets.
+     */
+    public static float squaredEuclidianDistance(
+            float[] values1, int offset1, float[] values2, int offset2, int length) {
+        return kernel.squaredEuclidianDistance(values1, offset1, values2, offset2, length);
+    }
+
+    public static float dotProduct(float[] values1, float[] values2) {
+        checkSameLength(values1, values2);
+        return kernel.dotProduct(values1, values2);
+    }
+
+    /**
+     * Dot product of {@code length} components of two flat arrays, starting at the given offsets.
+     */
+    public static float dotProduct(float[] values1, int offset1, float[] values2, int offset2, int length) {
+        return kernel.dotProduct(values1, offset1, values2, offset2, length);
+    }
+
+    public static float cosineDistance(float[] values1, float[] values2) {
+        checkSameLength(values1, values2);
+        return kernel.cosineDistance(values1, values2);
+    }
+
+    /**
+     * Returns a copy of {@code values} scaled to a unit norm, or a copy of the zero vector.
+     */
+    public static float[] normalize(float[] values) {
+        float squaredNorm = kernel.dotProduct(values, values);
+        float[] normalized = new float[values.length];
+        if (squaredNorm == 0) {
+            return normalized;
+        }
+        float inverseNorm = (float) (1.0 / Math.sqrt(squaredNorm));
+        for (int i = 0; i < values.length; i++) {
+            normalized[i] = values[i] * inverseNorm;
+        }
+        return normalized;
+    }
+
+    public static VectorKernel kernel() {
+        return kernel;
+    }
+
+    static float cosineDistance(float dot, float squaredNorm1, float squaredNorm2) {
+        if (squaredNorm1 == 0 || squaredNorm2 == 0) {
+            return 1f;
+        }
+        return (float) (1.0 - dot / Math.sqrt((double) squaredNorm1 * squaredNorm2));
+    }
+
+    private static void checkSameLength(float[] values1, float[] values2) {
         if (values1.length != values2.length) {
             throw new IllegalArgumentException("Vectors must have the same length");
         }
+    }
 
-        double sum = 0.0;
-        for (int i = 0; i < values1.length; i++) {
-            sum += Math.pow(values1[i] - values2[i], 2);
+    private static VectorKernel selectKernel() {
+        if (!Boolean.parseBoolean(System.getProperty(SIMD_PROPERTY, "true"))) {
+            logger.info("SIMD kernels disabled through -D{}=false, using scalar kernels", SIMD_PROPERTY);
+            return new ScalarVectorKernel();
+        }
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            logger.info("Module {} is not available, using scalar kernels", VECTOR_MODULE);
+            return new ScalarVectorKernel();
+        }
+        try {
+            VectorKernel simdKernel = new SimdVectorKernel();
+            logger.info("Using SIMD kernels from {}", VECTOR_MODULE);
+            return simdKernel;
+        } catch (LinkageError e) {
+            logger.warn("Failed to load SIMD kernels, using scalar kernels", e);
+            return new ScalarVectorKernel();
         }
-
-        return sum;
     }
 }
@@ -12,7 +12,7 @@ public interface Store {
 
     CompletableFuture<Void> insert(Vector vector);
 
-    List<SearchResult> search(double[] vector, int k);
+    List<SearchResult> search(float[] vector, int k);
 
     List<SearchResult> search(SearchParameters searchParameters);
 
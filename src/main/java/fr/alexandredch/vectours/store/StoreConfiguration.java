@@ -0,0 +1,59 @@
+package fr.alexandredch.vectours.store;
+
+import fr.alexandredch.vectours.data.ElementType;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import java.util.Set;
+
+/**
+ * @param trainingSampleSize    maximum number of vectors the IVF and PQ centroids are trained on, 0 to use all of them
+ * @param trainingBatchSize     mini-batch size used to train the centroids, 0 to train with full k-means iterations
+ * @param indexedMetadataFields top-level metadata fields indexed in each segment, to filter searches on them without
+ *                              reading the metadata of the vectors
+ */
+public record StoreConfiguration(
+        ElementType elementType,
+        DistanceMetric distanceMetric,
+        int trainingSampleSize,
+        int trainingBatchSize,
+        Set<String> indexedMetadataFields) {
+
+    public static final int DEFAULT_TRAINING_SAMPLE_SIZE = 100_000;
+
+    public static class Builder {
+        private ElementType elementType = ElementType.FLOAT32;
+        private DistanceMetric distanceMetric = DistanceMetric.L2;
+        private int trainingSampleSize = DEFAULT_TRAINING_SAMPLE_SIZE;
+        private int trainingBatchSize = 0;
+        private Set<String> indexedMetadataFields = Set.of();
+
+        public Builder elementType(ElementType elementType) {
+            this.elementType = elementType;
+            return this;
+        }
+
+        public Builder distanceMetric(DistanceMetric distanceMetric) {
+            this.distanceMetric = distanceMetric;
+            return this;
+        }
+
+        public Builder trainingSampleSize(int trainingSampleSize) {
+            this.trainingSampleSize = trainingSampleSize;
+            return this;
+        }
+
+        public Builder trainingBatchSize(int trainingBatchSize) {
+            this.trainingBatchSize = trainingBatchSize;
+            return this;
+        }
+
+        public Builder indexedMetadataFields(Set<String> indexedMetadataFields) {
+            this.indexedMetadataFields = Set.copyOf(indexedMetadataFields);
+            return this;
+        }
+
+        public StoreConfiguration build() {
+            return new StoreConfiguration(
+                    elementType, distanceMetric, trainingSampleSize, trainingBatchSize, indexedMetadataFields);
+        }
+    }
+}
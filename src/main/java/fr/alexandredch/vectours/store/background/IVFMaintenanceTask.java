@@ -0,0 +1,34 @@
+package fr.alexandredch.vectours.store.background;
+
+import fr.alexandredch.vectours.index.IndexRegistry;
+import java.util.concurrent.Executor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class IVFMaintenanceTask implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IVFMaintenanceTask.class);
+
+    private final IndexRegistry indexRegistry;
+    // Thread updating the segment store and the indexes, which IVF retrainings read their vectors on
+    private final Executor indexUpdateExecutor;
+
+    public IVFMaintenanceTask(IndexRegistry indexRegistry, Executor indexUpdateExecutor) {
+        this.indexRegistry = indexRegistry;
+        this.indexUpdateExecutor = indexUpdateExecutor;
+    }
+
+    @Override
+    public void run() {
+        for (IndexRegistry.Indexes indexes : indexRegistry.getAll()) {
+            // A failure must not cancel the next scheduled runs, nor the maintenance of the other dimensions
+            try {
+                indexes.ivf().maintain(indexUpdateExecutor);
+                indexes.ivfPq().purge();
+                indexes.hnsw().compact();
+            } catch (RuntimeException e) {
+                logger.error("IVF index maintenance failed for dimension {}", indexes.dimension(), e);
+            }
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package fr.alexandredch.vectours.store.background;
 
+import fr.alexandredch.vectours.index.PersistentIndex;
 import fr.alexandredch.vectours.store.segment.Segment;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
 import fr.alexandredch.vectours.store.wal.WriteAheadLogger;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.slf4j.Logger;
@@ -14,6 +17,7 @@ public final class SegmentSaverTask implements Runnable {
 
     private final WriteAheadLogger writeAheadLogger;
     private final SegmentStore segmentStore;
+    private final List<PersistentIndex> indexes = new CopyOnWriteArrayList<>();
     private final Lock lock = new ReentrantLock();
 
     public SegmentSaverTask(WriteAheadLogger writeAheadLogger, SegmentStore segmentStore) {
@@ -21,6 +25,13 @@ public final class SegmentSaverTask implements Runnable {
         this.segmentStore = segmentStore;
     }
 
+    /**
+     * Saves {@code index} after the segments, as indexes refer to vectors by their ordinal in the segments.
+     */
+    public void addIndex(PersistentIndex index) {
+        indexes.add(index);
+    }
+
     @Override
     public void run() {
         saveSegments();
@@ -44,6 +55,15 @@ public final class SegmentSaverTask implements Runnable {
                 writeAheadLogger.markLastCheckpoint(segment);
             });
             logger.info("Segments saved successfully.");
+
+            for (PersistentIndex index : indexes) {
+                // The index is rebuilt from the segments if its file is missing, a failure must not block the saver
+                try {
+                    index.saveToDisk();
+                } catch (RuntimeException e) {
+                    logger.error("Failed to save index to disk", e);
+                }
+            }
             lock.unlock();
         }
     }
@@ -3,23 +3,25 @@ package fr.alexandredch.vectours.store.base;
 import fr.alexandredch.vectours.data.SearchParameters;
 import fr.alexandredch.vectours.data.SearchResult;
 import fr.alexandredch.vectours.data.Vector;
-import fr.alexandredch.vectours.index.hnsw.HNSWIndex;
-import fr.alexandredch.vectours.index.ivf.DefaultIVFIndex;
-import fr.alexandredch.vectours.index.pq.VectorProductQuantization;
-import fr.alexandredch.vectours.math.Vectors;
+import fr.alexandredch.vectours.index.IndexRegistry;
+import fr.alexandredch.vectours.index.flat.ParallelExactSearch;
+import fr.alexandredch.vectours.math.DistanceMetric;
 import fr.alexandredch.vectours.operations.Operation;
 import fr.alexandredch.vectours.store.Store;
+import fr.alexandredch.vectours.store.StoreConfiguration;
+import fr.alexandredch.vectours.store.background.IVFMaintenanceTask;
 import fr.alexandredch.vectours.store.background.SegmentSaverTask;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
 import fr.alexandredch.vectours.store.wal.WriteAheadLogger;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,21 +31,33 @@ public final class InMemoryStore implements Store {
 
     private final ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
     private final ScheduledExecutorService indexUpdateExecutor = Executors.newScheduledThreadPool(1);
+    // HNSW inserts, handed over by the index update thread, run in parallel
+    private final ExecutorService graphUpdateExecutor =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final ScheduledExecutorService indexMaintenanceExecutor = Executors.newScheduledThreadPool(1);
+    private final ExecutorService pqTrainingExecutor = Executors.newSingleThreadExecutor();
+    private final ForkJoinPool searchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
+    private final StoreConfiguration configuration;
     private final WriteAheadLogger writeAheadLogger;
     private final SegmentStore segmentStore;
     private final SegmentSaverTask segmentSaverTask;
-    private final VectorProductQuantization vectorProductQuantization;
-
-    private DefaultIVFIndex defaultIvfIndex;
-    private HNSWIndex hnswIndex;
+    private final IndexRegistry indexRegistry;
+    private final ParallelExactSearch exactSearch;
 
     public InMemoryStore() {
+        this(new StoreConfiguration.Builder().build());
+    }
+
+    public InMemoryStore(StoreConfiguration configuration) {
+        this.configuration = configuration;
         writeAheadLogger = new WriteAheadLogger();
-        segmentStore = new SegmentStore(writeAheadLogger);
+        segmentStore = new SegmentStore(
+                writeAheadLogger, configuration.elementType(), configuration.indexedMetadataFields());
         segmentSaverTask = new SegmentSaverTask(writeAheadLogger, segmentStore);
-        // TODO: create 1 per dimension
-        vectorProductQuantization = new VectorProductQuantization(segmentStore, 0);
+        indexRegistry =
+                new IndexRegistry(segmentStore, configuration, graphUpdateExecutor, searchPool, pqTrainingExecutor);
+        exactSearch = new ParallelExactSearch(segmentStore, configuration.distanceMetric(), searchPool);
 
         scheduledExecutorService.scheduleAtFixedRate(segmentSaverTask, 0, 30, TimeUnit.SECONDS);
     }
@@ -76,34 +90,37 @@ public final class InMemoryStore implements Store {
             }
         }
 
-        logger.info("Creating IVF index...");
-        defaultIvfIndex = new DefaultIVFIndex(segmentStore);
+        logger.info("Loading indexes...");
+        indexRegistry.initFromDisk();
+        segmentSaverTask.addIndex(indexRegistry);
+        indexMaintenanceExecutor.scheduleWithFixedDelay(
+                new IVFMaintenanceTask(indexRegistry, indexUpdateExecutor), 1, 1, TimeUnit.MINUTES);
         logger.info("Finished initializing InMemoryStore from disk.");
-
-        logger.info("Creating HNSW index...");
-        hnswIndex = new HNSWIndex(segmentStore);
-        logger.info("Finished creating HNSW index.");
-
-        logger.info("Building PQ centroids...");
-        vectorProductQuantization.buildSubspaces();
-        logger.info("Finished building PQ centroids.");
     }
 
     @Override
-    public CompletableFuture<Void> insert(Vector vector) {
+    public CompletableFuture<Void> insert(Vector inserted) {
+        // Store vectors as the metric compares them (normalized for cosine), as they will be read back from disk
+        float[] values = configuration.elementType().round(configuration.distanceMetric().prepare(inserted.values()));
+        Vector vector = new Vector(inserted.id(), values, inserted.metadata());
+
         // Append to WAL and wait for durability
         CompletableFuture<Void> walFuture = writeAheadLogger.applyOperation(new Operation.Insert(vector));
 
         // Schedule index updates asynchronously (client doesn't wait for these)
         walFuture.thenRunAsync(
                 () -> {
-                    // Insert into its segment and IVF index
-                    segmentStore.insertVector(vector);
-                    defaultIvfIndex.insertVector(vector);
-                    hnswIndex.insertVector(vector);
-
-                    vectorProductQuantization.insertVector(vector);
-                    vectorProductQuantization.buildSubspaces();
+                    // Insert into its segment and the indexes of its dimension, replacing the previous vector
+                    int previousOrdinal = segmentStore.getOrdinal(vector.id());
+                    Vector previous = segmentStore.getVector(previousOrdinal);
+                    int ordinal = segmentStore.insertVector(vector);
+                    if (ordinal == previousOrdinal) {
+                        return;
+                    }
+                    if (previous != null) {
+                        indexRegistry.deleteVector(previous, previousOrdinal);
+                    }
+                    indexRegistry.insertVector(vector);
                 },
                 indexUpdateExecutor);
 
@@ -112,7 +129,7 @@ public final class InMemoryStore implements Store {
     }
 
     @Override
-    public List<SearchResult> search(double[] searchedVector, int k) {
+    public List<SearchResult> search(float[] searchedVector, int k) {
         return search(new SearchParameters.Builder()
                 .searchedVector(searchedVector)
                 .topK(k)
@@ -121,42 +138,79 @@ public final class InMemoryStore implements Store {
 
     @Override
     public List<SearchResult> search(SearchParameters searchParameters) {
-        double[] searchedVector = searchParameters.searchedVector();
-        if (searchParameters.allowIVF() && defaultIvfIndex.canSearch()) {
-            return defaultIvfIndex.search(searchedVector, searchParameters.topK()).stream()
-                    .map(v -> new SearchResult(
-                            v.id(), Vectors.squaredEuclidianDistance(v.values(), searchedVector), v.metadata()))
-                    .toList();
+        checkBounds(searchParameters);
+        DistanceMetric metric = configuration.distanceMetric();
+        float[] searchedVector = metric.prepare(searchParameters.searchedVector());
+
+        // Only the indexes of the dimension of the query hold comparable vectors
+        IndexRegistry.Indexes indexes = indexRegistry.get(searchedVector.length);
+        // Candidates matching the metadata filter, evaluated before any distance computation
+        IntPredicate filter = searchParameters.filter() == null
+                ? null
+                : segmentStore.ordinalFilter(searchParameters.filter());
+        if (indexes == null) {
+            return exactSearch.search(searchedVector, searchParameters.topK(), filter);
         }
-        if (searchParameters.usePQ()) {
-            return vectorProductQuantization.approxSearch(searchedVector, searchParameters.topK());
+        if (searchParameters.allowIVF()) {
+            List<SearchResult> results = ivfSearch(indexes, searchedVector, searchParameters, filter);
+            // A filtered search probes more lists on an estimate of the share of accepted vectors, which may be too
+            // optimistic, it then falls back to the searches below, which find every accepted vector
+            if (results != null && (filter == null || results.size() >= searchParameters.topK())) {
+                return results;
+            }
+        }
+        // Filtered queries otherwise run the HNSW search with the filter, or the exact search, like without PQ
+        if (filter == null && searchParameters.usePQ() && indexes.pq().canSearch()) {
+            return indexes.pq().approxSearch(searchedVector, searchParameters.topK());
         }
-        if (searchParameters.useHNSW()) {
-            return hnswIndex.search(searchedVector, searchParameters.topK()).stream()
-                    .map(v -> new SearchResult(
-                            v.id(), Vectors.squaredEuclidianDistance(v.values(), searchedVector), v.metadata()))
+        if (searchParameters.useHNSW() && indexes.hnsw().canSearch()) {
+            return indexes.hnsw()
+                    .search(searchedVector, searchParameters.topK(), searchParameters.efSearch(), filter)
+                    .stream()
+                    .map(v -> new SearchResult(v.id(), metric.distance(v.values(), searchedVector), v.metadata()))
                     .toList();
         }
 
-        PriorityQueue<SearchResult> topK = new PriorityQueue<>(
-                searchParameters.topK(),
-                Comparator.comparingDouble(SearchResult::distance).reversed());
-
-        segmentStore.streamAllVectors().forEach(v -> {
-            double distance = Vectors.squaredEuclidianDistance(v.values(), searchedVector);
-            SearchResult result = new SearchResult(v.id(), distance, v.metadata());
+        return exactSearch.search(searchedVector, searchParameters.topK(), filter);
+    }
 
-            if (topK.size() < searchParameters.topK()) {
-                topK.offer(result);
-            } else if (distance < topK.peek().distance()) {
-                topK.poll();
-                topK.offer(result);
-            }
-        });
+    /**
+     * Searches the IVF-PQ index if PQ is allowed, else the IVF index, or returns null if neither can be searched.
+     */
+    private @Nullable List<SearchResult> ivfSearch(
+            IndexRegistry.Indexes indexes,
+            float[] searchedVector,
+            SearchParameters searchParameters,
+            @Nullable IntPredicate filter) {
+        if (searchParameters.usePQ() && indexes.ivfPq().canSearch()) {
+            return indexes.ivfPq()
+                    .search(searchedVector, searchParameters.topK(), searchParameters.nprobe(), filter);
+        }
+        if (!indexes.ivf().canSearch()) {
+            return null;
+        }
+        DistanceMetric metric = configuration.distanceMetric();
+        return indexes
+                .ivf()
+                .search(searchedVector, searchParameters.topK(), searchParameters.nprobe(), filter)
+                .stream()
+                .map(v -> new SearchResult(v.id(), metric.distance(v.values(), searchedVector), v.metadata()))
+                .toList();
+    }
 
-        List<SearchResult> results = new ArrayList<>(topK);
-        results.sort(Comparator.comparingDouble(SearchResult::distance));
-        return results;
+    /**
+     * Rejects the parameters that would make a single query scan a large part of the store.
+     */
+    private static void checkBounds(SearchParameters searchParameters) {
+        if (searchParameters.topK() < 1 || searchParameters.topK() > SearchParameters.MAX_TOP_K) {
+            throw new IllegalArgumentException("topK must be between 1 and " + SearchParameters.MAX_TOP_K);
+        }
+        if (searchParameters.nprobe() < 0 || searchParameters.nprobe() > SearchParameters.MAX_NPROBE) {
+            throw new IllegalArgumentException("nprobe must be between 0 and " + SearchParameters.MAX_NPROBE);
+        }
+        if (searchParameters.efSearch() < 0 || searchParameters.efSearch() > SearchParameters.MAX_EF_SEARCH) {
+            throw new IllegalArgumentException("efSearch must be between 0 and " + SearchParameters.MAX_EF_SEARCH);
+        }
     }
 
     @Override
@@ -167,8 +221,13 @@ public final class InMemoryStore implements Store {
         // Schedule index updates asynchronously (client doesn't wait for these)
         walFuture.thenRunAsync(
                 () -> {
-                    // Delete from its segment
+                    // Delete from its segment and the indexes of its dimension
+                    int ordinal = segmentStore.getOrdinal(id);
+                    Vector deleted = segmentStore.getVector(ordinal);
                     segmentStore.deleteVector(id);
+                    if (deleted != null) {
+                        indexRegistry.deleteVector(deleted, ordinal);
+                    }
                 },
                 indexUpdateExecutor);
 
@@ -189,16 +248,26 @@ public final class InMemoryStore implements Store {
 
     public void shutdown() {
         scheduledExecutorService.shutdownNow();
-        indexUpdateExecutor.shutdown();
+        indexMaintenanceExecutor.shutdownNow();
+        // Codebooks are not saved, a training in progress is lost and restarts on the next startup
+        pqTrainingExecutor.shutdownNow();
+        searchPool.shutdown();
+        // The index update thread hands HNSW inserts over to the graph update executor, it must be drained first
+        awaitTermination(indexUpdateExecutor);
+        awaitTermination(graphUpdateExecutor);
+        writeAheadLogger.shutdown();
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        executor.shutdown();
         try {
-            if (!indexUpdateExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
-                indexUpdateExecutor.shutdownNow();
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            indexUpdateExecutor.shutdownNow();
+            executor.shutdownNow();
         }
-        writeAheadLogger.shutdown();
     }
 
     @Override
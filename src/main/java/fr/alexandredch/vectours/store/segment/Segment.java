@@ -2,15 +2,24 @@ package fr.alexandredch.vectours.store.segment;
 
 import fr.alexandredch.vectours.data.Vector;
 import java.util.*;
-
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Fixed-capacity group of vectors.
+ * <p>
+ * Every insert takes the next slot, slots are never reused or reordered (an upsert takes a new slot and the previous
+ * one is left dead), so that {@link #ordinal(int)} identifies a vector for the lifetime of the store, across restarts.
+ * Dead slots only keep their place: the vector they held is dropped when it is deleted or replaced.
+ */
 public final class Segment {
 
     public static final int MAX_SEGMENT_SIZE = 1000;
 
-    private final Map<String, Vector> vectors = new HashMap<>();
-    // TODO: Use a more memory-efficient structure for IDs and bloom filters?
-    // Duplicate storage of IDs for faster lookup and because we don't rewrite vectors map on deletions (yet)
-    private final Set<String> ids = new HashSet<>();
+    // Vectors in slot order, null in dead slots. Sized for a full segment so that the array read by searches is never
+    // replaced
+    private final List<@Nullable Vector> slots = new ArrayList<>(MAX_SEGMENT_SIZE);
+    // Latest slot of every id, including deleted ones
+    private final Map<String, Integer> slotsById = new HashMap<>();
     private final Set<String> tombstones = new HashSet<>();
     private final int id;
     private boolean dirty = false;
@@ -19,49 +28,102 @@ public final class Segment {
         this.id = segmentId;
     }
 
-    public void insert(Vector vector) {
+    /**
+     * @return the slot of the vector in this segment
+     */
+    public int insert(Vector vector) {
         if (isFull()) {
-            throw new IllegalStateException("Segment is full, len(vectors)=" + vectors.size() + ", len(tombstones)="
+            throw new IllegalStateException("Segment is full, len(vectors)=" + slots.size() + ", len(tombstones)="
                     + tombstones.size() + ", id=" + id);
         }
         tombstones.remove(vector.id());
 
         dirty = true;
-        vectors.put(vector.id(), vector);
-        ids.add(vector.id());
+        int slot = slots.size();
+        slots.add(vector);
+        Integer previousSlot = slotsById.put(vector.id(), slot);
+        if (previousSlot != null) {
+            slots.set(previousSlot, null);
+        }
+        return slot;
+    }
+
+    /**
+     * Takes the next slot as a dead one, for a slot that was already dead when the segment was saved.
+     */
+    public void skipSlot() {
+        if (isFull()) {
+            throw new IllegalStateException("Segment is full, len(vectors)=" + slots.size() + ", id=" + id);
+        }
+        dirty = true;
+        slots.add(null);
     }
 
     public void delete(String id) {
-        if (!ids.contains(id) || tombstones.contains(id)) {
+        if (!containsId(id)) {
             return;
         }
         dirty = true;
         tombstones.add(id);
-        ids.remove(id);
+        slots.set(slotsById.get(id), null);
     }
 
     public int size() {
-        return vectors.size() - tombstones.size();
+        return slotsById.size() - tombstones.size();
     }
 
     public boolean containsId(String id) {
-        return ids.contains(id);
+        return slotsById.containsKey(id) && !tombstones.contains(id);
+    }
+
+    public @Nullable Vector getVector(String id) {
+        Integer slot = slotsById.get(id);
+        return slot == null ? null : slots.get(slot);
     }
 
-    public Vector getVector(String id) {
-        return vectors.get(id);
+    /**
+     * Returns the vector in {@code slot}, or null if it was deleted or replaced since.
+     */
+    public @Nullable Vector getVectorAt(int slot) {
+        return slot < 0 || slot >= slots.size() ? null : slots.get(slot);
+    }
+
+    /**
+     * Returns the slot of the live vector with this id, or -1.
+     */
+    public int slotOf(String id) {
+        Integer slot = slotsById.get(id);
+        return slot == null || tombstones.contains(id) ? -1 : slot;
+    }
+
+    /**
+     * Store-wide ordinal of the vector in {@code slot}.
+     */
+    public int ordinal(int slot) {
+        return id * MAX_SEGMENT_SIZE + slot;
     }
 
     public Collection<Vector> getVectors() {
         List<Vector> vectorList = new ArrayList<>();
-        for (Vector vector : vectors.values()) {
-            if (!tombstones.contains(vector.id())) {
+        for (Vector vector : slots) {
+            if (vector != null) {
                 vectorList.add(vector);
             }
         }
         return List.copyOf(vectorList);
     }
 
+    /**
+     * Returns every slot, with null for the dead ones, so that slots are kept when the segment is reloaded.
+     */
+    public List<@Nullable Vector> getSlots() {
+        return Collections.unmodifiableList(new ArrayList<>(slots));
+    }
+
+    public int slotCount() {
+        return slots.size();
+    }
+
     public Collection<String> getTombstones() {
         return List.copyOf(tombstones);
     }
@@ -80,6 +142,6 @@ public final class Segment {
     }
 
     public boolean isFull() {
-        return vectors.size() >= MAX_SEGMENT_SIZE;
+        return slots.size() >= MAX_SEGMENT_SIZE;
     }
 }
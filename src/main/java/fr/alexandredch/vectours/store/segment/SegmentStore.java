@@ -1,6 +1,11 @@
 package fr.alexandredch.vectours.store.segment;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import fr.alexandredch.vectours.data.ElementType;
+import fr.alexandredch.vectours.data.MetadataFilter;
 import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.store.segment.metadata.SegmentMetadataIndex;
+import fr.alexandredch.vectours.store.segment.metadata.SegmentMetadataIndexStore;
 import fr.alexandredch.vectours.store.segment.tombstone.SegmentTombstoneStore;
 import fr.alexandredch.vectours.store.segment.vector.SegmentVectorStore;
 import fr.alexandredch.vectours.store.wal.WriteAheadLogger;
@@ -9,8 +14,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,31 +29,66 @@ public final class SegmentStore {
     public static final String SEGMENT_FILE_PREFIX = "segment_";
     public static final String VECTORS_FILE = "vectors";
     public static final String TOMBSTONES_FILE = "tombstones";
+    public static final String METADATA_INDEX_FILE = "metadata_index";
 
     private static final Logger logger = LoggerFactory.getLogger(SegmentStore.class);
 
     private final WriteAheadLogger writeAheadLogger;
     private final SegmentVectorStore segmentVectorStore;
     private final SegmentTombstoneStore segmentTombstoneStore;
+    private final SegmentMetadataIndexStore segmentMetadataIndexStore;
+    private final Set<String> indexedMetadataFields;
 
-    private final List<Segment> segments = new ArrayList<>();
+    // Read by searches while the index thread appends to it
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Map<Integer, Segment> segmentsById = new ConcurrentHashMap<>();
+    // Ordinal of the live vector of every id, see getOrdinal
+    private final Map<String, Integer> ordinalsById = new ConcurrentHashMap<>();
+    // Number of live vectors of every dimension, for the indexes of each dimension
+    private final Map<Integer, Integer> vectorCountsByDimension = new ConcurrentHashMap<>();
+    // Index of the indexed metadata fields of every segment, none if no field is indexed
+    private final Map<Integer, SegmentMetadataIndex> metadataIndexesBySegmentId = new ConcurrentHashMap<>();
 
-    private Segment currentSegment;
+    private volatile Segment currentSegment;
 
     private boolean initialized = false;
 
     public SegmentStore(WriteAheadLogger writeAheadLogger) {
+        this(writeAheadLogger, ElementType.FLOAT32);
+    }
+
+    public SegmentStore(WriteAheadLogger writeAheadLogger, ElementType elementType) {
+        this(writeAheadLogger, elementType, Set.of());
+    }
+
+    /**
+     * @param indexedMetadataFields top-level metadata fields indexed in each segment, see {@link #ordinalFilter}
+     */
+    public SegmentStore(WriteAheadLogger writeAheadLogger, ElementType elementType, Set<String> indexedMetadataFields) {
         this.writeAheadLogger = writeAheadLogger;
+        this.indexedMetadataFields = Set.copyOf(indexedMetadataFields);
 
-        segmentVectorStore = new SegmentVectorStore();
+        segmentVectorStore = new SegmentVectorStore(elementType);
         segmentTombstoneStore = new SegmentTombstoneStore();
+        segmentMetadataIndexStore = new SegmentMetadataIndexStore();
 
         currentSegment = new Segment(writeAheadLogger.getLatestSegmentIdIncludingUnclosed() + 1);
+        segmentsById.put(currentSegment.getId(), currentSegment);
+        addMetadataIndex(currentSegment.getId());
         writeAheadLogger.newSegment(currentSegment);
     }
 
+    /**
+     * Returns the closed segments and the current one. Safe to call while vectors are inserted: a full segment is added
+     * to the closed ones before it is replaced, so the current segment is read first and not added twice.
+     */
     public List<Segment> getSegments() {
-        return Stream.concat(segments.stream(), Stream.of(currentSegment)).collect(Collectors.toList());
+        Segment current = currentSegment;
+        List<Segment> all = new ArrayList<>(segments);
+        if (all.isEmpty() || all.getLast() != current) {
+            all.add(current);
+        }
+        return all;
     }
 
     public int getTotalVectorCount() {
@@ -60,6 +104,25 @@ public final class SegmentStore {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Returns the dimensions of the stored vectors.
+     */
+    public Set<Integer> getDimensions() {
+        checkInitialized();
+        return Set.copyOf(vectorCountsByDimension.keySet());
+    }
+
+    public int getVectorCount(int dimension) {
+        checkInitialized();
+        return vectorCountsByDimension.getOrDefault(dimension, 0);
+    }
+
+    public List<Vector> getAllVectors(int dimension) {
+        return streamAllVectors()
+                .filter(vector -> vector.values().length == dimension)
+                .collect(Collectors.toList());
+    }
+
     public Stream<Vector> streamAllVectors() {
         checkInitialized();
         return Stream.concat(
@@ -73,6 +136,8 @@ public final class SegmentStore {
         if (!exists) {
             Segment segment = new Segment(segmentId);
             segments.add(segment);
+            segmentsById.put(segmentId, segment);
+            addMetadataIndex(segmentId);
 
             // WAL will read segment starts and will try to recreate them if they don't exist
             // So we don't need to log them again
@@ -82,7 +147,10 @@ public final class SegmentStore {
         }
     }
 
-    public void insertVector(Vector vector) {
+    /**
+     * @return the ordinal of the inserted vector
+     */
+    public int insertVector(Vector vector) {
         checkInitialized();
         if (currentSegment.isFull()) {
             segments.add(currentSegment);
@@ -91,53 +159,121 @@ public final class SegmentStore {
 
             // Create new segment and log it
             currentSegment = new Segment(newSegmentId);
+            segmentsById.put(newSegmentId, currentSegment);
+            addMetadataIndex(newSegmentId);
             writeAheadLogger.newSegment(currentSegment);
         }
-        currentSegment.insert(vector);
+        return insert(currentSegment, vector);
     }
 
-    public void insertVectorInSegment(Vector vector, int segmentId) {
+    /**
+     * @return the ordinal of the inserted vector
+     */
+    public int insertVectorInSegment(Vector vector, int segmentId) {
         if (!initialized) {
             throw new IllegalStateException("SegmentStore is not initialized. Call loadFromDisk() first.");
         }
         if (segmentId == currentSegment.getId()) {
-            insertVector(vector);
-            return;
+            return insertVector(vector);
         }
-        Segment segment = segments.stream()
-                .filter(s -> s.getId() == segmentId)
-                .findFirst()
-                .orElse(null);
+        Segment segment = segmentsById.get(segmentId);
         if (segment == null) {
             throw new IllegalArgumentException("Segment with id " + segmentId + " does not exist");
         }
-        segment.insert(vector);
+        // Replaying the WAL over a saved segment inserts the same vectors again
+        int slot = segment.slotOf(vector.id());
+        if (vector.equals(segment.getVectorAt(slot))) {
+            return segment.ordinal(slot);
+        }
+        return insert(segment, vector);
     }
 
     public void deleteVector(String id) {
         checkInitialized();
-        for (Segment segment : segments) {
-            if (segment.containsId(id)) {
-                segment.delete(id);
-                return;
-            }
-        }
-        if (currentSegment.containsId(id)) {
-            currentSegment.delete(id);
+        Integer ordinal = ordinalsById.get(id);
+        if (ordinal != null) {
+            delete(segmentsById.get(ordinal / Segment.MAX_SEGMENT_SIZE), id);
         }
     }
 
     public Vector getVectorById(String id) {
         checkInitialized();
-        for (Segment segment : segments) {
-            if (segment.containsId(id)) {
-                return segment.getVector(id);
+        return getVector(getOrdinal(id));
+    }
+
+    /**
+     * Returns the vector with this ordinal, or null if it was deleted or replaced since.
+     */
+    public @Nullable Vector getVector(int ordinal) {
+        if (ordinal < 0) {
+            return null;
+        }
+        Segment segment = segmentsById.get(ordinal / Segment.MAX_SEGMENT_SIZE);
+        return segment == null ? null : segment.getVectorAt(ordinal % Segment.MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns the ordinal of the live vector with this id, or -1.
+     * <p>
+     * Ordinals number the slots of all the segments, {@code segmentId * MAX_SEGMENT_SIZE + slot}. Slots are never
+     * reused, so an ordinal keeps designating the same vector across restarts and indexes can persist ordinals instead
+     * of ids.
+     */
+    public int getOrdinal(String id) {
+        return ordinalsById.getOrDefault(id, -1);
+    }
+
+    /**
+     * Returns a test of the ordinals of the live vectors matching the filter, to restrict the candidates of a search
+     * before comparing them to the query.
+     * <p>
+     * The conditions on indexed fields are answered once from the metadata indexes of the segments, as a bit set of
+     * ordinals. The metadata of the vectors is only read for the conditions on other fields, and only for the ordinals
+     * accepted by the indexed conditions.
+     * <p>
+     * Negative ordinals, which indexes hold for vectors deleted while they were read, are never accepted.
+     */
+    public IntPredicate ordinalFilter(MetadataFilter filter) {
+        Map<String, JsonNode> indexedConditions = new HashMap<>();
+        Map<String, JsonNode> otherConditions = new HashMap<>();
+        for (Map.Entry<String, JsonNode> condition : filter.conditions().entrySet()) {
+            if (indexedMetadataFields.contains(condition.getKey())) {
+                indexedConditions.put(condition.getKey(), condition.getValue());
+            } else {
+                otherConditions.put(condition.getKey(), condition.getValue());
             }
         }
-        if (currentSegment.containsId(id)) {
-            return currentSegment.getVector(id);
+        MetadataFilter otherFilter = new MetadataFilter(otherConditions);
+        IntPredicate matchesOtherConditions = ordinal -> {
+            Vector vector = getVector(ordinal);
+            return vector != null && otherFilter.matches(vector.metadata());
+        };
+        if (indexedConditions.isEmpty()) {
+            return matchesOtherConditions;
         }
-        return null;
+
+        BitSet ordinals = new BitSet();
+        metadataIndexesBySegmentId.forEach((segmentId, metadataIndex) -> {
+            BitSet slots = null;
+            for (Map.Entry<String, JsonNode> condition : indexedConditions.entrySet()) {
+                BitSet conditionSlots = metadataIndex.slots(condition.getKey(), condition.getValue());
+                if (slots == null) {
+                    slots = conditionSlots;
+                } else {
+                    slots.and(conditionSlots);
+                }
+                if (slots.isEmpty()) {
+                    return;
+                }
+            }
+            int firstOrdinal = segmentId * Segment.MAX_SEGMENT_SIZE;
+            for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                ordinals.set(firstOrdinal + slot);
+            }
+        });
+        return otherConditions.isEmpty()
+                ? ordinal -> ordinal >= 0 && ordinals.get(ordinal)
+                : ordinal -> ordinal >= 0 && ordinals.get(ordinal) && matchesOtherConditions.test(ordinal);
     }
 
     public void saveSegmentToDisk(Segment segment) {
@@ -145,6 +281,10 @@ public final class SegmentStore {
 
         segmentVectorStore.writeSegmentVectorsToDisk(segmentPath, segment);
         segmentTombstoneStore.writeSegmentTombstonesToDisk(segmentPath, segment);
+        SegmentMetadataIndex metadataIndex = metadataIndexesBySegmentId.get(segment.getId());
+        if (metadataIndex != null) {
+            segmentMetadataIndexStore.writeSegmentMetadataIndexToDisk(segmentPath, metadataIndex);
+        }
     }
 
     public void loadFromDisk() {
@@ -153,25 +293,47 @@ public final class SegmentStore {
             Path segmentsDir = Path.of(SEGMENTS_DIR);
             logger.info("Loading segments from disk at {}...", segmentsDir.toAbsolutePath());
             if (Files.exists(segmentsDir) && Files.isDirectory(segmentsDir)) {
+                // In creation order, so that a vector replaced in a later segment supersedes the earlier one
                 try (Stream<Path> stream = Files.list(segmentsDir)) {
-                    stream.filter(Files::isDirectory).forEach(segmentDir -> {
-                        int segmentId = Integer.parseInt(
-                                segmentDir.getFileName().toString().split("_")[1]);
-                        Segment segment = new Segment(segmentId);
-
-                        logger.info("Loading segment {} from disk...", segmentId);
-
-                        // Load vectors
-                        Arrays.stream(segmentVectorStore.readSegmentVectorsFromDisk(segmentDir))
-                                .forEach(segment::insert);
-
-                        // Load tombstones
-                        segmentTombstoneStore
-                                .readSegmentTombstonesFromDisk(segmentDir)
-                                .forEach(segment::delete);
-
-                        segments.add(segment);
-                    });
+                    stream.filter(Files::isDirectory)
+                            .sorted(Comparator.comparingInt(SegmentStore::segmentId))
+                            .forEach(segmentDir -> {
+                                int segmentId = segmentId(segmentDir);
+                                Segment segment = new Segment(segmentId);
+
+                                logger.info("Loading segment {} from disk...", segmentId);
+
+                                // Load the metadata index, rebuilt from the vectors if it indexes other fields
+                                boolean indexMetadata = false;
+                                if (!indexedMetadataFields.isEmpty()) {
+                                    SegmentMetadataIndex metadataIndex =
+                                            segmentMetadataIndexStore.readSegmentMetadataIndexFromDisk(
+                                                    segmentDir, indexedMetadataFields);
+                                    indexMetadata = metadataIndex == null;
+                                    metadataIndexesBySegmentId.put(
+                                            segmentId,
+                                            indexMetadata
+                                                    ? new SegmentMetadataIndex(indexedMetadataFields)
+                                                    : metadataIndex);
+                                }
+
+                                // Load vectors, in their slots
+                                for (Vector vector : segmentVectorStore.readSegmentVectorsFromDisk(segmentDir)) {
+                                    if (vector == null) {
+                                        segment.skipSlot();
+                                    } else {
+                                        insert(segment, vector, indexMetadata);
+                                    }
+                                }
+
+                                // Load tombstones
+                                segmentTombstoneStore
+                                        .readSegmentTombstonesFromDisk(segmentDir)
+                                        .forEach(id -> delete(segment, id));
+
+                                segments.add(segment);
+                                segmentsById.put(segmentId, segment);
+                            });
                 }
             }
         } catch (IOException e) {
@@ -183,6 +345,10 @@ public final class SegmentStore {
 
     public void close() {
         segments.clear();
+        segmentsById.clear();
+        ordinalsById.clear();
+        vectorCountsByDimension.clear();
+        metadataIndexesBySegmentId.clear();
         currentSegment = null;
         initialized = false;
 
@@ -197,6 +363,78 @@ public final class SegmentStore {
         }
     }
 
+    private static int segmentId(Path segmentDir) {
+        return Integer.parseInt(segmentDir.getFileName().toString().split("_")[1]);
+    }
+
+    private int insert(Segment segment, Vector vector) {
+        return insert(segment, vector, true);
+    }
+
+    /**
+     * @param indexMetadata false when loading a segment whose saved metadata index already holds the vector
+     */
+    private int insert(Segment segment, Vector vector, boolean indexMetadata) {
+        // A vector replacing one of another segment deletes it there, there is a single live vector per id
+        Integer previousOrdinal = ordinalsById.get(vector.id());
+        if (previousOrdinal != null && previousOrdinal / Segment.MAX_SEGMENT_SIZE != segment.getId()) {
+            delete(segmentsById.get(previousOrdinal / Segment.MAX_SEGMENT_SIZE), vector.id());
+        }
+
+        int previousSlot = segment.slotOf(vector.id());
+        Vector previous = segment.getVectorAt(previousSlot);
+        int slot = segment.insert(vector);
+        if (slot != previousSlot) {
+            if (previous != null) {
+                countVector(previous, -1);
+            }
+            countVector(vector, 1);
+
+            SegmentMetadataIndex metadataIndex = metadataIndexesBySegmentId.get(segment.getId());
+            if (indexMetadata && metadataIndex != null) {
+                if (previous != null) {
+                    metadataIndex.remove(previousSlot, previous.metadata());
+                }
+                metadataIndex.add(slot, vector.metadata());
+            }
+        }
+
+        int ordinal = segment.ordinal(slot);
+        ordinalsById.put(vector.id(), ordinal);
+        return ordinal;
+    }
+
+    private void delete(@Nullable Segment segment, String id) {
+        if (segment == null) {
+            return;
+        }
+        int slot = segment.slotOf(id);
+        Vector deleted = segment.getVectorAt(slot);
+        if (deleted != null) {
+            countVector(deleted, -1);
+            SegmentMetadataIndex metadataIndex = metadataIndexesBySegmentId.get(segment.getId());
+            if (metadataIndex != null) {
+                metadataIndex.remove(slot, deleted.metadata());
+            }
+        }
+        segment.delete(id);
+        ordinalsById.computeIfPresent(
+                id, (key, ordinal) -> ordinal / Segment.MAX_SEGMENT_SIZE == segment.getId() ? null : ordinal);
+    }
+
+    private void addMetadataIndex(int segmentId) {
+        if (!indexedMetadataFields.isEmpty()) {
+            metadataIndexesBySegmentId.put(segmentId, new SegmentMetadataIndex(indexedMetadataFields));
+        }
+    }
+
+    private void countVector(Vector vector, int delta) {
+        vectorCountsByDimension.compute(vector.values().length, (dimension, count) -> {
+            int newCount = (count == null ? 0 : count) + delta;
+            return newCount > 0 ? newCount : null;
+        });
+    }
+
     private void checkInitialized() {
         if (!initialized) {
             throw new IllegalStateException("SegmentStore is not initialized. Call loadFromDisk() first.");
@@ -0,0 +1,239 @@
+package fr.alexandredch.vectours.store.segment.metadata;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.alexandredch.vectours.data.Metadata;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Inverted index of the metadata fields chosen in the store configuration, over the slots of a segment.
+ * <p>
+ * Each scalar value of an indexed field maps to the bit set of the slots of the live vectors holding it. Numbers are
+ * kept in a sorted map, so that a range condition is the union of the bit sets of a sub map, and are compared by
+ * value like {@link fr.alexandredch.vectours.data.MetadataFilter} does. Segments have at most
+ * {@link fr.alexandredch.vectours.store.segment.Segment#MAX_SEGMENT_SIZE} slots, so a bit set takes at most a few
+ * hundred bytes and needs no further compression.
+ * <p>
+ * Updated on the index update thread and read by searches and the segment saver, hence synchronized.
+ */
+public final class SegmentMetadataIndex {
+
+    private final Set<String> fields;
+    // Slots of each non-numeric value, by field
+    private final Map<String, Map<JsonNode, BitSet>> keywords = new HashMap<>();
+    // Slots of each numeric value, by field
+    private final Map<String, NavigableMap<Double, BitSet>> numbers = new HashMap<>();
+
+    public SegmentMetadataIndex(Set<String> fields) {
+        this.fields = Set.copyOf(fields);
+        for (String field : fields) {
+            keywords.put(field, new HashMap<>());
+            numbers.put(field, new TreeMap<>());
+        }
+    }
+
+    public Set<String> fields() {
+        return fields;
+    }
+
+    public boolean isIndexed(String field) {
+        return fields.contains(field);
+    }
+
+    /**
+     * Indexes the metadata of the vector inserted in the slot.
+     */
+    public synchronized void add(int slot, @Nullable Metadata metadata) {
+        forEachValue(metadata, (field, value) -> postings(field, value, true).set(slot));
+    }
+
+    /**
+     * Removes the slot of a vector deleted or replaced since it was added.
+     */
+    public synchronized void remove(int slot, @Nullable Metadata metadata) {
+        forEachValue(metadata, (field, value) -> {
+            BitSet slots = postings(field, value, false);
+            if (slots != null) {
+                slots.clear(slot);
+                if (slots.isEmpty()) {
+                    removePostings(field, value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the slots of the live vectors whose indexed field satisfies the condition of a
+     * {@link fr.alexandredch.vectours.data.MetadataFilter}.
+     */
+    public synchronized BitSet slots(String field, JsonNode condition) {
+        BitSet slots = new BitSet();
+        if (condition.isObject()) {
+            for (BitSet valueSlots : range(numbers.get(field), condition).values()) {
+                slots.or(valueSlots);
+            }
+        } else if (condition.isArray()) {
+            for (JsonNode value : condition) {
+                orPostings(slots, field, value);
+            }
+        } else {
+            orPostings(slots, field, condition);
+        }
+        return slots;
+    }
+
+    /**
+     * Writes, for each field, its name then the count of its values followed by each value and its slots, the JSON
+     * text of the non-numeric values first, then the numbers.
+     */
+    synchronized void write(DataOutputStream output) throws IOException {
+        output.writeInt(fields.size());
+        for (String field : fields) {
+            output.writeUTF(field);
+            Map<JsonNode, BitSet> fieldKeywords = keywords.get(field);
+            output.writeInt(fieldKeywords.size());
+            for (Map.Entry<JsonNode, BitSet> keyword : fieldKeywords.entrySet()) {
+                output.writeUTF(keyword.getKey().toString());
+                writeSlots(output, keyword.getValue());
+            }
+            NavigableMap<Double, BitSet> fieldNumbers = numbers.get(field);
+            output.writeInt(fieldNumbers.size());
+            for (Map.Entry<Double, BitSet> number : fieldNumbers.entrySet()) {
+                output.writeDouble(number.getKey());
+                writeSlots(output, number.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutputStream)}.
+     */
+    static SegmentMetadataIndex read(DataInputStream input, ObjectMapper objectMapper) throws IOException {
+        int fieldCount = input.readInt();
+        Map<String, Map<JsonNode, BitSet>> fileKeywords = new HashMap<>();
+        Map<String, NavigableMap<Double, BitSet>> fileNumbers = new HashMap<>();
+        for (int f = 0; f < fieldCount; f++) {
+            String field = input.readUTF();
+            Map<JsonNode, BitSet> fieldKeywords = new HashMap<>();
+            int keywordCount = input.readInt();
+            for (int i = 0; i < keywordCount; i++) {
+                fieldKeywords.put(objectMapper.readTree(input.readUTF()), readSlots(input));
+            }
+            NavigableMap<Double, BitSet> fieldNumbers = new TreeMap<>();
+            int numberCount = input.readInt();
+            for (int i = 0; i < numberCount; i++) {
+                fieldNumbers.put(input.readDouble(), readSlots(input));
+            }
+            fileKeywords.put(field, fieldKeywords);
+            fileNumbers.put(field, fieldNumbers);
+        }
+
+        SegmentMetadataIndex index = new SegmentMetadataIndex(fileKeywords.keySet());
+        index.keywords.putAll(fileKeywords);
+        index.numbers.putAll(fileNumbers);
+        return index;
+    }
+
+    private static void writeSlots(DataOutputStream output, BitSet slots) throws IOException {
+        long[] words = slots.toLongArray();
+        output.writeInt(words.length);
+        for (long word : words) {
+            output.writeLong(word);
+        }
+    }
+
+    private static BitSet readSlots(DataInputStream input) throws IOException {
+        long[] words = new long[input.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = input.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private void orPostings(BitSet slots, String field, JsonNode value) {
+        if (value.isValueNode()) {
+            BitSet valueSlots = postings(field, value, false);
+            if (valueSlots != null) {
+                slots.or(valueSlots);
+            }
+        }
+    }
+
+    private @Nullable BitSet postings(String field, JsonNode value, boolean create) {
+        if (value.isNumber()) {
+            NavigableMap<Double, BitSet> fieldNumbers = numbers.get(field);
+            return create
+                    ? fieldNumbers.computeIfAbsent(value.doubleValue(), key -> new BitSet())
+                    : fieldNumbers.get(value.doubleValue());
+        }
+        Map<JsonNode, BitSet> fieldKeywords = keywords.get(field);
+        return create ? fieldKeywords.computeIfAbsent(value, key -> new BitSet()) : fieldKeywords.get(value);
+    }
+
+    private void removePostings(String field, JsonNode value) {
+        if (value.isNumber()) {
+            numbers.get(field).remove(value.doubleValue());
+        } else {
+            keywords.get(field).remove(value);
+        }
+    }
+
+    private void forEachValue(@Nullable Metadata metadata, FieldValueConsumer consumer) {
+        JsonNode values = metadata == null ? null : metadata.metadata();
+        if (values == null) {
+            return;
+        }
+        for (String field : fields) {
+            JsonNode value = values.get(field);
+            if (value != null && value.isValueNode()) {
+                consumer.accept(field, value);
+            }
+        }
+    }
+
+    /**
+     * Numbers within the bounds of a range condition, see {@link fr.alexandredch.vectours.data.MetadataFilter}.
+     */
+    private static NavigableMap<Double, BitSet> range(NavigableMap<Double, BitSet> values, JsonNode range) {
+        double from = Double.NEGATIVE_INFINITY;
+        double to = Double.POSITIVE_INFINITY;
+        boolean fromInclusive = true;
+        boolean toInclusive = true;
+        for (Map.Entry<String, JsonNode> bound : range.properties()) {
+            if (!bound.getValue().isNumber()) {
+                throw new IllegalArgumentException("Range bound " + bound.getKey() + " is not a number");
+            }
+            double value = bound.getValue().doubleValue();
+            switch (bound.getKey()) {
+                case "gt", "gte" -> {
+                    boolean inclusive = bound.getKey().equals("gte");
+                    if (value > from || (value == from && !inclusive)) {
+                        from = value;
+                        fromInclusive = inclusive;
+                    }
+                }
+                case "lt", "lte" -> {
+                    boolean inclusive = bound.getKey().equals("lte");
+                    if (value < to || (value == to && !inclusive)) {
+                        to = value;
+                        toInclusive = inclusive;
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown range bound " + bound.getKey());
+            }
+        }
+        if (from > to || (from == to && !(fromInclusive && toInclusive))) {
+            return Collections.emptyNavigableMap();
+        }
+        return values.subMap(from, fromInclusive, to, toInclusive);
+    }
+
+    @FunctionalInterface
+    private interface FieldValueConsumer {
+        void accept(String field, JsonNode value);
+    }
+}
@@ -0,0 +1,60 @@
+package fr.alexandredch.vectours.store.segment.metadata;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import org.jspecify.annotations.Nullable;
+
+public final class SegmentMetadataIndexStore {
+
+    // "MIDX", written at the start of every metadata index file
+    private static final int FILE_MAGIC = 0x4D494458;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public void writeSegmentMetadataIndexToDisk(Path segmentPath, SegmentMetadataIndex index) {
+        Path indexPath = segmentPath.resolve(SegmentStore.METADATA_INDEX_FILE);
+
+        try {
+            Files.createDirectories(indexPath.getParent());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create directories for segment storage", e);
+        }
+
+        try (OutputStream outputStream = Files.newOutputStream(indexPath);
+                BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+                DataOutputStream dataOutputStream = new DataOutputStream(bufferedOutputStream)) {
+            dataOutputStream.writeInt(FILE_MAGIC);
+            index.write(dataOutputStream);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write segment metadata index to disk", e);
+        }
+    }
+
+    /**
+     * Returns the saved index of the segment, or null if there is none or it does not index these fields, in which
+     * case it must be rebuilt from the vectors of the segment.
+     */
+    public @Nullable SegmentMetadataIndex readSegmentMetadataIndexFromDisk(Path segmentPath, Set<String> fields) {
+        Path indexPath = segmentPath.resolve(SegmentStore.METADATA_INDEX_FILE);
+
+        if (!Files.exists(indexPath)) {
+            return null;
+        }
+
+        try (InputStream inputStream = Files.newInputStream(indexPath);
+                BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+                DataInputStream dataInputStream = new DataInputStream(bufferedInputStream)) {
+            if (dataInputStream.readInt() != FILE_MAGIC) {
+                throw new RuntimeException("Unsupported segment metadata index format: " + indexPath);
+            }
+            SegmentMetadataIndex index = SegmentMetadataIndex.read(dataInputStream, objectMapper);
+            return index.fields().equals(fields) ? index : null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read segment metadata index from disk", e);
+        }
+    }
+}
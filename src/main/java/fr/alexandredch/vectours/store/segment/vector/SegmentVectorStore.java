@@ -1,15 +1,29 @@
 package fr.alexandredch.vectours.store.segment.vector;
 
+import fr.alexandredch.vectours.data.ElementType;
 import fr.alexandredch.vectours.data.Vector;
 import fr.alexandredch.vectours.store.segment.Segment;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public final class SegmentVectorStore {
 
+    private static final Logger logger = LoggerFactory.getLogger(SegmentVectorStore.class);
+
+    // "VECT", written at the start of every vectors file and followed by the element type ordinal
+    private static final int FILE_MAGIC = 0x56454354;
+
     private final VectorSerializer serializer = new VectorSerializer();
+    private final ElementType elementType;
+
+    public SegmentVectorStore(ElementType elementType) {
+        this.elementType = elementType;
+    }
 
     public void writeSegmentVectorsToDisk(Path segmentPath, Segment segment) {
         Path vectorsPath = segmentPath.resolve(SegmentStore.VECTORS_FILE);
@@ -24,8 +38,16 @@ public final class SegmentVectorStore {
                 BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
                 DataOutputStream dataOutputStream = new DataOutputStream(bufferedOutputStream)) {
 
-            for (Vector vector : segment.getVectors()) {
-                byte[] serializedVector = serializer.encodeVector(vector);
+            dataOutputStream.writeInt(FILE_MAGIC);
+            dataOutputStream.writeByte(elementType.ordinal());
+
+            for (Vector vector : segment.getSlots()) {
+                if (vector == null) {
+                    // Dead slot, written as an empty vector to keep the slot numbering
+                    dataOutputStream.writeInt(0);
+                    continue;
+                }
+                byte[] serializedVector = serializer.encodeVector(vector, elementType);
                 // Write length first, then the serialized vector
                 dataOutputStream.writeInt(serializedVector.length);
                 dataOutputStream.write(serializedVector);
@@ -35,26 +57,55 @@ public final class SegmentVectorStore {
         }
     }
 
-    public Vector[] readSegmentVectorsFromDisk(Path segmentPath) {
+    /**
+     * Returns the vectors of the segment in slot order, with null for its dead slots.
+     */
+    public @Nullable Vector[] readSegmentVectorsFromDisk(Path segmentPath) {
         Path vectorsPath = segmentPath.resolve(SegmentStore.VECTORS_FILE);
 
         if (!Files.exists(vectorsPath)) {
             throw new RuntimeException("Segment file does not exist: " + vectorsPath);
         }
 
-        Vector[] vectors = new Vector[0];
+        @Nullable Vector[] vectors = new Vector[0];
 
         try (InputStream inputStream = Files.newInputStream(vectorsPath);
                 BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
                 DataInputStream dataInputStream = new DataInputStream(bufferedInputStream)) {
 
+            // Files written before the header was added start with the length of their first vector, and hold double
+            // values. Loaded segments are dirty, so the next save rewrites them in the current format
+            dataInputStream.mark(Integer.BYTES);
+            boolean legacy = Files.size(vectorsPath) < Integer.BYTES || dataInputStream.readInt() != FILE_MAGIC;
+            ElementType fileElementType;
+            if (legacy) {
+                logger.info("Segment {} was written in the legacy format, it will be rewritten", segmentPath);
+                dataInputStream.reset();
+                fileElementType = ElementType.FLOAT32;
+            } else {
+                // Segments keep the element type they were written with, even if the store setting changed since
+                fileElementType = ElementType.values()[dataInputStream.readByte()];
+            }
+
             while (dataInputStream.available() > 0) {
                 // Read length first, then the serialized vector
                 int length = dataInputStream.readInt();
+                if (length == 0) {
+                    vectors = appendVector(vectors, null);
+                    continue;
+                }
                 byte[] vectorBytes = new byte[length];
                 dataInputStream.readFully(vectorBytes);
 
-                Vector vector = serializer.decodeVector(vectorBytes);
+                Vector vector;
+                if (legacy) {
+                    // Rounded as if it had been inserted in this store, the rewritten file holds the same values
+                    Vector legacyVector = serializer.decodeLegacyVector(vectorBytes);
+                    vector = new Vector(
+                            legacyVector.id(), elementType.round(legacyVector.values()), legacyVector.metadata());
+                } else {
+                    vector = serializer.decodeVector(vectorBytes, fileElementType);
+                }
                 vectors = appendVector(vectors, vector);
             }
 
@@ -64,8 +115,8 @@ public final class SegmentVectorStore {
         }
     }
 
-    private Vector[] appendVector(Vector[] vectors, Vector vector) {
-        Vector[] newVectors = new Vector[vectors.length + 1];
+    private @Nullable Vector[] appendVector(@Nullable Vector[] vectors, @Nullable Vector vector) {
+        @Nullable Vector[] newVectors = new Vector[vectors.length + 1];
         System.arraycopy(vectors, 0, newVectors, 0, vectors.length);
         newVectors[vectors.length] = vector;
         return newVectors;
@@ -2,6 +2,7 @@ package fr.alexandredch.vectours.store.segment.vector;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import fr.alexandredch.vectours.data.ElementType;
 import fr.alexandredch.vectours.data.Metadata;
 import fr.alexandredch.vectours.data.Vector;
 import java.io.*;
@@ -10,17 +11,17 @@ public final class VectorSerializer {
 
     private final ObjectMapper objectMapper = new ObjectMapper(new SmileFactory());
 
-    public byte[] encodeVector(Vector vector) throws IOException {
+    public byte[] encodeVector(Vector vector, ElementType elementType) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream(baos);
 
         out.writeUTF(vector.id());
 
-        double[] values = vector.values();
+        float[] values = vector.values();
         out.writeInt(values.length);
 
-        for (double v : values) {
-            out.writeDouble(v);
+        for (float v : values) {
+            elementType.write(out, v);
         }
 
         byte[] metadata = objectMapper.writeValueAsBytes(vector.metadata());
@@ -32,15 +33,35 @@ public final class VectorSerializer {
         return baos.toByteArray();
     }
 
-    public Vector decodeVector(byte[] vector) throws IOException {
+    public Vector decodeVector(byte[] vector, ElementType elementType) throws IOException {
         DataInputStream in = new DataInputStream(new ByteArrayInputStream(vector));
 
         String id = in.readUTF();
 
         int len = in.readInt();
-        double[] values = new double[len];
+        float[] values = new float[len];
         for (int i = 0; i < len; i++) {
-            values[i] = in.readDouble();
+            values[i] = elementType.read(in);
+        }
+
+        byte[] metadataBytes = in.readAllBytes();
+        Metadata m = objectMapper.readValue(metadataBytes, Metadata.class);
+
+        return new Vector(id, values, m);
+    }
+
+    /**
+     * Decodes a vector written before segments had a header, with double values.
+     */
+    public Vector decodeLegacyVector(byte[] vector) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(vector));
+
+        String id = in.readUTF();
+
+        int len = in.readInt();
+        float[] values = new float[len];
+        for (int i = 0; i < len; i++) {
+            values[i] = (float) in.readDouble();
         }
 
         byte[] metadataBytes = in.readAllBytes();
@@ -0,0 +1,284 @@
+package fr.alexandredch.vectours.index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.hnsw.HNSWIndex;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public final class HNSWIndexTest {
+
+    @Mock
+    private SegmentStore segmentStore;
+
+    private HNSWIndex fixture;
+
+    @BeforeEach
+    public void setUp() {
+        fixture = new HNSWIndex(segmentStore, DistanceMetric.L2, 2);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(SegmentStore.SEGMENTS_DIR, HNSWIndex.HNSW_INDEX_FILE_PREFIX + 2));
+    }
+
+    @Test
+    void canSearch_returns_false_if_empty() {
+        assertThat(fixture.canSearch()).isFalse();
+        assertThat(fixture.search(new float[] {1, 1}, 5)).isEmpty();
+    }
+
+    @Test
+    void search_returns_closest_vectors_sorted_by_distance() {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+
+        List<Vector> results = fixture.search(new float[] {500.2f, -500.2f}, 3);
+
+        assertThat(fixture.canSearch()).isTrue();
+        assertThat(results).extracting(Vector::id).containsExactly("dummy500", "dummy501", "dummy499");
+    }
+
+    @Test
+    void search_with_filter_returns_closest_accepted_vectors() {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+
+        List<Vector> results = fixture.search(new float[] {500.2f, -500.2f}, 3, 0, ordinal -> ordinal % 2 == 0);
+
+        assertThat(results).extracting(Vector::id).containsExactly("dummy500", "dummy502", "dummy498");
+    }
+
+    @Test
+    void search_with_selective_filter_returns_every_accepted_vector() {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+
+        List<Vector> results = fixture.search(new float[] {700, -700}, 10, 0, ordinal -> ordinal % 500 == 0);
+
+        assertThat(results).extracting(Vector::id).containsExactly("dummy500", "dummy1000", "dummy0", "dummy1500");
+    }
+
+    @Test
+    void insertVector_from_parallel_threads_links_every_vector() throws Exception {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> inserts = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            int first = thread;
+            inserts.add(executor.submit(() -> {
+                for (int i = first; i < vectors.size(); i += 4) {
+                    fixture.insertVector(vectors.get(i));
+                    fixture.search(vectors.get(i).values(), 1);
+                }
+            }));
+        }
+        for (Future<?> insert : inserts) {
+            insert.get();
+        }
+        executor.shutdown();
+        List<Vector> results = fixture.search(new float[] {1500.2f, -1500.2f}, 3);
+
+        assertThat(results).extracting(Vector::id).containsExactly("dummy1500", "dummy1501", "dummy1499");
+    }
+
+    @Test
+    void insertVectors_builds_graph_on_executor() {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        fixture.insertVectors(vectors, executor);
+        executor.shutdown();
+        List<Vector> results = fixture.search(new float[] {500.2f, -500.2f}, 3);
+
+        assertThat(fixture.buildProgress()).isEqualTo(1);
+        assertThat(results).extracting(Vector::id).containsExactly("dummy500", "dummy501", "dummy499");
+    }
+
+    @Test
+    void deleteVector_before_insertVector_skips_the_insert() {
+        List<Vector> vectors = getVectors(10);
+        stubOrdinals(vectors);
+
+        fixture.deleteVector(5);
+        vectors.forEach(fixture::insertVector);
+        List<Vector> results = fixture.search(new float[] {5, -5}, 2);
+
+        assertThat(results).extracting(Vector::id).containsExactlyInAnyOrder("dummy4", "dummy6");
+    }
+
+    @Test
+    void deleteVector_removes_vector_from_results() {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+
+        for (int ordinal = 400; ordinal < 600; ordinal++) {
+            fixture.deleteVector(ordinal);
+        }
+        List<Vector> results = fixture.search(new float[] {499.8f, -499.8f}, 2);
+
+        assertThat(results).extracting(Vector::id).containsExactly("dummy600", "dummy399");
+    }
+
+    @Test
+    void compact_renumbers_live_nodes_once_enough_are_deleted() {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+
+        fixture.deleteVector(1000);
+        assertThat(fixture.compact()).isFalse();
+
+        for (int ordinal = 400; ordinal < 600; ordinal++) {
+            fixture.deleteVector(ordinal);
+        }
+        assertThat(fixture.compact()).isTrue();
+        assertThat(fixture.compact()).isFalse();
+
+        assertThat(fixture.search(new float[] {499.8f, -499.8f}, 2))
+                .extracting(Vector::id)
+                .containsExactly("dummy600", "dummy399");
+        assertThat(fixture.search(new float[] {1500.2f, -1500.2f}, 2))
+                .extracting(Vector::id)
+                .containsExactly("dummy1500", "dummy1501");
+        // Inserted again after the renumbering
+        fixture.insertVector(vectors.get(1000));
+        assertThat(fixture.search(new float[] {1000.2f, -1000.2f}, 2))
+                .extracting(Vector::id)
+                .containsExactly("dummy1000", "dummy1001");
+    }
+
+    @Test
+    void initFromDisk_reloads_saved_graph() {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+        fixture.saveToDisk();
+
+        HNSWIndex reloaded = new HNSWIndex(segmentStore, DistanceMetric.L2, 2);
+        when(segmentStore.getAllVectors(2)).thenReturn(vectors);
+        reloaded.initFromDisk();
+
+        assertThat(reloaded.canSearch()).isTrue();
+        for (float query = 0; query < 2000; query += 99.7f) {
+            assertThat(reloaded.search(new float[] {query, -query}, 5))
+                    .containsExactlyElementsOf(fixture.search(new float[] {query, -query}, 5));
+        }
+    }
+
+    @Test
+    void initFromDisk_removes_vectors_deleted_after_the_save() {
+        List<Vector> vectors = getVectors(2000);
+        Set<Integer> deleted = new HashSet<>();
+        when(segmentStore.getOrdinal(anyString()))
+                .thenAnswer(invocation -> Integer.parseInt(invocation.<String>getArgument(0).substring(5)));
+        when(segmentStore.getVector(anyInt())).thenAnswer(invocation -> {
+            int ordinal = invocation.getArgument(0);
+            return deleted.contains(ordinal) ? null : vectors.get(ordinal);
+        });
+        vectors.forEach(fixture::insertVector);
+        fixture.saveToDisk();
+
+        for (int ordinal = 400; ordinal < 600; ordinal++) {
+            deleted.add(ordinal);
+        }
+        when(segmentStore.getAllVectors(2))
+                .thenReturn(vectors.stream()
+                        .filter(vector -> !deleted.contains(Integer.parseInt(vector.id().substring(5))))
+                        .toList());
+        HNSWIndex reloaded = new HNSWIndex(segmentStore, DistanceMetric.L2, 2);
+        reloaded.initFromDisk();
+
+        assertThat(reloaded.search(new float[] {499.8f, -499.8f}, 2))
+                .extracting(Vector::id)
+                .containsExactly("dummy600", "dummy399");
+    }
+
+    @Test
+    void initFromDisk_picks_an_entry_point_if_the_saved_one_is_missing() throws IOException {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+        fixture.saveToDisk();
+        // Entry node of the header
+        overwriteInt(6, -1);
+
+        HNSWIndex reloaded = new HNSWIndex(segmentStore, DistanceMetric.L2, 2);
+        when(segmentStore.getAllVectors(2)).thenReturn(vectors);
+        reloaded.initFromDisk();
+
+        assertThat(reloaded.canSearch()).isTrue();
+        assertThat(reloaded.search(new float[] {1500.2f, -1500.2f}, 2))
+                .extracting(Vector::id)
+                .containsExactly("dummy1500", "dummy1501");
+    }
+
+    @Test
+    void initFromDisk_rebuilds_if_a_neighbor_is_out_of_range() throws IOException {
+        List<Vector> vectors = getVectors(2000);
+        stubOrdinals(vectors);
+        vectors.forEach(fixture::insertVector);
+        fixture.saveToDisk();
+        // First neighbor of node 0, after the header and the ordinals
+        overwriteInt(8 + vectors.size() + 1, 1_000_000);
+
+        HNSWIndex reloaded = new HNSWIndex(segmentStore, DistanceMetric.L2, 2);
+        when(segmentStore.getAllVectors(2)).thenReturn(vectors);
+        reloaded.initFromDisk();
+
+        assertThat(reloaded.search(new float[] {1500.2f, -1500.2f}, 2))
+                .extracting(Vector::id)
+                .containsExactly("dummy1500", "dummy1501");
+    }
+
+    private static void overwriteInt(int index, int value) throws IOException {
+        Path path = Path.of(SegmentStore.SEGMENTS_DIR, HNSWIndex.HNSW_INDEX_FILE_PREFIX + 2);
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(index * Integer.BYTES, value);
+        Files.write(path, bytes);
+    }
+
+    // Vector "dummy<i>" has ordinal i and is the i-th of the list
+    private void stubOrdinals(List<Vector> vectors) {
+        when(segmentStore.getOrdinal(anyString()))
+                .thenAnswer(invocation -> Integer.parseInt(invocation.<String>getArgument(0).substring(5)));
+        when(segmentStore.getVector(anyInt())).thenAnswer(invocation -> vectors.get(invocation.getArgument(0)));
+    }
+
+    private List<Vector> getVectors(int count) {
+        List<Vector> vectors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            vectors.add(new Vector("dummy" + i, new float[] {i, -i}, null));
+        }
+        return vectors;
+    }
+}
@@ -5,9 +5,17 @@ import static org.mockito.Mockito.*;
 
 import fr.alexandredch.vectours.data.Vector;
 import fr.alexandredch.vectours.index.ivf.DefaultIVFIndex;
+import fr.alexandredch.vectours.math.Cluster;
+import fr.alexandredch.vectours.math.DistanceMetric;
+import fr.alexandredch.vectours.store.StoreConfiguration;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -24,17 +32,25 @@ public final class IVFIndexTest {
 
     @BeforeEach
     public void setUp() {
-        fixture = new DefaultIVFIndex(segmentStore);
+        fixture = new DefaultIVFIndex(segmentStore, 1);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(SegmentStore.SEGMENTS_DIR, DefaultIVFIndex.IVF_INDEX_FILE_PREFIX + 1));
     }
 
     @Test
     void insertVector_adds_to_existing_cluster_if_index_is_built() {
-        when(segmentStore.getTotalVectorCount()).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
-        when(segmentStore.getAllVectors()).thenReturn(getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 3);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1))
+                .thenReturn(vectors.subList(0, DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
+        stubOrdinals(vectors);
 
         Vector triggerVector = new Vector(
                 "dummy" + (DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1),
-                new double[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1},
+                new float[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1},
                 null);
         // This will trigger the index building
         fixture.insertVector(triggerVector);
@@ -43,12 +59,8 @@ public final class IVFIndexTest {
                 .map(vectorCluster -> vectorCluster.getData().size())
                 .reduce(0, Integer::sum);
 
-        Vector lastVector = new Vector(
-                "dummy" + (DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 2),
-                new double[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1},
-                null);
         // Index is built,
-        fixture.insertVector(lastVector);
+        fixture.insertVector(vectors.getLast());
 
         int vectorsInNewCluster = fixture.getClusters().stream()
                 .map(vectorCluster -> vectorCluster.getData().size())
@@ -58,11 +70,11 @@ public final class IVFIndexTest {
 
     @Test
     void insertVector_does_nothing_if_index_is_not_built_and_not_enough_vectors() {
-        when(segmentStore.getTotalVectorCount()).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX - 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX - 1);
 
         Vector triggerVector = new Vector(
                 "dummy" + (DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1),
-                new double[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1},
+                new float[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1},
                 null);
         // This will NOT trigger the index building
         fixture.insertVector(triggerVector);
@@ -72,12 +84,12 @@ public final class IVFIndexTest {
 
     @Test
     void insertVector_creates_index_if_not_built_and_enough_vectors() {
-        when(segmentStore.getTotalVectorCount()).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
-        when(segmentStore.getAllVectors()).thenReturn(getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
 
         Vector triggerVector = new Vector(
                 "dummy" + (DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1),
-                new double[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1},
+                new float[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1},
                 null);
         // This will NOT trigger the index building
         fixture.insertVector(triggerVector);
@@ -92,37 +104,280 @@ public final class IVFIndexTest {
 
     @Test
     void canSearch_returns_true_if_index_is_built() {
-        when(segmentStore.getTotalVectorCount()).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
-        when(segmentStore.getAllVectors()).thenReturn(getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
-        fixture.insertVector(new Vector("dummy", new double[] {1}, null));
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
+        fixture.insertVector(new Vector("dummy", new float[] {1}, null));
 
         assertThat(fixture.canSearch()).isTrue();
     }
 
     @Test
     void search_returns_closest_vectors() {
-        when(segmentStore.getTotalVectorCount()).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
-        when(segmentStore.getAllVectors()).thenReturn(getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
-        fixture.insertVector(new Vector("dummy", new double[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1}, null));
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(vectors);
+        fixture.insertVector(new Vector("dummy", new float[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1}, null));
 
-        List<Vector> results = fixture.search(new double[] {1}, 2);
+        List<Vector> results = fixture.search(new float[] {1}, 2, 1);
 
         assertThat(results).hasSize(2);
         assertThat(results.get(0).id()).isEqualTo("dummy1");
         assertThat(results.get(1).id()).isEqualTo("dummy0");
     }
 
+    @Test
+    void search_returns_topK_vectors_independently_of_nprobe() {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(vectors);
+        fixture.insertVector(new Vector("dummy", new float[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1}, null));
+
+        List<Vector> onePerProbe = fixture.search(new float[] {5000}, 1, 4);
+        List<Vector> manyFromOneProbe = fixture.search(new float[] {5000}, 100, 1);
+
+        assertThat(onePerProbe).extracting(Vector::id).containsExactly("dummy5000");
+        assertThat(manyFromOneProbe).hasSize(100);
+        assertThat(manyFromOneProbe.getFirst().id()).isEqualTo("dummy5000");
+        for (int i = 1; i < manyFromOneProbe.size(); i++) {
+            assertThat(Math.abs(manyFromOneProbe.get(i).values()[0] - 5000))
+                    .isGreaterThanOrEqualTo(Math.abs(manyFromOneProbe.get(i - 1).values()[0] - 5000));
+        }
+    }
+
+    @Test
+    void search_probes_more_clusters_when_the_filter_accepts_few_vectors() {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(vectors);
+        fixture.insertVector(new Vector("dummy", new float[] {DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1}, null));
+
+        List<Vector> results = fixture.search(new float[] {5000}, 10, 1, ordinal -> ordinal % 100 == 0);
+
+        // Neighbors at the same distance on both sides of the query may come in any order
+        assertThat(results).hasSize(10).allMatch(vector -> vector.values()[0] % 100 == 0);
+        assertThat(results.getFirst().id()).isEqualTo("dummy5000");
+        assertThat(results.getLast().values()[0]).isIn(4500f, 5500f);
+    }
+
+    @Test
+    void maintain_does_nothing_right_after_training() {
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1));
+        fixture.insertVector(new Vector("dummy", new float[] {1}, null));
+
+        assertThat(fixture.maintain(Runnable::run)).isFalse();
+    }
+
+    @Test
+    void maintain_retrains_skewed_clusters() {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        List<Vector> allVectors = new ArrayList<>(vectors);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(allVectors);
+        fixture.insertVector(new Vector("dummy", new float[] {1}, null));
+        List<Cluster<Vector>> trainedClusters = fixture.getClusters();
+
+        // Pile new vectors into the first cluster
+        for (int i = 0; i < 5000; i++) {
+            Vector vector = new Vector("dummy" + allVectors.size(), new float[] {i / 50f}, null);
+            allVectors.add(vector);
+            fixture.insertVector(vector);
+        }
+        when(segmentStore.getAllVectors(1)).thenReturn(allVectors);
+
+        assertThat(fixture.maintain(Runnable::run)).isTrue();
+        assertThat(fixture.getClusters()).isNotSameAs(trainedClusters);
+        assertThat(fixture.getClusters().stream()
+                        .mapToInt(cluster -> cluster.getData().size())
+                        .sum())
+                .isEqualTo(allVectors.size());
+        assertThat(fixture.maintain(Runnable::run)).isFalse();
+    }
+
+    @Test
+    void maintain_does_not_retrain_inner_product_clusters_on_vectors_like_the_trained_ones() {
+        fixture = new DefaultIVFIndex(
+                segmentStore,
+                new StoreConfiguration.Builder()
+                        .distanceMetric(DistanceMetric.INNER_PRODUCT)
+                        .build(),
+                1);
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        List<Vector> allVectors = new ArrayList<>(vectors);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(allVectors);
+        fixture.insertVector(new Vector("dummy", new float[] {1}, null));
+
+        // Spread over the trained vectors, they would all go to the largest centroid if assigned by inner product
+        for (int i = 0; i < 2000; i++) {
+            Vector vector = new Vector("dummy" + allVectors.size(), new float[] {i * 5 + 0.5f}, null);
+            allVectors.add(vector);
+            fixture.insertVector(vector);
+        }
+
+        assertThat(fixture.maintain(Runnable::run)).isFalse();
+        assertThat(fixture.getClusters().stream()
+                        .mapToInt(cluster -> cluster.getData().size())
+                        .max()
+                        .orElseThrow())
+                .isLessThan(2000);
+    }
+
+    @Test
+    void maintain_drops_vectors_deleted_while_retraining() {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        List<Vector> allVectors = new ArrayList<>(vectors);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(allVectors);
+        fixture.insertVector(new Vector("dummy", new float[] {1}, null));
+        for (int i = 0; i < 5000; i++) {
+            Vector vector = new Vector("dummy" + allVectors.size(), new float[] {i / 50f}, null);
+            allVectors.add(vector);
+            fixture.insertVector(vector);
+        }
+        when(segmentStore.getAllVectors(1)).thenReturn(allVectors);
+
+        // The index thread reads the vectors to retrain on, then deletes one while the clusters are trained
+        assertThat(fixture.maintain(command -> {
+                    command.run();
+                    fixture.deleteVector(3);
+                }))
+                .isTrue();
+
+        assertThat(fixture.getClusters().stream()
+                        .mapToInt(cluster -> cluster.getData().size())
+                        .sum())
+                .isEqualTo(allVectors.size() - 1);
+        assertThat(fixture.search(new float[] {3}, 3, 1)).extracting(Vector::id).doesNotContain("dummy3");
+    }
+
+    @Test
+    void deleteVector_hides_vector_from_search() {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(vectors);
+        fixture.insertVector(vectors.getLast());
+
+        fixture.deleteVector(1);
+
+        assertThat(fixture.search(new float[] {1}, 2, 1))
+                .extracting(Vector::id)
+                .doesNotContain("dummy1")
+                .hasSize(2);
+    }
+
+    @Test
+    void maintain_purges_deleted_vectors() {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(vectors);
+        fixture.insertVector(vectors.getLast());
+
+        int deleted = 0;
+        for (int ordinal = 0; ordinal < vectors.size(); ordinal += 5) {
+            fixture.deleteVector(ordinal);
+            deleted++;
+        }
+
+        assertThat(fixture.maintain(Runnable::run)).isTrue();
+        assertThat(fixture.getClusters().stream()
+                        .mapToInt(cluster -> cluster.getData().size())
+                        .sum())
+                .isEqualTo(vectors.size() - deleted);
+        assertThat(fixture.maintain(Runnable::run)).isFalse();
+    }
+
+    @Test
+    void initFromDisk_reloads_saved_clusters() {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(vectors);
+        fixture.insertVector(vectors.getLast());
+        fixture.saveToDisk();
+
+        DefaultIVFIndex reloaded = new DefaultIVFIndex(segmentStore, 1);
+        reloaded.initFromDisk();
+
+        assertThat(reloaded.canSearch()).isTrue();
+        assertThat(reloaded.getClusters()).containsExactlyElementsOf(fixture.getClusters());
+        for (int c = 0; c < fixture.getClusters().size(); c++) {
+            assertThat(reloaded.getClusters().get(c).getData())
+                    .containsExactlyElementsOf(fixture.getClusters().get(c).getData());
+        }
+        assertThat(reloaded.search(new float[] {1}, 2, 1))
+                .extracting(Vector::id)
+                .containsExactly("dummy1", "dummy0");
+    }
+
+    @Test
+    void initFromDisk_retrains_if_file_is_truncated() throws IOException {
+        List<Vector> vectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(vectors);
+        fixture.insertVector(vectors.getLast());
+        fixture.saveToDisk();
+        Path path = Path.of(SegmentStore.SEGMENTS_DIR, DefaultIVFIndex.IVF_INDEX_FILE_PREFIX + 1);
+        byte[] saved = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(saved, saved.length / 2));
+
+        DefaultIVFIndex reloaded = new DefaultIVFIndex(segmentStore, 1);
+        reloaded.initFromDisk();
+
+        assertThat(reloaded.canSearch()).isTrue();
+        assertThat(reloaded.search(new float[] {1}, 2, 1))
+                .extracting(Vector::id)
+                .containsExactly("dummy1", "dummy0");
+    }
+
+    @Test
+    void initFromDisk_adds_vectors_inserted_after_the_save() {
+        // The last 10 vectors are replayed from the WAL on restart
+        List<Vector> allVectors = getVectors(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 11);
+        List<Vector> vectors = allVectors.subList(0, DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getVectorCount(1)).thenReturn(DefaultIVFIndex.MIN_VECTORS_FOR_IVF_INDEX + 1);
+        when(segmentStore.getAllVectors(1)).thenReturn(vectors);
+        stubOrdinals(allVectors);
+        fixture.insertVector(vectors.getLast());
+        fixture.saveToDisk();
+
+        when(segmentStore.getAllVectors(1)).thenReturn(allVectors);
+        DefaultIVFIndex reloaded = new DefaultIVFIndex(segmentStore, 1);
+        reloaded.initFromDisk();
+
+        assertThat(reloaded.getClusters().stream()
+                        .mapToInt(cluster -> cluster.getData().size())
+                        .sum())
+                .isEqualTo(allVectors.size());
+    }
+
     @Test
     void search_returns_empty_list_if_no_index() {
-        List<Vector> results = fixture.search(new double[] {1}, 2);
+        List<Vector> results = fixture.search(new float[] {1}, 2, 1);
 
         assertThat(results).isEmpty();
     }
 
+    // Vector "dummy<i>" has ordinal i and is the i-th of the list
+    private void stubOrdinals(List<Vector> vectors) {
+        when(segmentStore.getOrdinal(anyString()))
+                .thenAnswer(invocation -> Integer.parseInt(invocation.<String>getArgument(0).substring(5)));
+        when(segmentStore.getVector(anyInt())).thenAnswer(invocation -> vectors.get(invocation.getArgument(0)));
+    }
+
     private List<Vector> getVectors(int count) {
         List<Vector> vectors = new ArrayList<>();
         for (int i = 0; i < count; i++) {
-            vectors.add(new Vector("dummy" + i, new double[] {i}, null));
+            vectors.add(new Vector("dummy" + i, new float[] {i}, null));
         }
         return vectors;
     }
@@ -0,0 +1,181 @@
+package fr.alexandredch.vectours.index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.alexandredch.vectours.data.Metadata;
+import fr.alexandredch.vectours.data.SearchResult;
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.ivfpq.IVFPQIndex;
+import fr.alexandredch.vectours.store.StoreConfiguration;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public final class IVFPQIndexTest {
+
+    @Mock
+    private SegmentStore segmentStore;
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(SegmentStore.SEGMENTS_DIR, IVFPQIndex.IVF_PQ_INDEX_FILE_PREFIX + 2));
+    }
+
+    @Test
+    void canSearch_returns_false_if_not_enough_vectors() {
+        when(segmentStore.getVectorCount(2)).thenReturn(IVFPQIndex.MIN_VECTORS_FOR_IVF_PQ_INDEX - 1);
+
+        IVFPQIndex fixture = buildFixture();
+        fixture.buildLists();
+
+        assertThat(fixture.canSearch()).isFalse();
+        assertThat(fixture.search(new float[] {1, 1}, 5, 1)).isEmpty();
+    }
+
+    @Test
+    void search_returns_topK_closest_vectors_sorted_by_distance() {
+        IVFPQIndex fixture = buildFixture();
+        List<SearchResult> results = fixture.search(new float[] {5000, -5000}, 5, 2);
+
+        assertThat(fixture.canSearch()).isTrue();
+        assertThat(results).hasSize(5);
+        assertThat(results).extracting(SearchResult::id).contains("dummy5000");
+        for (int i = 1; i < results.size(); i++) {
+            assertThat(results.get(i).distance()).isGreaterThanOrEqualTo(results.get(i - 1).distance());
+        }
+    }
+
+    @Test
+    void search_returns_metadata_of_vectors() throws IOException {
+        IVFPQIndex fixture = buildFixture();
+        Metadata metadata = new Metadata(new ObjectMapper().readTree("{\"category\": \"a\"}"));
+        when(segmentStore.getVector(5000)).thenReturn(new Vector("dummy5000", new float[] {5000, -5000}, metadata));
+
+        List<SearchResult> results = fixture.search(new float[] {5000, -5000}, 1, 1, ordinal -> ordinal == 5000);
+
+        assertThat(results).extracting(SearchResult::metadata).containsExactly(metadata);
+    }
+
+    @Test
+    void insertVector_adds_to_built_index() {
+        IVFPQIndex fixture = buildFixture();
+        Vector inserted = new Vector("dummy20000", new float[] {20000, -20000}, null);
+        when(segmentStore.getVector(20000)).thenReturn(inserted);
+
+        fixture.insertVector(inserted);
+        List<SearchResult> results = fixture.search(new float[] {20000, -20000}, 10, 1);
+
+        // Codes only approximate the vector, it may tie with the largest vectors of its list
+        assertThat(results).extracting(SearchResult::id).contains("dummy20000");
+    }
+
+    @Test
+    void vectors_inserted_while_training_are_encoded_when_lists_are_published() {
+        List<Runnable> trainings = new ArrayList<>();
+        stubVectors();
+        Vector inserted = new Vector("dummy20000", new float[] {20000, -20000}, null);
+        when(segmentStore.getVector(20000)).thenReturn(inserted);
+        IVFPQIndex fixture = new IVFPQIndex(segmentStore, new StoreConfiguration.Builder().build(), 2, trainings::add);
+
+        fixture.initFromDisk();
+        fixture.insertVector(inserted);
+        fixture.deleteVector(5000);
+
+        assertThat(fixture.canSearch()).isFalse();
+        assertThat(trainings).hasSize(1);
+
+        trainings.getFirst().run();
+
+        assertThat(fixture.canSearch()).isTrue();
+        assertThat(fixture.search(new float[] {20000, -20000}, 10, 1))
+                .extracting(SearchResult::id)
+                .contains("dummy20000");
+        assertThat(fixture.search(new float[] {5000, -5000}, 5, 2))
+                .extracting(SearchResult::id)
+                .doesNotContain("dummy5000");
+    }
+
+    @Test
+    void initFromDisk_reloads_saved_lists_instead_of_training() {
+        IVFPQIndex saved = buildFixture();
+        saved.saveToDisk();
+        List<Runnable> trainings = new ArrayList<>();
+
+        IVFPQIndex fixture = new IVFPQIndex(segmentStore, new StoreConfiguration.Builder().build(), 2, trainings::add);
+        fixture.initFromDisk();
+
+        assertThat(trainings).isEmpty();
+        assertThat(fixture.canSearch()).isTrue();
+        assertThat(fixture.search(new float[] {4000, -4000}, 5, 2))
+                .containsExactlyElementsOf(saved.search(new float[] {4000, -4000}, 5, 2));
+    }
+
+    @Test
+    void deleteVector_hides_vector_until_purged() {
+        IVFPQIndex fixture = buildFixture();
+
+        fixture.deleteVector(5000);
+
+        assertThat(fixture.search(new float[] {5000, -5000}, 5, 2))
+                .extracting(SearchResult::id)
+                .hasSize(5)
+                .doesNotContain("dummy5000");
+        assertThat(fixture.purge()).isFalse();
+    }
+
+    @Test
+    void purge_removes_deleted_vectors_once_they_are_significant() {
+        IVFPQIndex fixture = buildFixture();
+
+        for (int ordinal = 0; ordinal <= IVFPQIndex.MIN_VECTORS_FOR_IVF_PQ_INDEX; ordinal += 5) {
+            fixture.deleteVector(ordinal);
+        }
+
+        assertThat(fixture.purge()).isTrue();
+        assertThat(fixture.purge()).isFalse();
+        assertThat(fixture.search(new float[] {5000, -5000}, 5, 2))
+                .extracting(SearchResult::id)
+                .doesNotContain("dummy5000");
+    }
+
+    private IVFPQIndex buildFixture() {
+        stubVectors();
+        IVFPQIndex fixture = new IVFPQIndex(segmentStore, new StoreConfiguration.Builder().build(), 2);
+        fixture.buildLists();
+        return fixture;
+    }
+
+    private void stubVectors() {
+        List<Vector> vectors = getVectors(IVFPQIndex.MIN_VECTORS_FOR_IVF_PQ_INDEX + 1);
+        when(segmentStore.getVectorCount(2)).thenReturn(vectors.size());
+        when(segmentStore.getAllVectors(2)).thenReturn(vectors);
+        // Vector "dummy<i>" has ordinal i
+        when(segmentStore.getOrdinal(anyString()))
+                .thenAnswer(invocation -> Integer.parseInt(invocation.<String>getArgument(0).substring(5)));
+        lenient()
+                .when(segmentStore.getVector(anyInt()))
+                .thenAnswer(invocation -> {
+                    int ordinal = invocation.getArgument(0);
+                    return ordinal < vectors.size() ? vectors.get(ordinal) : null;
+                });
+    }
+
+    private List<Vector> getVectors(int count) {
+        List<Vector> vectors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            vectors.add(new Vector("dummy" + i, new float[] {i, -i}, null));
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,83 @@
+package fr.alexandredch.vectours.index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.hnsw.HNSWIndex;
+import fr.alexandredch.vectours.store.StoreConfiguration;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public final class IndexRegistryTest {
+
+    @Mock
+    private SegmentStore segmentStore;
+
+    private IndexRegistry fixture;
+
+    @BeforeEach
+    public void setUp() {
+        fixture = new IndexRegistry(segmentStore, new StoreConfiguration.Builder().build());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (int dimension : new int[] {2, 3}) {
+            Path path = Path.of(SegmentStore.SEGMENTS_DIR, HNSWIndex.HNSW_INDEX_FILE_PREFIX + dimension);
+            Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.deleteIfExists(temporaryPath.resolve("blocked"));
+            Files.deleteIfExists(temporaryPath);
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void initFromDisk_creates_indexes_of_stored_dimensions() {
+        when(segmentStore.getDimensions()).thenReturn(Set.of(2, 8));
+
+        fixture.initFromDisk();
+
+        assertThat(fixture.getAll())
+                .extracting(IndexRegistry.Indexes::dimension)
+                .containsExactlyInAnyOrder(2, 8);
+    }
+
+    @Test
+    void insertVector_creates_indexes_of_new_dimensions() {
+        fixture.insertVector(new Vector("2d", new float[] {1, 2}, null));
+        fixture.insertVector(new Vector("3d", new float[] {1, 2, 3}, null));
+        fixture.insertVector(new Vector("other2d", new float[] {3, 4}, null));
+
+        assertThat(fixture.getAll()).hasSize(2);
+        assertThat(fixture.get(2).dimension()).isEqualTo(2);
+        assertThat(fixture.get(3).dimension()).isEqualTo(3);
+        assertThat(fixture.get(4)).isNull();
+    }
+
+    @Test
+    void saveToDisk_saves_the_other_indexes_if_one_fails() throws IOException {
+        fixture.insertVector(new Vector("2d", new float[] {1, 2}, null));
+        fixture.insertVector(new Vector("3d", new float[] {1, 2, 3}, null));
+        fixture.insertVector(new Vector("other2d", new float[] {3, 4}, null));
+        fixture.insertVector(new Vector("other3d", new float[] {3, 4, 5}, null));
+        // The temporary file of the HNSW index of dimension 2 cannot be written
+        Files.createDirectories(
+                Path.of(SegmentStore.SEGMENTS_DIR, HNSWIndex.HNSW_INDEX_FILE_PREFIX + 2 + ".tmp", "blocked"));
+
+        fixture.saveToDisk();
+
+        assertThat(Path.of(SegmentStore.SEGMENTS_DIR, HNSWIndex.HNSW_INDEX_FILE_PREFIX + 2)).doesNotExist();
+        assertThat(Path.of(SegmentStore.SEGMENTS_DIR, HNSWIndex.HNSW_INDEX_FILE_PREFIX + 3)).exists();
+    }
+}
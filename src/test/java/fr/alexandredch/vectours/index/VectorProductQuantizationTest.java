@@ -0,0 +1,164 @@
+package fr.alexandredch.vectours.index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+import fr.alexandredch.vectours.data.SearchResult;
+import fr.alexandredch.vectours.data.Vector;
+import fr.alexandredch.vectours.index.pq.VectorProductQuantization;
+import fr.alexandredch.vectours.index.pq.VectorProductQuantization.TrainingState;
+import fr.alexandredch.vectours.store.StoreConfiguration;
+import fr.alexandredch.vectours.store.segment.SegmentStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public final class VectorProductQuantizationTest {
+
+    private static final int VECTOR_COUNT = VectorProductQuantization.MIN_VECTORS_FOR_PRODUCT_QUANTIZATION + 1;
+
+    @Mock
+    private SegmentStore segmentStore;
+
+    @Test
+    void canSearch_returns_false_if_not_enough_vectors() {
+        when(segmentStore.getVectorCount(2)).thenReturn(VECTOR_COUNT - 2);
+
+        VectorProductQuantization fixture = new VectorProductQuantization(segmentStore, 2);
+        fixture.buildSubspaces();
+
+        assertThat(fixture.canSearch()).isFalse();
+    }
+
+    @Test
+    void approxSearch_returns_topK_closest_vectors_sorted_by_distance() {
+        VectorProductQuantization fixture = buildFixture();
+
+        List<SearchResult> results = fixture.approxSearch(new float[] {5000, -5000}, 5);
+
+        assertThat(results).hasSize(5);
+        // Codes only approximate the vectors, the results are among the neighbors of the query
+        assertThat(results).extracting(this::ordinal).allMatch(ordinal -> Math.abs(ordinal - 5000) < 200);
+        for (int i = 1; i < results.size(); i++) {
+            assertThat(results.get(i).distance()).isGreaterThanOrEqualTo(results.get(i - 1).distance());
+        }
+    }
+
+    @Test
+    void approxSearch_only_scores_accepted_ordinals() {
+        VectorProductQuantization fixture = buildFixture();
+
+        List<SearchResult> results = fixture.approxSearch(new float[] {5000, -5000}, 5, ordinal -> ordinal > 9000);
+
+        assertThat(results).hasSize(5).extracting(this::ordinal).allMatch(ordinal -> ordinal > 9000);
+    }
+
+    @Test
+    void insertVector_and_deleteVector_update_built_index() {
+        VectorProductQuantization fixture = buildFixture();
+        Vector inserted = new Vector("dummy20000", new float[] {20000, -20000}, null);
+        when(segmentStore.getVector(20000)).thenReturn(inserted);
+
+        fixture.insertVector(inserted);
+        // Codes of the inserted vector tie with the largest vectors, only score its ordinal
+        assertThat(fixture.approxSearch(new float[] {20000, -20000}, 1, ordinal -> ordinal == 20000))
+                .extracting(SearchResult::id)
+                .containsExactly("dummy20000");
+
+        fixture.deleteVector(20000);
+        assertThat(fixture.approxSearch(new float[] {20000, -20000}, 1, ordinal -> ordinal == 20000)).isEmpty();
+    }
+
+    @Test
+    void insertVector_encodes_vectors_with_large_ordinals() {
+        VectorProductQuantization fixture = buildFixture();
+        int ordinal = 1_000_000_000;
+        Vector inserted = new Vector("dummy" + ordinal, new float[] {20000, -20000}, null);
+        when(segmentStore.getVector(ordinal)).thenReturn(inserted);
+
+        fixture.insertVector(inserted);
+
+        assertThat(fixture.approxSearch(new float[] {20000, -20000}, 1, candidate -> candidate == ordinal))
+                .extracting(SearchResult::id)
+                .containsExactly(inserted.id());
+    }
+
+    @Test
+    void vectors_inserted_while_training_are_encoded_when_codebooks_are_published() {
+        List<Runnable> trainings = new ArrayList<>();
+        stubVectors();
+        Vector inserted = new Vector("dummy20000", new float[] {20000, -20000}, null);
+        when(segmentStore.getVector(20000)).thenReturn(inserted);
+        VectorProductQuantization fixture = new VectorProductQuantization(
+                segmentStore, 2, new StoreConfiguration.Builder().build(), ForkJoinPool.commonPool(), trainings::add);
+
+        fixture.buildSubspaces();
+        fixture.insertVector(inserted);
+
+        assertThat(fixture.trainingState()).isEqualTo(TrainingState.TRAINING);
+        assertThat(fixture.canSearch()).isFalse();
+        assertThat(trainings).hasSize(1);
+
+        trainings.getFirst().run();
+
+        assertThat(fixture.trainingState()).isEqualTo(TrainingState.TRAINED);
+        assertThat(fixture.approxSearch(new float[] {20000, -20000}, 1, ordinal -> ordinal == 20000))
+                .extracting(SearchResult::id)
+                .containsExactly("dummy20000");
+    }
+
+    @Test
+    void vectors_deleted_while_training_are_not_encoded() {
+        List<Runnable> trainings = new ArrayList<>();
+        stubVectors();
+        VectorProductQuantization fixture = new VectorProductQuantization(
+                segmentStore, 2, new StoreConfiguration.Builder().build(), ForkJoinPool.commonPool(), trainings::add);
+
+        fixture.buildSubspaces();
+        fixture.deleteVector(5000);
+        trainings.getFirst().run();
+
+        assertThat(fixture.trainingState()).isEqualTo(TrainingState.TRAINED);
+        assertThat(fixture.approxSearch(new float[] {5000, -5000}, 1, ordinal -> ordinal == 5000)).isEmpty();
+    }
+
+    private VectorProductQuantization buildFixture() {
+        stubVectors();
+        VectorProductQuantization fixture = new VectorProductQuantization(segmentStore, 2);
+        fixture.buildSubspaces();
+        assertThat(fixture.canSearch()).isTrue();
+        return fixture;
+    }
+
+    private void stubVectors() {
+        List<Vector> vectors = getVectors(VECTOR_COUNT);
+        when(segmentStore.getVectorCount(2)).thenReturn(VECTOR_COUNT);
+        when(segmentStore.getAllVectors(2)).thenReturn(vectors);
+        // Vector "dummy<i>" has ordinal i
+        when(segmentStore.getOrdinal(anyString()))
+                .thenAnswer(invocation -> Integer.parseInt(invocation.<String>getArgument(0).substring(5)));
+        lenient()
+                .when(segmentStore.getVector(anyInt()))
+                .thenAnswer(invocation -> {
+                    int ordinal = invocation.getArgument(0);
+                    return ordinal < vectors.size() ? vectors.get(ordinal) : null;
+                });
+    }
+
+    private int ordinal(SearchResult result) {
+        return Integer.parseInt(result.id().substring(5));
+    }
+
+    private List<Vector> getVectors(int count) {
+        List<Vector> vectors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            vectors.add(new Vector("dummy" + i, new float[] {i, -i}, null));
+        }
+        return vectors;
+    }
+}
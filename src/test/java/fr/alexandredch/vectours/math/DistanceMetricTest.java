@@ -0,0 +1,56 @@
+package fr.alexandredch.vectours.math;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class DistanceMetricTest {
+
+    @Test
+    void cosine_distance_of_prepared_vectors_matches_cosine_kernel() {
+        float[] values1 = {1f, 2f, 3f};
+        float[] values2 = {-2f, 0.5f, 4f};
+
+        float distance = DistanceMetric.COSINE.distance(
+                DistanceMetric.COSINE.prepare(values1), DistanceMetric.COSINE.prepare(values2));
+
+        assertThat(distance).isCloseTo(Vectors.cosineDistance(values1, values2), within(1e-6f));
+    }
+
+    @Test
+    void inner_product_ranks_larger_products_first() {
+        float[] query = {1f, 1f};
+
+        assertThat(DistanceMetric.INNER_PRODUCT.distance(query, new float[] {2f, 2f}))
+                .isLessThan(DistanceMetric.INNER_PRODUCT.distance(query, new float[] {1f, 1f}));
+    }
+
+    @ParameterizedTest
+    @EnumSource(DistanceMetric.class)
+    void combined_partial_distances_match_full_distance(DistanceMetric metric) {
+        float[] values1 = metric.prepare(new float[] {1f, 2f, 3f, 4f});
+        float[] values2 = metric.prepare(new float[] {4f, -3f, 2f, 1f});
+
+        float[] head1 = {values1[0], values1[1]};
+        float[] head2 = {values2[0], values2[1]};
+        float[] tail1 = {values1[2], values1[3]};
+        float[] tail2 = {values2[2], values2[3]};
+        float partialSum = metric.partialDistance(head1, head2) + metric.partialDistance(tail1, tail2);
+
+        assertThat(metric.combine(partialSum)).isCloseTo(metric.distance(values1, values2), within(1e-6f));
+    }
+
+    @ParameterizedTest
+    @EnumSource(DistanceMetric.class)
+    void distance_on_flat_array_rows_matches_full_distance(DistanceMetric metric) {
+        float[] values1 = metric.prepare(new float[] {1f, 2f, 3f});
+        float[] values2 = metric.prepare(new float[] {-2f, 0.5f, 4f});
+        float[] rows = new float[9];
+        System.arraycopy(values1, 0, rows, 3, 3);
+
+        assertThat(metric.distance(rows, 3, values2, 0, 3)).isCloseTo(metric.distance(values1, values2), within(1e-6f));
+    }
+}
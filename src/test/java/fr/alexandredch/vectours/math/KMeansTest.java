@@ -0,0 +1,152 @@
+package fr.alexandredch.vectours.math;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import fr.alexandredch.vectours.data.Vector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class KMeansTest {
+
+    private static final int DIMENSION = 4;
+
+    @Test
+    void fit_finds_well_separated_blobs() {
+        float[] points = blobs(3, 200, new Random(1));
+
+        KMeans.Result result = new KMeans.Builder().clusterCount(3).seed(1).build().fit(points, DIMENSION);
+
+        // Points of the same blob end up in the same cluster, and every blob has its own cluster
+        for (int blob = 0; blob < 3; blob++) {
+            int cluster = result.assignments()[blob * 200];
+            for (int i = blob * 200; i < (blob + 1) * 200; i++) {
+                assertThat(result.assignments()[i]).isEqualTo(cluster);
+            }
+        }
+        assertThat(result.assignments()[0])
+                .isNotEqualTo(result.assignments()[200])
+                .isNotEqualTo(result.assignments()[400]);
+        assertThat(result.assignments()[200]).isNotEqualTo(result.assignments()[400]);
+    }
+
+    @Test
+    void fit_is_deterministic_for_a_given_seed() {
+        float[] points = blobs(5, 100, new Random(2));
+
+        KMeans.Result first = new KMeans.Builder().clusterCount(5).seed(7).build().fit(points, DIMENSION);
+        KMeans.Result second = new KMeans.Builder().clusterCount(5).seed(7).build().fit(points, DIMENSION);
+
+        assertThat(second.assignments()).containsExactly(first.assignments());
+        assertThat(second.centroids()).containsExactly(first.centroids());
+    }
+
+    @Test
+    void fit_accelerated_gives_the_same_clusters_with_fewer_distances() {
+        float[] points = blobs(10, 300, new Random(6));
+
+        KMeans.Result lloyd = new KMeans.Builder()
+                .clusterCount(20)
+                .seed(6)
+                .accelerated(false)
+                .build()
+                .fit(points, DIMENSION);
+        KMeans.Result accelerated = new KMeans.Builder().clusterCount(20).seed(6).build().fit(points, DIMENSION);
+
+        assertThat(accelerated.assignments()).containsExactly(lloyd.assignments());
+        assertThat(accelerated.centroids()).containsExactly(lloyd.centroids());
+        assertThat(accelerated.iterations()).isEqualTo(lloyd.iterations());
+        assertThat(accelerated.distanceComputations()).isLessThan(lloyd.distanceComputations());
+    }
+
+    @Test
+    void fit_caps_cluster_count_to_point_count() {
+        float[] points = {0, 0, 0, 0, 1, 1, 1, 1};
+
+        KMeans.Result result = new KMeans.Builder().clusterCount(10).build().fit(points, DIMENSION);
+
+        assertThat(result.clusterCount()).isEqualTo(2);
+    }
+
+    @Test
+    void fit_vectors_puts_every_vector_in_a_cluster() {
+        float[] points = blobs(2, 50, new Random(3));
+        List<Vector> vectors = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            float[] values = new float[DIMENSION];
+            System.arraycopy(points, i * DIMENSION, values, 0, DIMENSION);
+            vectors.add(new Vector("vec" + i, values, null));
+        }
+
+        List<Cluster<Vector>> clusters =
+                new KMeans.Builder().clusterCount(2).seed(3).build().fit(vectors).clusters(vectors);
+
+        assertThat(clusters).hasSize(2);
+        assertThat(clusters.stream().mapToInt(cluster -> cluster.getData().size()).sum()).isEqualTo(100);
+    }
+
+    @Test
+    void fit_on_a_sample_assigns_every_point() {
+        float[] points = blobs(4, 500, new Random(4));
+
+        KMeans.Result full = new KMeans.Builder().clusterCount(4).seed(4).build().fit(points, DIMENSION);
+        KMeans.Result sampled = new KMeans.Builder()
+                .clusterCount(4)
+                .seed(4)
+                .trainingSampleSize(200)
+                .build()
+                .fit(points, DIMENSION);
+
+        assertThat(sampled.trainingPointCount()).isEqualTo(200);
+        assertThat(sampled.assignments()).hasSize(2000);
+        assertThat(sampled.quantizationError()).isCloseTo(full.quantizationError(), within(0.1));
+    }
+
+    @Test
+    void fit_with_mini_batches_finds_well_separated_blobs() {
+        float[] points = blobs(3, 500, new Random(5));
+
+        KMeans.Result full = new KMeans.Builder().clusterCount(3).seed(5).build().fit(points, DIMENSION);
+        KMeans.Result miniBatch = new KMeans.Builder()
+                .clusterCount(3)
+                .seed(5)
+                .miniBatchSize(64)
+                .maxIterations(20)
+                .build()
+                .fit(points, DIMENSION);
+
+        assertThat(miniBatch.quantizationError()).isCloseTo(full.quantizationError(), within(0.1));
+    }
+
+    @Test
+    void fit_with_mini_batches_stops_once_the_centroids_settle() {
+        float[] points = blobs(3, 500, new Random(5));
+
+        KMeans.Result full = new KMeans.Builder().clusterCount(3).seed(5).build().fit(points, DIMENSION);
+        KMeans.Result miniBatch = new KMeans.Builder()
+                .clusterCount(3)
+                .seed(5)
+                .miniBatchSize(64)
+                .maxIterations(1000)
+                .build()
+                .fit(points, DIMENSION);
+
+        assertThat(miniBatch.iterations()).isLessThan(1000);
+        assertThat(miniBatch.quantizationError()).isCloseTo(full.quantizationError(), within(0.1));
+    }
+
+    private static float[] blobs(int blobCount, int pointsPerBlob, Random random) {
+        float[] points = new float[blobCount * pointsPerBlob * DIMENSION];
+        for (int blob = 0; blob < blobCount; blob++) {
+            for (int i = 0; i < pointsPerBlob; i++) {
+                int offset = (blob * pointsPerBlob + i) * DIMENSION;
+                for (int d = 0; d < DIMENSION; d++) {
+                    points[offset + d] = blob * 100 + random.nextFloat();
+                }
+            }
+        }
+        return points;
+    }
+}
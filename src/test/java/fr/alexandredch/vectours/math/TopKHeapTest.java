@@ -0,0 +1,74 @@
+package fr.alexandredch.vectours.math;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class TopKHeapTest {
+
+    @Test
+    void keeps_the_smallest_distances() {
+        TopKHeap heap = new TopKHeap(3);
+        float[] distances = {5f, 1f, 4f, -2f, 3f, 0f};
+        for (int i = 0; i < distances.length; i++) {
+            heap.offer(i, distances[i]);
+        }
+
+        int[] sortedIds = Arrays.stream(heap.sortedIndexes()).map(heap::id).toArray();
+        assertThat(sortedIds).containsExactly(3, 5, 1);
+    }
+
+    @Test
+    void rejects_entries_worse_than_the_worst_kept_once_full() {
+        TopKHeap heap = new TopKHeap(2);
+        heap.offer(0, 1f);
+        heap.offer(1, 2f);
+
+        assertThat(heap.worstDistance()).isEqualTo(2f);
+        assertThat(heap.offer(2, 3f)).isFalse();
+        assertThat(heap.offer(3, 0.5f)).isTrue();
+        assertThat(heap.worstDistance()).isEqualTo(1f);
+    }
+
+    @Test
+    void clear_changes_the_capacity_of_a_reused_heap() {
+        TopKHeap heap = new TopKHeap(4);
+        for (int i = 0; i < 4; i++) {
+            heap.offer(i, i);
+        }
+
+        heap.clear(2);
+        heap.offer(10, 3f);
+        heap.offer(11, 1f);
+        heap.offer(12, 2f);
+        assertThat(heap.isFull()).isTrue();
+        assertThat(heap.worstDistance()).isEqualTo(2f);
+
+        heap.clear(8);
+        for (int i = 0; i < 8; i++) {
+            heap.offer(i, -i);
+        }
+        assertThat(heap.capacity()).isEqualTo(8);
+        assertThat(heap.size()).isEqualTo(8);
+    }
+
+    @Test
+    void sortedIndexes_matches_a_full_sort() {
+        Random random = new Random(7);
+        float[] distances = new float[1000];
+        TopKHeap heap = new TopKHeap(50);
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = random.nextFloat(-10, 10);
+            heap.offer(i, distances[i]);
+        }
+
+        float[] expected = distances.clone();
+        Arrays.sort(expected);
+        int[] sortedIndexes = heap.sortedIndexes();
+        for (int i = 0; i < sortedIndexes.length; i++) {
+            assertThat(heap.distance(sortedIndexes[i])).isEqualTo(expected[i]);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package fr.alexandredch.vectours.math;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class VectorsTest {
+
+    private final VectorKernel scalarKernel = new ScalarVectorKernel();
+    private final VectorKernel simdKernel = new SimdVectorKernel();
+
+    @Test
+    void squaredEuclidianDistance_returns_sum_of_squared_differences() {
+        assertThat(Vectors.squaredEuclidianDistance(new float[] {1, 2, 3}, new float[] {4, 6, 3})).isEqualTo(25f);
+    }
+
+    @Test
+    void dotProduct_returns_sum_of_products() {
+        assertThat(Vectors.dotProduct(new float[] {1, 2, 3}, new float[] {4, 5, 6})).isEqualTo(32f);
+    }
+
+    @Test
+    void cosineDistance_is_zero_for_collinear_vectors() {
+        assertThat(Vectors.cosineDistance(new float[] {1, 2, 3}, new float[] {2, 4, 6})).isCloseTo(0f, within(1e-6f));
+    }
+
+    @Test
+    void cosineDistance_is_one_for_zero_vector() {
+        assertThat(Vectors.cosineDistance(new float[] {0, 0}, new float[] {1, 1})).isEqualTo(1f);
+    }
+
+    @Test
+    void distances_throw_on_different_lengths() {
+        assertThatThrownBy(() -> Vectors.squaredEuclidianDistance(new float[] {1}, new float[] {1, 2}))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3, 8, 17, 128, 769})
+    void simd_kernel_matches_scalar_kernel(int dimension) {
+        Random random = new Random(dimension);
+        float[] values1 = randomValues(random, dimension);
+        float[] values2 = randomValues(random, dimension);
+
+        assertThat(simdKernel.squaredEuclidianDistance(values1, values2))
+                .isCloseTo(scalarKernel.squaredEuclidianDistance(values1, values2), within(1e-3f));
+        assertThat(simdKernel.dotProduct(values1, values2))
+                .isCloseTo(scalarKernel.dotProduct(values1, values2), within(1e-3f));
+        assertThat(simdKernel.cosineDistance(values1, values2))
+                .isCloseTo(scalarKernel.cosineDistance(values1, values2), within(1e-3f));
+    }
+
+    private static float[] randomValues(Random random, int dimension) {
+        float[] values = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            values[i] = random.nextFloat(-1, 1);
+        }
+        return values;
+    }
+}
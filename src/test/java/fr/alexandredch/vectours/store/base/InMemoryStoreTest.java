@@ -2,6 +2,7 @@ package fr.alexandredch.vectours.store.base;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import fr.alexandredch.vectours.data.SearchParameters;
 import fr.alexandredch.vectours.data.Vector;
 import fr.alexandredch.vectours.index.ivf.DefaultIVFIndex;
 import java.util.ArrayList;
@@ -19,13 +20,13 @@ import org.junit.jupiter.params.provider.MethodSource;
 class InMemoryStoreTest {
 
     private static final String VECTOR_ID_1 = "vec1";
-    private static final Vector VECTOR_1 = new Vector(VECTOR_ID_1, new double[] {1.0, 2.0, 3.0}, null);
+    private static final Vector VECTOR_1 = new Vector(VECTOR_ID_1, new float[] {1.0f, 2.0f, 3.0f}, null);
 
     private static final String VECTOR_ID_2 = "vec2";
-    private static final Vector VECTOR_2 = new Vector(VECTOR_ID_2, new double[] {4.0, 5.0, 6.0}, null);
+    private static final Vector VECTOR_2 = new Vector(VECTOR_ID_2, new float[] {4.0f, 5.0f, 6.0f}, null);
 
     private static final String VECTOR_ID_3 = "vec3";
-    private static final Vector VECTOR_3 = new Vector(VECTOR_ID_3, new double[] {1.0, 2.0, 3.5}, null);
+    private static final Vector VECTOR_3 = new Vector(VECTOR_ID_3, new float[] {1.0f, 2.0f, 3.5f}, null);
 
     private InMemoryStore fixture;
 
@@ -59,7 +60,7 @@ class InMemoryStoreTest {
     void search_all_vectors() {
         insertVectors(VECTOR_1, VECTOR_2);
 
-        var results = fixture.search(new double[] {1.0, 2.0, 3.1}, 2);
+        var results = fixture.search(new float[] {1.0f, 2.0f, 3.1f}, 2);
         assertEquals(2, results.size());
         assertEquals(VECTOR_ID_1, results.get(0).id());
         assertEquals(VECTOR_ID_2, results.get(1).id());
@@ -69,18 +70,18 @@ class InMemoryStoreTest {
     void search_single_nearest_vector() {
         insertVectors(VECTOR_1, VECTOR_2);
 
-        var results = fixture.search(new double[] {1.0, 2.0, 3.1}, 1);
+        var results = fixture.search(new float[] {1.0f, 2.0f, 3.1f}, 1);
         assertEquals(1, results.size());
         assertEquals(VECTOR_ID_1, results.getFirst().id());
     }
 
     @Test
     void search_multiple_vectors_with_same_distance() {
-        Vector vectorA = new Vector("vecA", new double[] {1.0, 1.0}, null);
-        Vector vectorB = new Vector("vecB", new double[] {1.0, -1.0}, null);
+        Vector vectorA = new Vector("vecA", new float[] {1.0f, 1.0f}, null);
+        Vector vectorB = new Vector("vecB", new float[] {1.0f, -1.0f}, null);
         insertVectors(vectorA, vectorB);
 
-        var results = fixture.search(new double[] {0.0, 0.0}, 2);
+        var results = fixture.search(new float[] {0.0f, 0.0f}, 2);
         assertEquals(2, results.size());
         assertTrue(results.stream().anyMatch(r -> r.id().equals("vecA")));
         assertTrue(results.stream().anyMatch(r -> r.id().equals("vecB")));
@@ -103,6 +104,21 @@ class InMemoryStoreTest {
         assertEquals(VECTOR_ID_3, results.get(1).id());
     }
 
+    @Test
+    void search_rejects_parameters_above_maximums() {
+        insertVectors(VECTOR_1, VECTOR_2);
+
+        assertThrows(IllegalArgumentException.class, () -> fixture.search(new SearchParameters.Builder()
+                .searchedVector(VECTOR_1.values())
+                .efSearch(SearchParameters.MAX_EF_SEARCH + 1)
+                .build()));
+        assertThrows(IllegalArgumentException.class, () -> fixture.search(new SearchParameters.Builder()
+                .searchedVector(VECTOR_1.values())
+                .nprobe(SearchParameters.MAX_NPROBE + 1)
+                .build()));
+        assertThrows(IllegalArgumentException.class, () -> fixture.search(VECTOR_1.values(), 0));
+    }
+
     @ParameterizedTest
     @MethodSource("provideVectors")
     void delete(String id, Vector vector) throws ExecutionException, InterruptedException {
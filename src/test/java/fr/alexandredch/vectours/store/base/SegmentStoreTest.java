@@ -2,15 +2,27 @@ package fr.alexandredch.vectours.store.base;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import fr.alexandredch.vectours.data.ElementType;
+import fr.alexandredch.vectours.data.Metadata;
+import fr.alexandredch.vectours.data.MetadataFilter;
 import fr.alexandredch.vectours.data.Vector;
 import fr.alexandredch.vectours.store.segment.Segment;
 import fr.alexandredch.vectours.store.segment.SegmentStore;
+import fr.alexandredch.vectours.store.segment.vector.SegmentVectorStore;
 import fr.alexandredch.vectours.store.wal.WriteAheadLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -21,11 +33,13 @@ import org.mockito.junit.jupiter.MockitoExtension;
 @ExtendWith(MockitoExtension.class)
 public final class SegmentStoreTest {
 
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     private static final String VECTOR_ID_1 = "vec1";
-    private static final Vector VECTOR_1 = new Vector(VECTOR_ID_1, new double[] {1.0, 2.0, 3.0}, null);
+    private static final Vector VECTOR_1 = new Vector(VECTOR_ID_1, new float[] {1.0f, 2.0f, 3.0f}, null);
 
     private static final String VECTOR_ID_2 = "vec2";
-    private static final Vector VECTOR_2 = new Vector(VECTOR_ID_2, new double[] {4.0, 5.0, 6.0}, null);
+    private static final Vector VECTOR_2 = new Vector(VECTOR_ID_2, new float[] {4.0f, 5.0f, 6.0f}, null);
 
     @Mock
     private WriteAheadLogger writeAheadLogger;
@@ -90,7 +104,7 @@ public final class SegmentStoreTest {
         fixture.loadFromDisk();
 
         for (int i = 0; i < Segment.MAX_SEGMENT_SIZE; i++) {
-            fixture.insertVector(new Vector("dummy" + i, new double[] {i}, null));
+            fixture.insertVector(new Vector("dummy" + i, new float[] {i}, null));
         }
 
         fixture.insertVector(VECTOR_1);
@@ -122,7 +136,7 @@ public final class SegmentStoreTest {
         fixture.loadFromDisk();
 
         for (int i = 0; i < Segment.MAX_SEGMENT_SIZE; i++) {
-            fixture.insertVector(new Vector("dummy" + i, new double[] {i}, null));
+            fixture.insertVector(new Vector("dummy" + i, new float[] {i}, null));
         }
         fixture.insertVector(VECTOR_1);
         fixture.insertVector(VECTOR_2);
@@ -133,6 +147,23 @@ public final class SegmentStoreTest {
         assertThat(fixture.getAllVectors()).contains(VECTOR_2);
     }
 
+    @Test
+    void insertVector_replacesVectorFromExistingSegment() {
+        fixture.loadFromDisk();
+
+        fixture.insertVector(VECTOR_1);
+        for (int i = 1; i < Segment.MAX_SEGMENT_SIZE; i++) {
+            fixture.insertVector(new Vector("dummy" + i, new float[] {i}, null));
+        }
+        Vector updated = new Vector(VECTOR_ID_1, new float[] {7.0f, 8.0f, 9.0f}, null);
+        int ordinal = fixture.insertVector(updated);
+
+        assertThat(fixture.getVectorById(VECTOR_ID_1)).isEqualTo(updated);
+        assertThat(fixture.getOrdinal(VECTOR_ID_1)).isEqualTo(ordinal);
+        assertThat(fixture.getAllVectors()).contains(updated).doesNotContain(VECTOR_1);
+        assertThat(fixture.getVectorCount(3)).isEqualTo(1);
+    }
+
     @Test
     void getVectorById_requiresInitialization() {
         assertThrows(IllegalStateException.class, () -> fixture.getVectorById(VECTOR_ID_1));
@@ -154,7 +185,7 @@ public final class SegmentStoreTest {
         fixture.loadFromDisk();
 
         for (int i = 0; i < Segment.MAX_SEGMENT_SIZE; i++) {
-            fixture.insertVector(new Vector("dummy" + i, new double[] {i}, null));
+            fixture.insertVector(new Vector("dummy" + i, new float[] {i}, null));
         }
         fixture.insertVector(VECTOR_1);
 
@@ -196,4 +227,174 @@ public final class SegmentStoreTest {
         assertThat(fixture.getAllVectors().getFirst()).isEqualTo(VECTOR_1);
         assertThat(fixture.getAllVectors()).containsExactly(VECTOR_1);
     }
+
+    @Test
+    void saveSegmentToDisk_roundTripsFloat16Values() {
+        SegmentStore float16Store = new SegmentStore(writeAheadLogger, ElementType.FLOAT16);
+        float16Store.loadFromDisk();
+
+        Vector vector = new Vector(VECTOR_ID_1, ElementType.FLOAT16.round(new float[] {1.1f, 2.2f, 3.3f}), null);
+        Segment segment = new Segment(0);
+        segment.insert(vector);
+
+        float16Store.saveSegmentToDisk(segment);
+        float16Store.loadFromDisk();
+
+        assertThat(float16Store.getAllVectors()).containsExactly(vector);
+    }
+
+    @Test
+    void saveSegmentToDisk_dropsVectorsOfDeadSlots() {
+        fixture.loadFromDisk();
+
+        Vector updated = new Vector(VECTOR_ID_1, new float[] {7.0f, 8.0f, 9.0f}, null);
+        Segment segment = new Segment(0);
+        segment.insert(VECTOR_1);
+        segment.insert(VECTOR_2);
+        segment.insert(updated);
+        segment.delete(VECTOR_ID_2);
+
+        fixture.saveSegmentToDisk(segment);
+        fixture.loadFromDisk();
+
+        assertThat(segment.getSlots()).containsExactly(null, null, updated);
+        assertThat(new SegmentVectorStore(ElementType.FLOAT32)
+                        .readSegmentVectorsFromDisk(
+                                Path.of(SegmentStore.SEGMENTS_DIR, SegmentStore.SEGMENT_FILE_PREFIX + 0)))
+                .containsExactly(null, null, updated);
+        assertThat(fixture.getOrdinal(VECTOR_ID_1)).isEqualTo(segment.ordinal(2));
+        assertThat(fixture.getAllVectors()).containsExactly(updated);
+    }
+
+    @Test
+    void getOrdinal_isStableAcrossReloads() {
+        fixture.loadFromDisk();
+
+        fixture.insertVector(VECTOR_1);
+        fixture.insertVector(VECTOR_2);
+        int replacedOrdinal = fixture.getOrdinal(VECTOR_ID_1);
+        Vector updated = new Vector(VECTOR_ID_1, new float[] {7.0f, 8.0f, 9.0f}, null);
+        fixture.insertVector(updated);
+        int ordinal = fixture.getOrdinal(VECTOR_ID_2);
+
+        fixture.getSegments().forEach(fixture::saveSegmentToDisk);
+        // The saved segment is closed on restart
+        int savedSegmentId = fixture.getSegments().getLast().getId();
+        when(writeAheadLogger.getLatestSegmentIdIncludingUnclosed()).thenReturn(savedSegmentId);
+        SegmentStore reloaded = new SegmentStore(writeAheadLogger);
+        reloaded.loadFromDisk();
+
+        assertThat(reloaded.getOrdinal(VECTOR_ID_2)).isEqualTo(ordinal);
+        assertThat(reloaded.getVector(ordinal)).isEqualTo(VECTOR_2);
+        assertThat(reloaded.getVector(replacedOrdinal)).isNull();
+        assertThat(reloaded.getVector(reloaded.getOrdinal(VECTOR_ID_1))).isEqualTo(updated);
+        assertThat(reloaded.getAllVectors()).containsExactlyInAnyOrder(VECTOR_2, updated);
+    }
+
+    @Test
+    void ordinalFilter_answersIndexedConditionsAfterDeletesAndReplacements() throws IOException {
+        SegmentStore indexedStore =
+                new SegmentStore(writeAheadLogger, ElementType.FLOAT32, Set.of("category", "price"));
+        indexedStore.loadFromDisk();
+        for (int i = 0; i < Segment.MAX_SEGMENT_SIZE + 10; i++) {
+            indexedStore.insertVector(
+                    new Vector("dummy" + i, new float[] {i}, metadata("{\"category\": \"a\", \"price\": " + i + "}")));
+        }
+        indexedStore.deleteVector("dummy2");
+        indexedStore.insertVector(
+                new Vector("dummy3", new float[] {3}, metadata("{\"category\": \"b\", \"price\": 3}")));
+
+        IntPredicate filter = indexedStore.ordinalFilter(filter("{\"category\": \"a\", \"price\": {\"lte\": 4}}"));
+
+        assertThat(matchingIds(indexedStore, filter)).containsExactlyInAnyOrder("dummy0", "dummy1", "dummy4");
+    }
+
+    @Test
+    void ordinalFilter_rejectsNegativeOrdinals() throws IOException {
+        SegmentStore indexedStore = new SegmentStore(writeAheadLogger, ElementType.FLOAT32, Set.of("category"));
+        indexedStore.loadFromDisk();
+        indexedStore.insertVector(new Vector(VECTOR_ID_1, VECTOR_1.values(), metadata("{\"category\": \"a\"}")));
+
+        assertThat(indexedStore.ordinalFilter(filter("{\"category\": \"a\"}")).test(-1)).isFalse();
+        assertThat(indexedStore.ordinalFilter(filter("{\"category\": \"a\", \"other\": 1}")).test(-1)).isFalse();
+    }
+
+    @Test
+    void ordinalFilter_usesSavedMetadataIndexAfterReload() throws IOException {
+        SegmentStore indexedStore = new SegmentStore(writeAheadLogger, ElementType.FLOAT32, Set.of("category"));
+        indexedStore.loadFromDisk();
+        indexedStore.insertVector(new Vector(VECTOR_ID_1, VECTOR_1.values(), metadata("{\"category\": \"a\"}")));
+        indexedStore.insertVector(new Vector(VECTOR_ID_2, VECTOR_2.values(), metadata("{\"category\": \"b\"}")));
+        indexedStore.deleteVector(VECTOR_ID_2);
+        indexedStore.getSegments().forEach(indexedStore::saveSegmentToDisk);
+
+        int savedSegmentId = indexedStore.getSegments().getLast().getId();
+        when(writeAheadLogger.getLatestSegmentIdIncludingUnclosed()).thenReturn(savedSegmentId);
+        SegmentStore reloaded = new SegmentStore(writeAheadLogger, ElementType.FLOAT32, Set.of("category"));
+        reloaded.loadFromDisk();
+
+        assertThat(Files.exists(Path.of(
+                        SegmentStore.SEGMENTS_DIR,
+                        SegmentStore.SEGMENT_FILE_PREFIX + savedSegmentId,
+                        SegmentStore.METADATA_INDEX_FILE)))
+                .isTrue();
+        assertThat(matchingIds(reloaded, reloaded.ordinalFilter(filter("{\"category\": [\"a\", \"b\"]}"))))
+                .containsExactly(VECTOR_ID_1);
+    }
+
+    @Test
+    void loadFromDisk_readsSegmentsWrittenBeforeTheFileHeader() throws IOException {
+        Vector vector2 = new Vector(VECTOR_ID_2, VECTOR_2.values(), metadata("{\"category\": \"a\"}"));
+        writeLegacySegment(Path.of(SegmentStore.SEGMENTS_DIR, SegmentStore.SEGMENT_FILE_PREFIX + 1), VECTOR_1, vector2);
+        when(writeAheadLogger.getLatestSegmentIdIncludingUnclosed()).thenReturn(1);
+
+        SegmentStore legacyStore = new SegmentStore(writeAheadLogger);
+        legacyStore.loadFromDisk();
+        // Rewritten in the current format
+        legacyStore.saveSegmentToDisk(legacyStore.getSegments().getFirst());
+        SegmentStore reloaded = new SegmentStore(writeAheadLogger);
+        reloaded.loadFromDisk();
+
+        for (SegmentStore store : List.of(legacyStore, reloaded)) {
+            assertThat(store.getVectorById(VECTOR_ID_1)).isEqualTo(VECTOR_1);
+            assertThat(store.getVectorById(VECTOR_ID_2)).isEqualTo(vector2);
+        }
+    }
+
+    // Layout of the segments written before the file header: length-prefixed vectors with double values
+    private static void writeLegacySegment(Path segmentPath, Vector... vectors) throws IOException {
+        ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        Files.createDirectories(segmentPath);
+        try (DataOutputStream output =
+                new DataOutputStream(Files.newOutputStream(segmentPath.resolve(SegmentStore.VECTORS_FILE)))) {
+            for (Vector vector : vectors) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream vectorOutput = new DataOutputStream(bytes);
+                vectorOutput.writeUTF(vector.id());
+                vectorOutput.writeInt(vector.values().length);
+                for (float value : vector.values()) {
+                    vectorOutput.writeDouble(value);
+                }
+                vectorOutput.write(smileMapper.writeValueAsBytes(vector.metadata()));
+                output.writeInt(bytes.size());
+                bytes.writeTo(output);
+            }
+        }
+        Files.createFile(segmentPath.resolve(SegmentStore.TOMBSTONES_FILE));
+    }
+
+    private static List<String> matchingIds(SegmentStore segmentStore, IntPredicate filter) {
+        return segmentStore.getAllVectors().stream()
+                .filter(vector -> filter.test(segmentStore.getOrdinal(vector.id())))
+                .map(Vector::id)
+                .toList();
+    }
+
+    private static Metadata metadata(String json) throws IOException {
+        return new Metadata(OBJECT_MAPPER.readTree(json));
+    }
+
+    private static MetadataFilter filter(String json) throws IOException {
+        return OBJECT_MAPPER.readValue(json, MetadataFilter.class);
+    }
 }
@@ -30,7 +30,8 @@ public class WriteAheadLoggerTest {
     private static final Metadata METADATA = new Metadata(new ObjectMapper().createObjectNode());
 
     private static final String VECTOR_ID_1 = "vec1";
-    private static final Vector VECTOR_WITH_METADATA = new Vector(VECTOR_ID_1, new double[] {1.0, 2.0, 3.0}, METADATA);
+    private static final Vector VECTOR_WITH_METADATA =
+            new Vector(VECTOR_ID_1, new float[] {1.0f, 2.0f, 3.0f}, METADATA);
 
     private WriteAheadLogger fixture;
 